@@ -3,6 +3,23 @@
  */
 package minesweeper;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
+
 /**
  * A minesweeper board is a grid of squares. Each square is either flagged, dug,
  * or untouched. Each square is also either mined or not mined. Every dug
@@ -14,341 +31,2600 @@ package minesweeper;
  * <p>
  * (x,y) coordinate of a square is within bounds if both x and y are greater
  * than or equal to 0 and less than the size of the board.
+ * <p>
+ * Boards are threadsafe. Every operation is atomic, and operations on squares
+ * far apart from each other run in parallel. Flagging a square, and digging a
+ * square that neither explodes nor expands, take no lock unless another
+ * operation holds the squares around them. Reading the board's state with
+ * toString() does not hold back any of them.
+ * <p>
+ * A random board only generates its squares, a tile at a time, when an
+ * operation first reaches them. Creating one takes memory proportional to
+ * the number of tiles, not of squares, so boards may have billions of
+ * squares. A board generated with a density still counts its mines as it is
+ * made, in parallel, in time proportional to its squares.
+ * <p>
+ * A board's squares are stored on the Java heap, unless it is made with a
+ * BoardStorage mapping them off the heap to a file.
+ * <p>
+ * A board keeps statistics of its squares--mines left, flagged and untouched
+ * squares, safe squares left to dig--up to date as it changes, so that
+ * reading them never scans the grid. They are exact whenever no operation is
+ * in progress.
  */
 public class Board {
-    private final Square[][] board;
+    /** Bit set in a cell if the square contains a mine. */
+    private static final byte MINED = 1;
+    /** Bit set in a cell if the square is flagged. */
+    private static final byte FLAGGED = 1 << 1;
+    /** Bit set in a cell if the square is dug. */
+    private static final byte DUG = 1 << 2;
+    /** Mask of the bits encoding the state (untouched, flagged or dug) of a cell. */
+    private static final byte STATE = FLAGGED | DUG;
+    /** Bit set in a cell while a dig in progress plans to dig it. */
+    private static final byte VISITED = 1 << 3;
+    /** Value of a mined square given to placeRow(). */
+    static final byte ROW_MINED = MINED;
+    /** Value added for a flagged square given to placeRow(). */
+    static final byte ROW_FLAGGED = FLAGGED;
+    /** Value added for a dug square given to placeRow(). */
+    static final byte ROW_DUG = DUG;
+    /** Position of the four bits holding the number of mined neighbors of a cell. */
+    private static final int COUNT_SHIFT = 4;
+    /** Number of bits of a count of mined neighbors, at most 8. */
+    private static final int COUNT_PLANES = 4;
+    /** log2 of the width and height, in squares, of a tile. */
+    private static final int TILE_SHIFT = 6;
+    /** Width and height, in squares, of a tile. */
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    /** Mask of the bits of a coordinate giving its position within its tile. */
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    /** A row of a tile of untouched squares, rendered as in a tile's view. */
+    private static final byte[] UNTOUCHED_ROW = "- ".repeat(TILE_SIZE).getBytes(StandardCharsets.US_ASCII);
+    /** Increment of the SplittableRandom streams mines are generated from. */
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    /** Probability that a square of a random board contains a mine, by default. */
+    private static final double DEFAULT_DENSITY = 0.25;
+    /** Number of rounds of the permutation placing an exact number of mines. */
+    private static final int PERMUTATION_ROUNDS = 4;
+    /**
+     * Number of optimistic renders toString() attempts before it excludes
+     * updates by write-locking every tile it renders.
+     */
+    private static final int MAX_RENDERS = 3;
+    /** Length of the longest array the VM is sure to allocate. */
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+    /**
+     * Maximum number of changes remembered by the change log. A board keeps
+     * no more changes than it has squares, since past that point the whole
+     * board is no larger than the changes.
+     */
+    private static final int MAX_CHANGE_LOG = 1 << 16;
+    /** Version of an entry of the change log being written. */
+    private static final long WRITING = -1;
+    
+    /** Atomic access to the elements of a heap tile's cells. */
+    private static final VarHandle CELL = MethodHandles.arrayElementVarHandle(byte[].class);
+    /** Atomic access to the aligned 4-byte words of a mapped tile's region. */
+    private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    /** True if the byte at the lowest address of a word is its least significant. */
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    
+    /** Per-thread scratch space reused by every dig. */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    
     private final int sizeX;
     private final int sizeY;
-
+    /** Number of tiles along the x-axis. */
+    private final int tilesX;
+    /** Tiles of the grid in row-major tile order, null until generated. */
+    private final AtomicReferenceArray<Tile> tiles;
+    /** Storage of the tiles' cells and views. */
+    private final BoardStorage storage;
+    /** Seed from which the mines of a tile are generated. */
+    private final long seed;
+    /** Probability that a square is generated with a mine, unless mineCount >= 0. */
+    private final double density;
+    /** Number of mines generated on the whole board, or -1 to generate by density. */
+    private final long mineCount;
+    /** Number of changes made to squares so far; the version of the board. */
+    private final AtomicLong version;
+    /**
+     * Position, as by position(), of the square changed by change number n, at
+     * [n % changeLog.length()].
+     */
+    private final AtomicLongArray changeLog;
+    /**
+     * n + 1 once change number n is written to changeLog[n %
+     * changeLog.length()], or WRITING while an entry is being written there.
+     */
+    private final AtomicLongArray changeLogVersions;
+    /** Number of mines the board started with. */
+    private final LongAdder startingMines = new LongAdder();
+    /** Number of dug squares. */
+    private final LongAdder dugSquares = new LongAdder();
+    /** Number of flagged squares. */
+    private final LongAdder flaggedSquares = new LongAdder();
+    /** Number of mines exploded. */
+    private final LongAdder explodedMines = new LongAdder();
+    
     // Rep invariant:
-    //  board must be of dimensions sizeY by sizeX. A Square cannot be dug
-    //  and mined at same time.
+    //  tiles has one entry for every (2^TILE_SHIFT)-square tile of the grid;
+    //  square x,y belongs to tile (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT),
+    //  at cell (y & TILE_MASK) * TILE_SIZE + (x & TILE_MASK) of the tile. Cells
+    //  of a tile that fall outside the board are unused and zero.
+    //  At most one of FLAGGED and DUG is set in a cell. A cell cannot be DUG
+    //  and MINED at same time. The count bits (COUNT_SHIFT and above) of a cell
+    //  hold the number of MINED cells among its neighbors. VISITED is clear in
+    //  every cell outside of a dig.
+    //  0 <= density <= 1 and -1 <= mineCount <= sizeX * sizeY.
+    //  A null tile is one whose squares are all untouched, with mines as
+    //  generated from seed by generatedMine(). Once set, a tile is never
+    //  replaced. If the mines of a tile differ from the generated ones, its
+    //  neighbor tiles are not null.
+    //  For every tile, the finished count of lock-free updates never exceeds the
+    //  begun count. Outside of any update, view[2 * i] is the character of
+    //  cells[i] as specified by toString(), and view[2 * i + 1] is " ".
+    //  Tiles are MappedTiles in storage if it is mapped, else HeapTiles.
+    //  changeLog.length() == changeLogVersions.length() is a power of two no
+    //  larger than MAX_CHANGE_LOG. Outside of any update, every square whose
+    //  character changed since change number n, for
+    //  version - changeLog.length() <= n < version, is among changeLog[m %
+    //  changeLog.length()] for n <= m < version.
+    //  Outside of any update, dugSquares and flaggedSquares count the DUG and
+    //  FLAGGED cells, and explodedMines the mines removed by digs;
+    //  startingMines less explodedMines is the number of MINED cells,
+    //  counting those of null tiles as generated.
     // Abstract function:
-    //  board, dimensions sizeY by sizeX, represents a sizeX by sizeY grid of
-    //  squares where board[y][x] represents square x,y on the axis defined in
-    //  the spec. Each Square board[y][x] corresponds to the following values:
-    //  - If board[y][x] is dug with no mined neighbors ---> square x,y is dug
+    //  tiles represents a sizeX by sizeY grid of squares where the cell of
+    //  square x,y, as placed above, represents square x,y on the axis defined
+    //  in the spec; a null tile stands for a tile of untouched squares holding
+    //  the generated mines. Square x,y contains a mine iff the MINED bit of its
+    //  cell is set. Each cell corresponds to the following values:
+    //  - If the cell is DUG and has no mined neighbors ---> square x,y is dug
     //  with a mined neighbor count of zero.
-    //  - If board[y][x] is dug with mined neighbors ---> square x,y is dug with
+    //  - If the cell is DUG and has mined neighbors ---> square x,y is dug with
     //  a count 1-8 of its mined neighbors.
-    //  - If board[y][x] is flagged ---> square x,y is also flagged and denoted
+    //  - If the cell is FLAGGED ---> square x,y is also flagged and denoted
     //  with "F".
-    //  - If board[y][x] is untouched ---> square x,y is also untouched and
+    //  - If neither DUG nor FLAGGED is set ---> square x,y is untouched and
     //  denoted with "-".
     // Rep exposure:
     //  Only exposed parts of the rep--sizeX and sizeY--are immutable.
     // Thread safety argument:
     //  - No rep exposure.
-    //  - sizeX and sizeY are immutable and final.
-    //  - All access to the mutable rep, board, is guarded by this object's lock.
+    //  - sizeX, sizeY, tilesX, tiles, storage, seed, density, mineCount,
+    //  version, changeLog and changeLogVersions are immutable and final;
+    //  tiles, storage, version, changeLog and changeLogVersions are
+    //  threadsafe.
+    //  - A heap tile is generated outside of any lock and published with a
+    //  compare-and-set of its null entry. Generation is deterministic, so
+    //  threads racing to generate a tile build equal tiles, and all of them go
+    //  on with the one that won. Tiles racing to be generated in storage
+    //  would share their cells, so those are generated under the tile's
+    //  generation lock instead, by a single thread. No update changes a tile
+    //  before it is published.
+    //  - Every write to a cell is an atomic read-modify-write, through CELL,
+    //  or through WORD on the aligned word holding the cell, so concurrent
+    //  updates of different bits of a cell, or of neighboring cells, are never
+    //  lost.
+    //  - After changing a cell, an update rewrites its character in its tile's
+    //  view from the cell's current value until the cell no longer changes
+    //  under it (see patch), so concurrent updates of a cell leave the right
+    //  character behind whatever order their view writes land in.
+    //  - Operations spanning more than one cell (a dig that explodes or
+    //  expands, chord, and deflag) acquire the write locks of all the tiles they
+    //  touch before changing any cell and release them only when done
+    //  (two-phase locking). Locking a tile generates it first, so an explosion
+    //  only ever happens with all its neighbor tiles generated.
+    //  - Blocking acquisitions are made in ascending tile order while holding
+    //  no other tile lock, so they cannot deadlock. A dig that discovers it
+    //  needs another tile mid-plan only try-locks it; if that fails, the dig
+    //  releases everything, before having changed any cell, and starts over
+    //  with the larger set of tiles. The set only grows, and the board has
+    //  finitely many tiles, so a dig starts over finitely many times.
+    //  - flag, and a dig that neither explodes nor expands, change a single
+    //  cell with one compare-and-set, which is their linearization point, and
+    //  count themselves begun before and finished after touching the cell and
+    //  its character. Once counted begun, they only touch the cell if the
+    //  tile is still not write-locked; otherwise they take the locked path.
+    //  So a thread write-locking a tile, then waiting for the begun and
+    //  finished counts to match, excludes every lock-free update of it.
+    //  - toString() copies the views of the tiles covering the window asked
+    //  for without any lock, from optimistic stamps of those tiles. It only
+    //  returns the copy if none of those tiles was generated or write-locked,
+    //  no lock-free update of them was in progress when it started and none
+    //  began in the meantime, that is, if no update of the window overlapped
+    //  the copy; otherwise it tries again. After MAX_RENDERS attempts it
+    //  write-locks those tiles, which also turns new flags and digs of them
+    //  away from the lock-free path, waits for lock-free updates already in
+    //  progress to finish, and copies.
+    //  - chord() write-locks the tiles around its square, then waits for
+    //  lock-free updates of them already in progress to finish, so the flags
+    //  it counts and the untouched squares it digs cannot change until it is
+    //  done; it plans the digs of all of them together before applying any.
+    //  - batch() does the same with the tiles around all of its moves, and
+    //  plans all of its digs before applying any move; a flag it plants can
+    //  only stop a later dig earlier, and the plan goes through flagged
+    //  squares in case a deflag of the batch opens them.
+    //  - forEachSquare() likewise write-locks every generated tile, makes sure
+    //  no tile was generated while it took the locks, and waits for lock-free
+    //  updates in progress to finish. Its snapshot is the board at that
+    //  point; tiles generated later are read as they were generated.
+    //  forEachSquareTileByTile() write-locks a single tile at a time, and
+    //  waits for its lock-free updates in progress to finish, so each row of a
+    //  tile it reads is in a state the board had, with no update half done.
+    //  - A locked dig claims every cell with a compare-and-set as well, so a
+    //  lock-free flag or dig of the same cell is ordered wholly before or
+    //  after it. Such a race can only stop the flood earlier, never widen it,
+    //  so the locked dig never needs a tile it did not plan for. A lock-free
+    //  operation that finds its cell already taken while a locked operation
+    //  holds the tile waits for that operation to finish before returning, so
+    //  a thread can never see its later operations ordered before its earlier
+    //  ones.
+    //  - An update logs a change only after patching view, by taking the next
+    //  version n, and then writing its entry as a seqlock: it waits for the
+    //  entry of change n - changeLog.length() to be published, sets the
+    //  entry's version to WRITING, writes changeLog, and then publishes
+    //  n + 1 to changeLogVersions. So the entry's version changes whenever
+    //  its position does, and never takes the same value twice.
+    //  changedSquares() trusts an entry only if it carries the expected
+    //  version both before and after reading it, and stops at the first entry
+    //  not yet published; the squares it reports are read from cells, so they
+    //  are never older than the version it reports.
+    //  - Every update that sets or clears DUG or FLAGGED, or removes a mine,
+    //  does so with an atomic read-modify-write of the cell telling it did,
+    //  and only then adds to the matching LongAdder, so each change of a cell
+    //  is counted once. The counters are threadsafe, and are read without any
+    //  lock, so they are only exact when no update is in progress.
+    //  - startingMines is counted while the board is still confined to its
+    //  constructor, or to its loader for a board loaded from mines.
+    //  - Scratch space is confined to its thread.
     
+    /**
+     * A move of a batch, applied by batch().
+     */
+    public enum Move {
+        /** Dig a square. */
+        DIG,
+        /** Flag a square. */
+        FLAG,
+        /** Deflag a square. */
+        DEFLAG
+    }
     
-    private static class Square {
-        private boolean mined;
-        private State state;
+    /**
+     * The squares of one tile of the grid, with the lock and the counters
+     * guarding them. Cell i of the tile is the cell of square x,y of the
+     * tile, for i = y * TILE_SIZE + x; the character of cell i as specified
+     * by toString() is at 2 * i of its view.
+     */
+    private abstract static class Tile {
+        /** Lock of the tile. */
+        final StampedLock lock = new StampedLock();
+        /** Number of lock-free updates of the tile begun. */
+        final AtomicLong lockFreeBegun = new AtomicLong();
+        /** Number of lock-free updates of the tile finished. */
+        final AtomicLong lockFreeFinished = new AtomicLong();
         
-        private enum State {
-            Untouched,
-            Flagged,
-            Dug
-        }
+        /** @return cell i */
+        abstract byte cell(int i);
         
-        Square(boolean mined) {
-            this.mined = mined;
-            this.state = State.Untouched;
-        }
+        /** Set cell i to value, with no ordering nor atomicity guarantee. */
+        abstract void setCell(int i, byte value);
+        
+        /** @return cell i, read with volatile semantics */
+        abstract byte cellVolatile(int i);
         
         /**
-         * Digs this square exploding its mine (if there is one)
-         * 
-         * @return true if this dig exploded a mine.
+         * Atomically set cell i to value if it is expected.
+         *
+         * @return true if cell i was expected
          */
-        boolean dig() {
-            if (state == State.Untouched) {
-                state = State.Dug;
-            }
-            
-            if (mined) {
-                mined = false;
-                return true;
-            }
-            
-            return false;
-        }
+        abstract boolean compareAndSetCell(int i, byte expected, byte value);
         
         /**
-         * @return true if this square contains a bomb
+         * Atomically add delta to cell i.
+         *
+         * @return the cell before the addition
          */
-        boolean mined(){
-            return mined;
-        }
+        abstract byte getAndAddCell(int i, byte delta);
+        
+        /**
+         * Atomically set the bits of cell i that are set in bits.
+         *
+         * @return the cell before
+         */
+        abstract byte getAndBitwiseOrCell(int i, byte bits);
+        
+        /**
+         * Atomically clear the bits of cell i that are clear in bits.
+         *
+         * @return the cell before
+         */
+        abstract byte getAndBitwiseAndCell(int i, byte bits);
+        
+        /**
+         * Copy length cells from source, starting at from, to the cells
+         * starting at i, with no ordering guarantee.
+         */
+        abstract void copyCells(byte[] source, int from, int i, int length);
+        
+        /** Set the character of cell i in the view. */
+        abstract void setGlyph(int i, byte glyph);
+        
+        /**
+         * Copy length bytes of the view, starting at from, to destination,
+         * starting at to, with no ordering guarantee.
+         */
+        abstract void copyView(int from, byte[] destination, int to, int length);
+    }
+    
+    /**
+     * A tile stored on the Java heap.
+     */
+    private static final class HeapTile extends Tile {
+        /** Cells of the tile. */
+        private final byte[] cells = new byte[TILE_SIZE * TILE_SIZE];
+        /** View of the tile. */
+        private final byte[] view = new byte[2 * TILE_SIZE * TILE_SIZE];
         
         /**
-         * Flag this square
+         * Make a tile of untouched squares with no mines.
          */
-        void flag() {
-            if(state == State.Untouched) {
-                state = State.Flagged;
+        HeapTile() {
+            for (int row = 0; row < TILE_SIZE; row++) {
+                System.arraycopy(UNTOUCHED_ROW, 0, view, row * UNTOUCHED_ROW.length, UNTOUCHED_ROW.length);
             }
         }
         
+        @Override byte cell(int i) {
+            return cells[i];
+        }
+        
+        @Override void setCell(int i, byte value) {
+            cells[i] = value;
+        }
+        
+        @Override byte cellVolatile(int i) {
+            return (byte) CELL.getVolatile(cells, i);
+        }
+        
+        @Override boolean compareAndSetCell(int i, byte expected, byte value) {
+            return CELL.compareAndSet(cells, i, expected, value);
+        }
+        
+        @Override byte getAndAddCell(int i, byte delta) {
+            return (byte) CELL.getAndAdd(cells, i, delta);
+        }
+        
+        @Override byte getAndBitwiseOrCell(int i, byte bits) {
+            return (byte) CELL.getAndBitwiseOr(cells, i, bits);
+        }
+        
+        @Override byte getAndBitwiseAndCell(int i, byte bits) {
+            return (byte) CELL.getAndBitwiseAnd(cells, i, bits);
+        }
+        
+        @Override void copyCells(byte[] source, int from, int i, int length) {
+            System.arraycopy(source, from, cells, i, length);
+        }
+        
+        @Override void setGlyph(int i, byte glyph) {
+            view[2 * i] = glyph;
+        }
+        
+        @Override void copyView(int from, byte[] destination, int to, int length) {
+            System.arraycopy(view, from, destination, to, length);
+        }
+    }
+    
+    /**
+     * A tile stored off the heap, in a region of a mapped file holding its
+     * cells followed by its view. Buffers have no atomic access to single
+     * bytes, so a cell is updated atomically through the aligned 4-byte word
+     * holding it, leaving the other three cells of the word as they are.
+     */
+    private static final class MappedTile extends Tile {
+        /** Offset of the view in the region. */
+        private static final int VIEW = TILE_SIZE * TILE_SIZE;
+        /** Length in bytes of the region of a tile, a whole number of pages. */
+        static final int REGION_LENGTH = 3 * TILE_SIZE * TILE_SIZE;
+        
+        /** Region of the tile, zero but for what the tile wrote to it. */
+        private final ByteBuffer region;
+        
         /**
-         * Deflag this square
+         * Make a tile of untouched squares with no mines.
+         *
+         * @param region
+         *            region of the tile, all zero
          */
-        void deflag() {
-            if(state == State.Flagged) {
-                state = State.Untouched;
+        MappedTile(ByteBuffer region) {
+            this.region = region;
+            for (int row = 0; row < TILE_SIZE; row++) {
+                region.put(VIEW + row * UNTOUCHED_ROW.length, UNTOUCHED_ROW);
             }
         }
         
         /**
-         * @return The sate of this square
+         * @return the position of cell i in its word, as a number of bits
+         *         to shift the word right by to get it
          */
-        State state() {
-            return state;
-        }   
+        private static int shift(int i) {
+            return (LITTLE_ENDIAN ? i & 3 : 3 - (i & 3)) << 3;
+        }
+        
+        @Override byte cell(int i) {
+            return region.get(i);
+        }
+        
+        @Override void setCell(int i, byte value) {
+            region.put(i, value);
+        }
+        
+        @Override byte cellVolatile(int i) {
+            return (byte) ((int) WORD.getVolatile(region, i & ~3) >>> shift(i));
+        }
+        
+        @Override boolean compareAndSetCell(int i, byte expected, byte value) {
+            final int shift = shift(i);
+            for (;;) {
+                final int word = (int) WORD.getVolatile(region, i & ~3);
+                if ((byte) (word >>> shift) != expected) {
+                    return false;
+                }
+                // Fails, and tries again, if only a neighboring cell changed
+                final int updated = word & ~(0xFF << shift) | (value & 0xFF) << shift;
+                if (WORD.compareAndSet(region, i & ~3, word, updated)) {
+                    return true;
+                }
+            }
+        }
+        
+        @Override byte getAndAddCell(int i, byte delta) {
+            for (;;) {
+                final byte value = cellVolatile(i);
+                if (compareAndSetCell(i, value, (byte) (value + delta))) {
+                    return value;
+                }
+            }
+        }
+        
+        @Override byte getAndBitwiseOrCell(int i, byte bits) {
+            final int shift = shift(i);
+            return (byte) ((int) WORD.getAndBitwiseOr(region, i & ~3, (bits & 0xFF) << shift) >>> shift);
+        }
+        
+        @Override byte getAndBitwiseAndCell(int i, byte bits) {
+            final int shift = shift(i);
+            return (byte) ((int) WORD.getAndBitwiseAnd(region, i & ~3, ~((~bits & 0xFF) << shift)) >>> shift);
+        }
+        
+        @Override void copyCells(byte[] source, int from, int i, int length) {
+            region.put(i, source, from, length);
+        }
+        
+        @Override void setGlyph(int i, byte glyph) {
+            region.put(VIEW + 2 * i, glyph);
+        }
+        
+        @Override void copyView(int from, byte[] destination, int to, int length) {
+            region.get(VIEW + from, destination, to, length);
+        }
     }
     
     /**
-     * Determines if coordinates x,y on the axis are within the bounds of this
-     * board.
-     * 
-     * @param x
-     *            x-coordinate
-     * @param y
-     *            y-coordinate
-     * @return true if x,y is within bounds of this board (0 <= x and <= sizeX
-     *         and 0 <= y <= sizeY)
+     * Tiles locked or read by an operation, and the work list of a dig's plan.
      */
-    private boolean inBound(int x, int y) {
-       return 0 <= x && x < sizeX && 0 <= y && y < sizeY;
+    private static class Scratch {
+        /** Sorted indices of the tiles the operation needs. */
+        int[] tiles = new int[4];
+        /** Stamp of the lock on tiles[k], or 0 if not (yet) held. */
+        long[] stamps = new long[4];
+        /**
+         * Optimistic read stamp of tiles[k], or 0 if it was not generated,
+         * while a render is in progress.
+         */
+        long[] optimisticStamps = new long[4];
+        /** Number of entries in use in tiles and stamps. */
+        int tileCount;
+        /** Positions of the squares a dig plans to dig, in discovery order. */
+        long[] plan = new long[16];
+        
+        /**
+         * Adds tile to the needed tiles, unlocked, if not already present.
+         *
+         * @param tile
+         *            tile index
+         * @return position of tile in tiles
+         */
+        int add(int tile) {
+            int k = Arrays.binarySearch(tiles, 0, tileCount, tile);
+            if (k >= 0) {
+                return k;
+            }
+            
+            k = -k - 1;
+            if (tileCount == tiles.length) {
+                tiles = Arrays.copyOf(tiles, tileCount * 2);
+                stamps = Arrays.copyOf(stamps, tileCount * 2);
+                optimisticStamps = Arrays.copyOf(optimisticStamps, tileCount * 2);
+            }
+            System.arraycopy(tiles, k, tiles, k + 1, tileCount - k);
+            System.arraycopy(stamps, k, stamps, k + 1, tileCount - k);
+            System.arraycopy(optimisticStamps, k, optimisticStamps, k + 1, tileCount - k);
+            tiles[k] = tile;
+            stamps[k] = 0;
+            tileCount++;
+            return k;
+        }
     }
     
     /**
-     * The number of mined neighbors of square x,y
-     * 
      * @param x
-     *            x-coordinate of the a square
+     *            x-coordinate of a square in bounds
      * @param y
-     *            y-coordinate of the square
-     * @return The number of mined neighbors of square x,y if x,y is in bounds;
-     *         else, return 0.
+     *            y-coordinate of a square in bounds
+     * @return index of the tile containing square x,y
      */
-    private int count(int x, int y) {
-        int count = 0;
-        count += mined(x - 1, y - 1) ? 1 : 0;
-        count += mined(x, y - 1) ? 1 : 0;
-        count += mined(x + 1, y - 1) ? 1 : 0;
-        count += mined(x + 1, y) ? 1 : 0;
-        count += mined(x + 1, y + 1) ? 1 : 0;
-        count += mined(x, y + 1) ? 1 : 0;
-        count += mined(x - 1, y + 1) ? 1 : 0;
-        count += mined(x - 1, y) ? 1 : 0;
-        return count;
+    private int tileIndex(int x, int y) {
+        return (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
     }
-        
+    
     /**
-     * Indicates if square at the x,y coordinate in this board contains a bomb.
-     * 
      * @param x
-     *            x-coordinate of the square
+     *            x-coordinate of a square
      * @param y
-     *            y-coordinate of the square
-     * @return true if square x,y is in bound and contains a bomb
+     *            y-coordinate of a square
+     * @return index of the cell of square x,y within its tile
      */
-    boolean mined(int x, int y){
-        if(inBound(x, y)) {
-            return board[y][x].mined(); 
-        }
-        
-        return false;
+    private static int offset(int x, int y) {
+        return (y & TILE_MASK) << TILE_SHIFT | (x & TILE_MASK);
     }
     
     /**
-     * Initialize a board from a bombs grid. A board of equals size to bombs
-     * will be created with all squares untouched. An square x,y will contain a
-     * bomb if only if bombs contains a 1 in the same location.
-     * 
-     * @param sizeX
-     *            The size of the grid along the x-axis
-     * @param sizeY
-     *            The size of the grid along the y-axis
-     * @param bombs
-     *            A sizeX by sizeY grid of newline-separated (\n, \r, or \r\n)
-     *            rows of space-separated 1s and 0s representing the location of
-     *            bombs in a board. A location contains a bomb if and only if it
-     *            contains a 1.
+     * Returns a tile, generating it if this is the first time it is needed.
+     *
+     * @param t
+     *            tile index
+     * @return tile t
      */
-    public Board(int sizeX, int sizeY, String bombs) {
-        this.board = new Square[sizeY][sizeX];
-        this.sizeX = sizeX;
-        this.sizeY = sizeY;
-
-        String[] rows = bombs.split("\n|\r\n?");
-
-        if (rows.length != sizeY) {
-            throw new IllegalArgumentException(String.format("expected %d rows but parsed %", sizeY, rows.length));
+    private Tile tile(int t) {
+        final Tile tile = tiles.get(t);
+        if (tile != null) {
+            return tile;
         }
-
-        for (int j = 0; j < sizeY; j++) {
-            final String[] values = rows[j].split(" ");
-            if (values.length != sizeX) {
-                throw new IllegalArgumentException(
-                        String.format("expected %d values in row but % found only %d", sizeX, j, values.length));
-            }
-            
-            for(int i = 0; i < sizeX; i++) {
-                int value = Integer.parseInt(values[i]);
-                if (value == 1) {
-                    board[j][i] = new Square(true);
-                } else if (value == 0) {
-                    board[j][i] = new Square(false);
-                } else {
-                    throw new IllegalArgumentException("value %d,%d in the grid provided is neither a 1 nor a 0");
+        
+        if (storage.isMapped()) {
+            final ReentrantLock generationLock = storage.generationLock(t);
+            generationLock.lock();
+            try {
+                final Tile witness = tiles.get(t);
+                if (witness != null) {
+                    return witness;
                 }
+                final Tile generated = generateTile(t);
+                tiles.set(t, generated);
+                return generated;
+            } finally {
+                generationLock.unlock();
             }
         }
+        
+        final Tile generated = generateTile(t);
+        final Tile witness = tiles.compareAndExchange(t, null, generated);
+        return witness == null ? generated : witness;
     }
     
     /**
-     * Create a sizeX by sizeY board populated with bombs at random locations.
-     * 
-     * @param sizeX
-     *            Size of the board along x-axis
-     * @param sizeY
-     *            Size of the board along y-axis
+     * @param t
+     *            index of a tile not generated yet
+     * @return a new tile of untouched squares with no mines, stored in
+     *         storage, for tile t
      */
-    public Board(int sizeX, int sizeY) {
-        this.sizeX = sizeX;
-        this.sizeY = sizeY;
-        board = new Square[sizeY][sizeX];
-        
-        for (int i = 0; i < sizeX; i++) {
-            for (int j = 0; j < sizeY; j++) {
-                board[j][i] = new Square(Math.random() < 0.25);
-            }
-        }
+    private Tile newTile(int t) {
+        return storage.isMapped() ? new MappedTile(storage.region(t)) : new HeapTile();
     }
-
+    
     /**
-     * If x,y are out of bounds, the board's state remains unchanged. If x,y are
-     * in bounds, dig square x,y if untouched, exploding its mine (if there is
-     * one), otherwise leave the state as is.
-     * <p>
-     * Digging square x,y expands recursively through all neighboring squares if
-     * none of those squares contain a bomb.
-     * 
      * @param x
-     *            the x-coordinate of the square in the board.
+     *            x-coordinate of a square in bounds
      * @param y
-     *            the y-coordinate of the square in the board.
-     * @return true if a mine exploded
+     *            y-coordinate of a square in bounds
+     * @return the tile containing square x,y, generated if need be
      */
-    public synchronized boolean dig(int x, int y) {
-        if (!inBound(x, y) || board[y][x].state() != Square.State.Untouched) {
-            return false;
-        }
-        final boolean exploded = board[y][x].dig();
-
-        if (count(x, y) == 0) {
-            dig(x - 1, y - 1);
-            dig(x, y - 1);
-            dig(x + 1, y - 1);
-            dig(x + 1, y);
-            dig(x + 1, y + 1);
-            dig(x, y + 1);
-            dig(x - 1, y + 1);
-            dig(x - 1, y);
-        }
-
-        return exploded;
+    private Tile tileOf(int x, int y) {
+        return tile(tileIndex(x, y));
     }
     
     /**
-     * If x,y are out of bounds, the boards' state remains unchanged. If x,y are
-     * in bounds, flag square x,y if untouched, otherwise leave the state as is.
-     * 
-     * @param x
-     *            the x-coordinate of the square in the board.
-     * @param y
-     *            the y-coordinate of the square in the board.
+     * @return the position of square x,y, ordered by row and then by column
      */
-    public synchronized void flag(int x, int y) {
-        if (inBound(x, y)) {
-            board[y][x].flag();
+    private static long position(int x, int y) {
+        return (long) y << Integer.SIZE | x;
+    }
+    
+    /**
+     * @return the x-coordinate of the square at position
+     */
+    private static int positionX(long position) {
+        return (int) position;
+    }
+    
+    /**
+     * @return the y-coordinate of the square at position
+     */
+    private static int positionY(long position) {
+        return (int) (position >>> Integer.SIZE);
+    }
+    
+    /**
+     * Adds to scratch's needed tiles every tile containing an in bound square
+     * of the rectangle minX..maxX by minY..maxY.
+     */
+    private void addTiles(Scratch scratch, int minX, int minY, int maxX, int maxY) {
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, sizeX - 1);
+        maxY = Math.min(maxY, sizeY - 1);
+        
+        for (int j = minY >> TILE_SHIFT; j <= maxY >> TILE_SHIFT; j++) {
+            for (int i = minX >> TILE_SHIFT; i <= maxX >> TILE_SHIFT; i++) {
+                scratch.add(j * tilesX + i);
+            }
         }
     }
-
+    
     /**
-     * If x,y are out of bounds, the boards' state remains unchanged. If x,y are
-     * in bounds, deflag square x,y if flagged, otherwise leave the state as is.
-     * 
-     * @param x
-     *            the x-coordinate of the square in the board.
-     * @param y
-     *            the y-coordinate of the square in the board.
+     * Write-locks, in ascending order, all of scratch's needed tiles. Requires
+     * the calling thread to hold none of them.
      */
-    public synchronized void deflag(int x, int y) {
-        if (inBound(x, y)) {
-            board[y][x].deflag();
+    private void lockTiles(Scratch scratch) {
+        for (int k = 0; k < scratch.tileCount; k++) {
+            scratch.stamps[k] = tile(scratch.tiles[k]).lock.writeLock();
         }
     }
-
+    
     /**
-     * Returns a grid of newline-separated (\n) rows of space space-separated
-     * characters, representing the board's state with exactly one character per
-     * each square. The mapping of characters is as follows:
-     * <ul>
-     * <li>"-" denotes an untouched square.</li>
-     * <li>"F" denotes a flagged square.</li>
-     * <li>" " (space) denotes a dug square with 0 neighbors that have a bomb.
-     * </li>
-     * <li>an integer between 1 and 8 denotes a dug square with that many
-     * neighbor that have a bomb.</li>
-     * </ul>
+     * Releases every tile lock held in scratch.
      */
-    @Override
-    public synchronized String toString() {
-        StringBuilder sb = new StringBuilder();
-
-        for (int j = 0; j < sizeY; j++) {
-            for (int i = 0; i < sizeX; i++) {
-                switch (board[j][i].state()) {
-                case Dug:
-                    final int count = count(i, j);
-                    sb.append(count == 0 ? " " : count);
-                    break;
-                case Flagged:
-                    sb.append("F");
-                    break;
-                case Untouched:
-                    sb.append("-");
-                    break;
-                default:
-                    break;
-                }
-
-                sb.append(i == sizeX - 1 ? "\n" : " ");
+    private void unlockTiles(Scratch scratch) {
+        for (int k = 0; k < scratch.tileCount; k++) {
+            if (scratch.stamps[k] != 0) {
+                tiles.get(scratch.tiles[k]).lock.unlockWrite(scratch.stamps[k]);
+                scratch.stamps[k] = 0;
             }
         }
-        
-        sb.deleteCharAt(sb.length()-1); //Delete the last new-line char (\n)
-
-        return sb.toString();
     }
     
     /**
-     * @return Length of the board along x-axis--width.
+     * Makes sure the calling thread write-locks tile without blocking.
+     *
+     * @return true if tile is held on return, false if it is locked by another
+     *         thread. In the latter case tile is still added to the needed
+     *         tiles so the next attempt acquires it in order.
      */
-    public int sizeX() {
-        return sizeX;
+    private boolean tryLockTile(Scratch scratch, int tile) {
+        final int k = scratch.add(tile);
+        if (scratch.stamps[k] == 0) {
+            scratch.stamps[k] = tile(tile).lock.tryWriteLock();
+        }
+        return scratch.stamps[k] != 0;
     }
     
     /**
-     * @return Length of the board along y-axis--height.
+     * Blocks until no thread holds the write lock of the given tile.
      */
-    public int sizeY() {
-        return sizeY;
+    private static void awaitTile(StampedLock lock) {
+        lock.unlockRead(lock.readLock());
+    }
+    
+    /**
+     * @param cell
+     *            value of a cell
+     * @return the number of mined neighbors recorded in cell
+     */
+    private static int count(byte cell) {
+        return (cell & 0xFF) >>> COUNT_SHIFT;
+    }
+    
+    /**
+     * @param cell
+     *            value of a cell
+     * @return the character representing cell, as specified by toString()
+     */
+    private static byte glyph(byte cell) {
+        switch (cell & STATE) {
+        case DUG:
+            return (byte) (count(cell) == 0 ? ' ' : '0' + count(cell));
+        case FLAGGED:
+            return 'F';
+        default:
+            return '-';
+        }
+    }
+    
+    /**
+     * Rewrites the character of square x,y in the view of its tile. Repeats
+     * until the cell is unchanged after the write, so the last patch of a cell
+     * always leaves its current character even if another patch of the same
+     * cell raced it.
+     *
+     * @param tile
+     *            tile containing square x,y
+     */
+    private void patch(Tile tile, int x, int y) {
+        final int i = offset(x, y);
+        byte value;
+        do {
+            value = tile.cellVolatile(i);
+            tile.setGlyph(i, glyph(value));
+        } while (tile.cellVolatile(i) != value);
+        
+        logChange(x, y);
+    }
+    
+    /**
+     * Records a change of square x,y as the next version of the board.
+     */
+    private void logChange(int x, int y) {
+        final long n = version.getAndIncrement();
+        final int slot = (int) (n & (changeLog.length() - 1));
+        // The entry of the change before in the slot, if any, is published first
+        final long previous = n < changeLog.length() ? 0 : n - changeLog.length() + 1;
+        while (!changeLogVersions.compareAndSet(slot, previous, WRITING)) {
+            Thread.onSpinWait();
+        }
+        changeLog.set(slot, position(x, y));
+        changeLogVersions.set(slot, n + 1);
+    }
+    
+    /**
+     * Counts a lock-free update of tile as begun.
+     */
+    private static void beginLockFree(Tile tile) {
+        tile.lockFreeBegun.getAndIncrement();
+    }
+    
+    /**
+     * Counts a lock-free update of tile as finished.
+     */
+    private static void endLockFree(Tile tile) {
+        tile.lockFreeFinished.getAndIncrement();
+    }
+    
+    /**
+     * Adds delta to the mined neighbor count of each in bound neighbor of
+     * square x,y. Requires the tiles of those neighbors to be generated.
+     *
+     * @param x
+     *            x-coordinate of the square
+     * @param y
+     *            y-coordinate of the square
+     * @param delta
+     *            +1 if a mine was placed on square x,y, -1 if it was removed
+     */
+    private void addToNeighborCounts(int x, int y, int delta) {
+        for (int j = y - 1; j <= y + 1; j++) {
+            for (int i = x - 1; i <= x + 1; i++) {
+                if ((i != x || j != y) && inBound(i, j)) {
+                    final Tile tile = tiles.get(tileIndex(i, j));
+                    final byte old = tile.getAndAddCell(offset(i, j), (byte) (delta << COUNT_SHIFT));
+                    if ((old & DUG) != 0) {
+                        // Only a dug square shows its count
+                        patch(tile, i, j);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Determines if coordinates x,y on the axis are within the bounds of this
+     * board.
+     *
+     * @param x
+     *            x-coordinate
+     * @param y
+     *            y-coordinate
+     * @return true if x,y is within bounds of this board (0 <= x and <= sizeX
+     *         and 0 <= y <= sizeY)
+     */
+    private boolean inBound(int x, int y) {
+       return 0 <= x && x < sizeX && 0 <= y && y < sizeY;
+    }
+    
+    /**
+     * @return length of the change log of a sizeX by sizeY board
+     */
+    private static int changeLogLength(int sizeX, int sizeY) {
+        final long squares = Math.min(MAX_CHANGE_LOG, (long) sizeX * sizeY);
+        int length = 1;
+        while (length < squares) {
+            length <<= 1;
+        }
+        return length;
+    }
+    
+    /**
+     * Indicates if square x,y contains a mine in the board generated from seed,
+     * before any mine exploded. Depends on nothing but the seed, the mine
+     * count or density, and x,y, so every square may be generated separately,
+     * in any order and on any thread.
+     *
+     * @param x
+     *            x-coordinate of the square
+     * @param y
+     *            y-coordinate of the square
+     * @return true if square x,y is in bound and contains a generated mine
+     */
+    private boolean generatedMine(int x, int y) {
+        if (!inBound(x, y)) {
+            return false;
+        }
+        
+        if (mineCount >= 0) {
+            // Sampling without replacement: the mines are on the squares the
+            // permutation sends to the first mineCount places
+            return permute((long) y * sizeX + x) < mineCount;
+        }
+        
+        return densityMine(tileSeed(tileIndex(x, y)), offset(x, y));
+    }
+    
+    /**
+     * @param t
+     *            tile index
+     * @return the seed of the mines of tile t on a board generated with a
+     *         density
+     */
+    private long tileSeed(int t) {
+        return mix64(seed + t * GOLDEN_GAMMA);
+    }
+    
+    /**
+     * @param tileSeed
+     *            seed of the mines of a tile, as by tileSeed()
+     * @param i
+     *            cell of a square of the tile
+     * @return true if the square contains a mine on a board generated with a
+     *         density
+     */
+    private boolean densityMine(long tileSeed, int i) {
+        // The n-th value of a SplittableRandom stream seeded by the seed of
+        // the tile, where n is the square's cell in the tile
+        final long random = mix64(tileSeed + (i + 1) * GOLDEN_GAMMA);
+        return (random >>> 11) * 0x1.0p-53 < density;
+    }
+    
+    /**
+     * Counts the mines of a board generated with a density, tile by tile in
+     * parallel, without generating any tile.
+     *
+     * @return the number of mines generated on the whole board
+     */
+    private long generatedMineCount() {
+        if (density == 0) {
+            return 0;
+        }
+        // As densityMine(), comparing the 53 bits drawn with density scaled to
+        // them, which is exact
+        final double threshold = density * 0x1.0p53;
+        return IntStream.range(0, tiles.length()).parallel().mapToLong(t -> {
+            final long tileSeed = tileSeed(t);
+            final int width = Math.min(TILE_SIZE, sizeX - ((t % tilesX) << TILE_SHIFT));
+            final int height = Math.min(TILE_SIZE, sizeY - ((t / tilesX) << TILE_SHIFT));
+            long mines = 0;
+            for (int j = 0; j < height; j++) {
+                long z = tileSeed + ((j << TILE_SHIFT) + 1) * GOLDEN_GAMMA;
+                for (int i = 0; i < width; i++, z += GOLDEN_GAMMA) {
+                    mines += (mix64(z) >>> 11) < threshold ? 1 : 0;
+                }
+            }
+            return mines;
+        }).sum();
+    }
+    
+    /**
+     * Maps a square to its place in a pseudo-random permutation, determined by
+     * seed, of all the squares of the board. The permutation is a Feistel
+     * network over the smallest domain of an even number of bits holding every
+     * square, restricted to the board by walking the cycle of index until it
+     * falls back on the board.
+     * 
+     * @param index
+     *            y * sizeX + x for square x,y in bounds
+     * @return the place of square x,y in the permutation, from 0 to the number
+     *         of squares - 1
+     */
+    private long permute(long index) {
+        final long squares = (long) sizeX * sizeY;
+        final int halfBits = Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(squares - 1) + 1) / 2);
+        final long mask = (1L << halfBits) - 1;
+        
+        do {
+            long left = index >>> halfBits;
+            long right = index & mask;
+            for (int round = 1; round <= PERMUTATION_ROUNDS; round++) {
+                final long mixed = left ^ (mix64(seed + round * GOLDEN_GAMMA + mix64(right)) & mask);
+                left = right;
+                right = mixed;
+            }
+            index = left << halfBits | right;
+        } while (index >= squares);
+        
+        return index;
+    }
+    
+    /**
+     * @return z with its bits mixed, as SplittableRandom does
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+    
+    /**
+     * @param x
+     *            x-coordinate of the first of 64 squares of a row
+     * @param y
+     *            y-coordinate of the row
+     * @return a word whose bit i is set iff square x + i,y is in bound and
+     *         contains a generated mine
+     */
+    private long generatedMines(int x, int y) {
+        long mines = 0;
+        if (0 <= y && y < sizeY) {
+            for (int i = 0; i < Long.SIZE && x + i < sizeX; i++) {
+                if (generatedMine(x + i, y)) {
+                    mines |= 1L << i;
+                }
+            }
+        }
+        return mines;
+    }
+    
+    /**
+     * Counts the mined neighbors of 64 squares of a row at once, with a tree
+     * of carry-save adders over the words of the rows above, at and below it.
+     * Bit i of a word stands for the i-th of its 64 squares; the word west of
+     * a word ends with the square just before its first one, and the word
+     * east of it starts with the square just after its last one.
+     *
+     * @param aboveWest
+     *            mines of the squares west of above
+     * @param above
+     *            mines of the squares above the row
+     * @param aboveEast
+     *            mines of the squares east of above
+     * @param west
+     *            mines of the squares west of the row
+     * @param row
+     *            mines of the squares of the row
+     * @param east
+     *            mines of the squares east of the row
+     * @param belowWest
+     *            mines of the squares west of below
+     * @param below
+     *            mines of the squares below the row
+     * @param belowEast
+     *            mines of the squares east of below
+     * @param planes
+     *            receives the counts, bit i of planes[b] being bit b of the
+     *            count of square i
+     */
+    private static void countMines(long aboveWest, long above, long aboveEast, long west, long row, long east,
+            long belowWest, long below, long belowEast, long[] planes) {
+        // Mines of the eight neighbors of each square, lined up on its bit
+        final long nw = above << 1 | aboveWest >>> 63;
+        final long ne = above >>> 1 | aboveEast << 63;
+        final long w = row << 1 | west >>> 63;
+        final long e = row >>> 1 | east << 63;
+        final long sw = below << 1 | belowWest >>> 63;
+        final long se = below >>> 1 | belowEast << 63;
+        
+        // Sums of the neighbors three by three, as sum and carry bits
+        final long sum1 = nw ^ above ^ ne;
+        final long carry1 = nw & above | ne & (nw ^ above);
+        final long sum2 = w ^ e ^ sw;
+        final long carry2 = w & e | sw & (w ^ e);
+        final long sum3 = below ^ se;
+        final long carry3 = below & se;
+        
+        // Bit 0, then the carries into bit 1, then into bits 2 and 3
+        planes[0] = sum1 ^ sum2 ^ sum3;
+        final long carry0 = sum1 & sum2 | sum3 & (sum1 ^ sum2);
+        final long twos = carry1 ^ carry2 ^ carry3;
+        final long fours = carry1 & carry2 | carry3 & (carry1 ^ carry2);
+        planes[1] = twos ^ carry0;
+        final long carryTwos = twos & carry0;
+        planes[2] = fours ^ carryTwos;
+        planes[3] = fours & carryTwos;
+    }
+    
+    /**
+     * @param planes
+     *            counts of 64 squares, as computed by countMines()
+     * @param i
+     *            index of a square in the word
+     * @return the count of square i
+     */
+    private static int countOf(long[] planes, int i) {
+        return (int) (planes[0] >>> i & 1) | (int) (planes[1] >>> i & 1) << 1 | (int) (planes[2] >>> i & 1) << 2
+                | (int) (planes[3] >>> i & 1) << 3;
+    }
+    
+    /**
+     * Generates a tile of untouched squares with the mines generated from
+     * seed, and their counts.
+     *
+     * @param t
+     *            tile index
+     * @return the new tile
+     */
+    private Tile generateTile(int t) {
+        final int originX = (t % tilesX) << TILE_SHIFT;
+        final int originY = (t / tilesX) << TILE_SHIFT;
+        
+        // Mines of the rows of the tile and of the rows above and below it, at
+        // [j + 1] for row j, with the mine of the square west of each row as
+        // bit 63 of west, and of the square east of it as bit 0 of east
+        final int border = TILE_SIZE + 2;
+        final long[] rows = new long[border];
+        final long[] west = new long[border];
+        final long[] east = new long[border];
+        for (int j = 0; j < border; j++) {
+            rows[j] = generatedMines(originX, originY + j - 1);
+            west[j] = generatedMine(originX - 1, originY + j - 1) ? Long.MIN_VALUE : 0;
+            east[j] = generatedMine(originX + TILE_SIZE, originY + j - 1) ? 1 : 0;
+        }
+        
+        final Tile tile = newTile(t);
+        final long[] planes = new long[COUNT_PLANES];
+        final int width = Math.min(TILE_SIZE, sizeX - originX);
+        final long inBound = width == TILE_SIZE ? -1L : (1L << width) - 1;
+        for (int j = 0; j < TILE_SIZE && originY + j < sizeY; j++) {
+            countMines(west[j], rows[j], east[j], west[j + 1], rows[j + 1], east[j + 1],
+                    west[j + 2], rows[j + 2], east[j + 2], planes);
+            // A new tile's cells are zero, so only squares with a mine or a
+            // mined neighbor are written
+            long nonZero = (rows[j + 1] | planes[0] | planes[1] | planes[2] | planes[3]) & inBound;
+            while (nonZero != 0) {
+                final int i = Long.numberOfTrailingZeros(nonZero);
+                nonZero &= nonZero - 1;
+                final byte mined = (byte) (rows[j + 1] >>> i & MINED);
+                tile.setCell(j * TILE_SIZE + i, (byte) (mined | countOf(planes, i) << COUNT_SHIFT));
+            }
+        }
+        return tile;
+    }
+    
+    /**
+     * The number of mined neighbors of square x,y
+     *
+     * @param x
+     *            x-coordinate of the a square
+     * @param y
+     *            y-coordinate of the square
+     * @return The number of mined neighbors of square x,y if x,y is in bounds;
+     *         else, return 0.
+     */
+    int count(int x, int y) {
+        if (inBound(x, y)) {
+            return count(tileOf(x, y).cell(offset(x, y)));
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Indicates if square at the x,y coordinate in this board contains a bomb.
+     *
+     * @param x
+     *            x-coordinate of the square
+     * @param y
+     *            y-coordinate of the square
+     * @return true if square x,y is in bound and contains a bomb
+     */
+    boolean mined(int x, int y){
+        if(inBound(x, y)) {
+            final Tile tile = tiles.get(tileIndex(x, y));
+            return tile == null ? generatedMine(x, y) : (tile.cell(offset(x, y)) & MINED) != 0;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Initialize a board from a bombs grid. A board of equals size to bombs
+     * will be created with all squares untouched. An square x,y will contain a
+     * bomb if only if bombs contains a 1 in the same location.
+     *
+     * @param sizeX
+     *            The size of the grid along the x-axis
+     * @param sizeY
+     *            The size of the grid along the y-axis
+     * @param bombs
+     *            A sizeX by sizeY grid of newline-separated (\n, \r, or \r\n)
+     *            rows of space-separated 1s and 0s representing the location of
+     *            bombs in a board. A location contains a bomb if and only if it
+     *            contains a 1. The last row may end with a newline.
+     * @throws IllegalArgumentException
+     *             if bombs is not a sizeX by sizeY grid as above
+     */
+    public Board(int sizeX, int sizeY, String bombs) {
+        // Every tile is filled in from bombs, so no mine is generated
+        this(sizeX, sizeY, 0L, 0, -1, BoardStorage.HEAP);
+        if (sizeX == 0 || sizeY == 0) {
+            throw new IllegalArgumentException(String.format("a %d by %d grid has no rows", sizeX, sizeY));
+        }
+        clearTiles();
+        
+        final BoardFiles.Input in = new BoardFiles.Input(bombs);
+        try {
+            BoardFiles.readLines(this, in, 0, sizeY, true);
+            in.expectEnd();
+        } catch (IOException ioe) {
+            throw new AssertionError("strings are read without I/O", ioe);
+        }
+        countNeighbors(0, sizeY);
+    }
+    
+    /**
+     * Make a sizeX by sizeY board of untouched squares with no mines, for a
+     * loader to place mines on with placeMine() before counting them with
+     * countNeighbors(). The board must not be shared until it is counted.
+     *
+     * @param sizeX
+     *            Size of the board along x-axis
+     * @param sizeY
+     *            Size of the board along y-axis
+     * @param storage
+     *            storage of the squares
+     * @return the new board
+     * @throws IllegalArgumentException
+     *             if storage already stores another board
+     */
+    static Board blank(int sizeX, int sizeY, BoardStorage storage) {
+        final Board board = new Board(sizeX, sizeY, 0L, 0, -1, storage);
+        board.clearTiles();
+        return board;
+    }
+    
+    /**
+     * Replace every tile with a tile of untouched squares with no mines. The
+     * mines placed afterwards are counted by countNeighbors().
+     */
+    private void clearTiles() {
+        for (int t = 0; t < tiles.length(); t++) {
+            tiles.set(t, newTile(t));
+        }
+    }
+    
+    /**
+     * Place a mine on a square of a board made by blank(). Threads may place
+     * mines on distinct squares at the same time.
+     *
+     * @param x
+     *            x-coordinate of a square in bounds
+     * @param y
+     *            y-coordinate of a square in bounds
+     */
+    void placeMine(int x, int y) {
+        final Tile tile = tiles.get(tileIndex(x, y));
+        final int i = offset(x, y);
+        tile.setCell(i, (byte) (tile.cell(i) | MINED));
+    }
+    
+    /**
+     * Place the mines and states of a whole row of a board made by blank(),
+     * replacing those placed before. Threads may place distinct rows at the
+     * same time.
+     *
+     * @param y
+     *            y-coordinate of a row in bounds
+     * @param squares
+     *            sizeX values, the one at [x] being ROW_MINED if square x,y
+     *            contains a mine, plus ROW_FLAGGED if it is flagged or ROW_DUG
+     *            if it is dug
+     */
+    void placeRow(int y, byte[] squares) {
+        final int row = (y & TILE_MASK) << TILE_SHIFT;
+        for (int tx = 0; tx < tilesX; tx++) {
+            final int x = tx << TILE_SHIFT;
+            // The values are cells with no count
+            tiles.get(tileIndex(x, y)).copyCells(squares, x, row, Math.min(TILE_SIZE, sizeX - x));
+        }
+    }
+    
+    /**
+     * Set the neighbor counts, and the characters of the flagged and dug
+     * squares, of a range of rows of a board made by blank(), once all its
+     * mines and states are placed, and count them in the board's statistics.
+     * Threads may count distinct ranges at the same time: a count is written
+     * with the MINED bit it already had, so a neighbor reads the same MINED
+     * bit before and after the write.
+     *
+     * @param fromY
+     *            first row to count
+     * @param toY
+     *            row after the last to count
+     */
+    void countNeighbors(int fromY, int toY) {
+        // Mines of rows y - 1, y and y + 1, the word of tile column k at
+        // [k + 1] between words of no mines
+        long[] above = new long[tilesX + 2];
+        long[] rows = new long[tilesX + 2];
+        long[] below = new long[tilesX + 2];
+        addMines(rows, fromY - 1);
+        addMines(below, fromY);
+        final long[] planes = new long[COUNT_PLANES];
+        // Placed mines, dug and flagged squares of the range
+        long mines = 0;
+        long dug = 0;
+        long flagged = 0;
+        for (int y = fromY; y < toY; y++) {
+            final long[] unused = above;
+            above = rows;
+            rows = below;
+            below = unused;
+            addMines(below, y + 1);
+            
+            final int row = (y & TILE_MASK) << TILE_SHIFT;
+            for (int tx = 0; tx < tilesX; tx++) {
+                final int x = tx << TILE_SHIFT;
+                final Tile tile = tiles.get(tileIndex(x, y));
+                final int k = (x >> TILE_SHIFT) + 1;
+                countMines(above[k - 1], above[k], above[k + 1], rows[k - 1], rows[k], rows[k + 1],
+                        below[k - 1], below[k], below[k + 1], planes);
+                mines += Long.bitCount(rows[k]);
+                final int width = Math.min(TILE_SIZE, sizeX - x);
+                for (int i = 0; i < width; i++) {
+                    final byte placed = tile.cell(row + i);
+                    final byte cell = (byte) (placed & (MINED | STATE) | countOf(planes, i) << COUNT_SHIFT);
+                    tile.setCell(row + i, cell);
+                    if ((cell & STATE) != 0) {
+                        tile.setGlyph(row + i, glyph(cell));
+                    }
+                    dug += (cell & DUG) >> 2;
+                    flagged += (cell & FLAGGED) >> 1;
+                }
+            }
+        }
+        
+        startingMines.add(mines);
+        dugSquares.add(dug);
+        flaggedSquares.add(flagged);
+    }
+    
+    /**
+     * Gather the mines of a row of a board made by blank() into words.
+     *
+     * @param words
+     *            receives the mines of tile column k at [k + 1], bit i of
+     *            which is set iff square 64 * k + i,y contains a mine; all
+     *            zero if y is out of bounds
+     * @param y
+     *            y-coordinate of the row
+     */
+    private void addMines(long[] words, int y) {
+        Arrays.fill(words, 0);
+        if (y < 0 || y >= sizeY) {
+            return;
+        }
+        
+        final int row = (y & TILE_MASK) << TILE_SHIFT;
+        for (int tx = 0; tx < tilesX; tx++) {
+            final int x = tx << TILE_SHIFT;
+            final Tile tile = tiles.get(tileIndex(x, y));
+            long mines = 0;
+            for (int i = 0; i < TILE_SIZE && x + i < sizeX; i++) {
+                mines |= (long) (tile.cell(row + i) & MINED) << i;
+            }
+            words[(x >> TILE_SHIFT) + 1] = mines;
+        }
+    }
+    
+    /**
+     * Put a square back in a state it was found in, as when replaying a
+     * journal of the board's changes. A dug square loses its mine, as if it
+     * exploded. Requires no other thread to use the board meanwhile.
+     *
+     * @param x
+     *            x-coordinate of a square in bounds
+     * @param y
+     *            y-coordinate of a square in bounds
+     * @param flagged
+     *            true if the square is flagged
+     * @param dug
+     *            true if the square is dug, requires !(flagged && dug)
+     */
+    void restoreSquare(int x, int y, boolean flagged, boolean dug) {
+        final Tile tile = tileOf(x, y);
+        final int i = offset(x, y);
+        final byte old = tile.cell(i);
+        dugSquares.add(((dug ? DUG : 0) - (old & DUG)) >> 2);
+        flaggedSquares.add(((flagged && !dug ? FLAGGED : 0) - (old & FLAGGED)) >> 1);
+        if (dug && (old & MINED) != 0) {
+            explodedMines.increment();
+            for (int j = y - 1; j <= y + 1; j++) {
+                for (int k = x - 1; k <= x + 1; k++) {
+                    if (inBound(k, j)) {
+                        tileOf(k, j);
+                    }
+                }
+            }
+            tile.setCell(i, (byte) (tile.cell(i) & ~MINED));
+            addToNeighborCounts(x, y, -1);
+        }
+        
+        tile.setCell(i, (byte) (tile.cell(i) & ~STATE | (dug ? DUG : flagged ? FLAGGED : 0)));
+        patch(tile, x, y);
+    }
+    
+    /**
+     * Receives the squares of a board.
+     */
+    @FunctionalInterface
+    interface SquareVisitor {
+        /**
+         * @param x
+         *            x-coordinate of the square
+         * @param y
+         *            y-coordinate of the square
+         * @param mined
+         *            true if the square contains a mine
+         * @param flagged
+         *            true if the square is flagged
+         * @param dug
+         *            true if the square is dug
+         * @throws IOException
+         *             if the visitor fails to record the square
+         */
+        void visit(int x, int y, boolean mined, boolean flagged, boolean dug) throws IOException;
+    }
+    
+    /**
+     * Visit every square of the board, row by row, as a snapshot of the board
+     * at a single point in time. Updates of the board wait for the visit to
+     * finish; the visitor must not update the board itself.
+     *
+     * @param visitor
+     *            visitor of the squares
+     * @throws IOException
+     *             if the visitor throws IOException, ending the visit
+     */
+    void forEachSquare(SquareVisitor visitor) throws IOException {
+        final Scratch scratch = SCRATCH.get();
+        lockGeneratedTiles(scratch);
+        try {
+            while (sumOfLockFreeUpdates(scratch, false) != sumOfLockFreeUpdates(scratch, true)) {
+                Thread.onSpinWait();
+            }
+            
+            for (int y = 0; y < sizeY; y++) {
+                final int row = (y & TILE_MASK) << TILE_SHIFT;
+                for (int tx = 0; tx < tilesX; tx++) {
+                    final int x = tx << TILE_SHIFT;
+                    // A tile generated since the snapshot is still as generated in it
+                    final int t = tileIndex(x, y);
+                    final Tile tile = Arrays.binarySearch(scratch.tiles, 0, scratch.tileCount, t) >= 0 ? tiles.get(t) : null;
+                    for (int i = 0; i < TILE_SIZE && x + i < sizeX; i++) {
+                        if (tile == null) {
+                            visitor.visit(x + i, y, generatedMine(x + i, y), false, false);
+                        } else {
+                            final byte cell = tile.cell(row + i);
+                            visitor.visit(x + i, y, (cell & MINED) != 0, (cell & FLAGGED) != 0, (cell & DUG) != 0);
+                        }
+                    }
+                }
+            }
+        } finally {
+            unlockTiles(scratch);
+        }
+    }
+    
+    /**
+     * Visit every square of the board, row by row, holding back updates of one
+     * tile at a time, and only while the 64 squares of a row of it are read.
+     * Each square is visited in a state it had during the call, but squares
+     * may be read at different points in time, so the visit may not be a
+     * snapshot of the board; updates of the board go on meanwhile. The
+     * visitor must not update the board itself.
+     *
+     * @param visitor
+     *            visitor of the squares
+     * @throws IOException
+     *             if the visitor throws IOException, ending the visit
+     */
+    void forEachSquareTileByTile(SquareVisitor visitor) throws IOException {
+        final byte[] cells = new byte[TILE_SIZE];
+        for (int y = 0; y < sizeY; y++) {
+            final int row = (y & TILE_MASK) << TILE_SHIFT;
+            for (int tx = 0; tx < tilesX; tx++) {
+                final int x = tx << TILE_SHIFT;
+                final int width = Math.min(TILE_SIZE, sizeX - x);
+                final Tile tile = tiles.get(tileIndex(x, y));
+                if (tile == null) {
+                    // Untouched, with the generated mines
+                    for (int i = 0; i < width; i++) {
+                        visitor.visit(x + i, y, generatedMine(x + i, y), false, false);
+                    }
+                    continue;
+                }
+                
+                final long stamp = tile.lock.writeLock();
+                try {
+                    while (tile.lockFreeBegun.get() != tile.lockFreeFinished.get()) {
+                        Thread.onSpinWait();
+                    }
+                    for (int i = 0; i < width; i++) {
+                        cells[i] = tile.cell(row + i);
+                    }
+                } finally {
+                    tile.lock.unlockWrite(stamp);
+                }
+                for (int i = 0; i < width; i++) {
+                    visitor.visit(x + i, y, (cells[i] & MINED) != 0, (cells[i] & FLAGGED) != 0, (cells[i] & DUG) != 0);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write-locks, in ascending order, every generated tile, and leaves them
+     * as scratch's needed tiles. Starts over until no tile was generated
+     * while the locks were being taken.
+     */
+    private void lockGeneratedTiles(Scratch scratch) {
+        for (;;) {
+            scratch.tileCount = 0;
+            for (int t = 0; t < tiles.length(); t++) {
+                if (tiles.get(t) != null) {
+                    scratch.add(t);
+                }
+            }
+            lockTiles(scratch);
+            
+            int generated = 0;
+            for (int t = 0; t < tiles.length(); t++) {
+                if (tiles.get(t) != null) {
+                    generated++;
+                }
+            }
+            if (generated == scratch.tileCount) {
+                return;
+            }
+            unlockTiles(scratch);
+        }
+    }
+    
+    /**
+     * Save the board, with the state of every square, to a binary board file
+     * as specified by BoardFiles. The board is saved as it is at a single
+     * point in time; updates of the board wait for the save to finish.
+     *
+     * @param file
+     *            file to write, replaced if it exists
+     * @throws IOException
+     *             if an error occurs writing the file
+     */
+    public void save(File file) throws IOException {
+        BoardFiles.save(this, file, true);
+    }
+    
+    /**
+     * Create a sizeX by sizeY board populated with bombs at random locations.
+     *
+     * @param sizeX
+     *            Size of the board along x-axis
+     * @param sizeY
+     *            Size of the board along y-axis
+     */
+    public Board(int sizeX, int sizeY) {
+        this(sizeX, sizeY, ThreadLocalRandom.current().nextLong());
+    }
+    
+    /**
+     * Create a sizeX by sizeY board populated with bombs at pseudo-random
+     * locations determined by seed. Boards of the same size made from the
+     * same seed have their bombs in the same locations. The bombs are counted
+     * as the board is made, in time proportional to its squares, so that its
+     * statistics are exact from the start.
+     *
+     * @param sizeX
+     *            Size of the board along x-axis, requires sizeX >= 0
+     * @param sizeY
+     *            Size of the board along y-axis, requires sizeY >= 0
+     * @param seed
+     *            seed of the bomb locations
+     * @throws IllegalArgumentException
+     *             if a size is negative, or the board has more than about 2^43
+     *             squares
+     */
+    public Board(int sizeX, int sizeY, long seed) {
+        this(sizeX, sizeY, seed, DEFAULT_DENSITY, -1, BoardStorage.HEAP);
+    }
+    
+    /**
+     * Create a sizeX by sizeY board populated with bombs at pseudo-random
+     * locations determined by seed, as Board(sizeX, sizeY, seed) does, with
+     * its squares stored in storage.
+     *
+     * @param sizeX
+     *            Size of the board along x-axis, requires sizeX >= 0
+     * @param sizeY
+     *            Size of the board along y-axis, requires sizeY >= 0
+     * @param seed
+     *            seed of the bomb locations
+     * @param storage
+     *            storage of the squares
+     * @throws IllegalArgumentException
+     *             if a size is negative, the board has more than about 2^43
+     *             squares, or storage already stores another board
+     */
+    public Board(int sizeX, int sizeY, long seed, BoardStorage storage) {
+        this(sizeX, sizeY, seed, DEFAULT_DENSITY, -1, storage);
+    }
+    
+    /**
+     * Create a sizeX by sizeY board where each square holds a bomb with
+     * probability density, independently of the others. Bomb locations are
+     * pseudo-random, determined by seed: boards of the same size, density and
+     * seed have their bombs in the same locations. The bombs are counted as
+     * the board is made, as by Board(sizeX, sizeY, seed).
+     * 
+     * @param sizeX
+     *            Size of the board along x-axis, requires sizeX >= 0
+     * @param sizeY
+     *            Size of the board along y-axis, requires sizeY >= 0
+     * @param seed
+     *            seed of the bomb locations
+     * @param density
+     *            probability that a square holds a bomb, requires
+     *            0 <= density <= 1
+     * @return the new board
+     * @throws IllegalArgumentException
+     *             if a size is negative, density is out of range, or the board
+     *             has more than about 2^43 squares
+     */
+    public static Board withDensity(int sizeX, int sizeY, long seed, double density) {
+        if (!(0 <= density && density <= 1)) {
+            throw new IllegalArgumentException("density " + density + " out of range");
+        }
+        return new Board(sizeX, sizeY, seed, density, -1, BoardStorage.HEAP);
+    }
+    
+    /**
+     * Create a sizeX by sizeY board with exactly mines bombs, every set of
+     * that many squares being equally likely to hold them. Bomb locations are
+     * pseudo-random, determined by seed: boards of the same size, number of
+     * bombs and seed have their bombs in the same locations.
+     * 
+     * @param sizeX
+     *            Size of the board along x-axis, requires sizeX >= 0
+     * @param sizeY
+     *            Size of the board along y-axis, requires sizeY >= 0
+     * @param seed
+     *            seed of the bomb locations
+     * @param mines
+     *            number of bombs, requires 0 <= mines <= sizeX * sizeY
+     * @return the new board
+     * @throws IllegalArgumentException
+     *             if a size is negative, mines is out of range, or the board
+     *             has more than about 2^43 squares
+     */
+    public static Board withMineCount(int sizeX, int sizeY, long seed, long mines) {
+        if (mines < 0 || mines > (long) sizeX * sizeY) {
+            throw new IllegalArgumentException(String.format("%d mines do not fit %d by %d squares", mines, sizeX, sizeY));
+        }
+        return new Board(sizeX, sizeY, seed, 0, mines, BoardStorage.HEAP);
+    }
+    
+    /**
+     * @param size
+     *            size of a board along an axis, requires size >= 0
+     * @return the number of tiles along that axis
+     */
+    private static long tiles(int size) {
+        return (size + (long) TILE_SIZE - 1) >> TILE_SHIFT;
+    }
+    
+    /**
+     * Create a sizeX by sizeY board with no square generated yet, stored in
+     * storage. Requires density and mineCount to satisfy the rep invariant.
+     * 
+     * @throws IllegalArgumentException
+     *             if a size is negative, the board has more than about 2^43
+     *             squares or too many to allocate its tiles, or storage
+     *             already stores another board
+     */
+    private Board(int sizeX, int sizeY, long seed, double density, long mineCount, BoardStorage storage) {
+        if (sizeX < 0 || sizeY < 0) {
+            throw new IllegalArgumentException(String.format("negative board size %d by %d", sizeX, sizeY));
+        }
+        final long tileCount = tiles(sizeX) * tiles(sizeY);
+        if (tileCount > MAX_ARRAY_LENGTH) {
+            throw new IllegalArgumentException(String.format("board of %d by %d squares is too large", sizeX, sizeY));
+        }
+        
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.tilesX = (int) tiles(sizeX);
+        try {
+            this.tiles = new AtomicReferenceArray<>((int) tileCount);
+        } catch (OutOfMemoryError oome) {
+            throw new IllegalArgumentException(String.format("board of %d by %d squares is too large for the heap",
+                    sizeX, sizeY), oome);
+        }
+        this.storage = storage;
+        if (storage.isMapped()) {
+            storage.use((int) tileCount, MappedTile.REGION_LENGTH);
+        }
+        this.seed = seed;
+        this.density = density;
+        this.mineCount = mineCount;
+        this.version = new AtomicLong();
+        this.changeLog = new AtomicLongArray(changeLogLength(sizeX, sizeY));
+        this.changeLogVersions = new AtomicLongArray(changeLog.length());
+        startingMines.add(mineCount >= 0 ? mineCount : generatedMineCount());
+    }
+    
+    /**
+     * If x,y are out of bounds, the board's state remains unchanged. If x,y are
+     * in bounds, dig square x,y if untouched, exploding its mine (if there is
+     * one), otherwise leave the state as is.
+     * <p>
+     * Digging square x,y expands through all neighboring squares if none of
+     * those squares contain a bomb, and on through their neighbors in turn.
+     *
+     * @param x
+     *            the x-coordinate of the square in the board.
+     * @param y
+     *            the y-coordinate of the square in the board.
+     * @return true if a mine exploded
+     */
+    public boolean dig(int x, int y) {
+        if (!inBound(x, y)) {
+            return false;
+        }
+        
+        // Fast path: a dig that neither explodes nor expands changes one cell
+        final Tile tile = tileOf(x, y);
+        final int cell = offset(x, y);
+        final StampedLock lock = tile.lock;
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean taken = false;
+            boolean locked = false;
+            beginLockFree(tile);
+            try {
+                // A writer that locked the tile before this update was counted
+                // does not wait for it, so the update must not run
+                locked = !lock.validate(stamp);
+                while (!locked) {
+                    final byte value = tile.cellVolatile(cell);
+                    if ((value & STATE) != 0) {
+                        taken = true;
+                        break;
+                    }
+                    if ((value & MINED) != 0 || count(value) == 0) {
+                        locked = true;
+                        break;
+                    }
+                    if (tile.compareAndSetCell(cell, value, (byte) (value | DUG))) {
+                        dugSquares.increment();
+                        patch(tile, x, y);
+                        break;
+                    }
+                }
+            } finally {
+                endLockFree(tile);
+            }
+            
+            if (taken && !lock.validate(stamp)) {
+                awaitTile(lock);
+            }
+            if (!locked) {
+                return false;
+            }
+        }
+        
+        final Scratch scratch = SCRATCH.get();
+        scratch.tileCount = 0;
+        // The square and the neighbors whose counts an explosion changes
+        addTiles(scratch, x - 1, y - 1, x + 1, y + 1);
+        
+        try {
+            for (;;) {
+                lockTiles(scratch);
+                
+                if ((tile.cell(cell) & STATE) != 0) {
+                    return false;
+                }
+                final boolean exploding = (tile.cell(cell) & MINED) != 0;
+                
+                scratch.plan[0] = position(x, y);
+                if (planDig(scratch, 1, STATE)) {
+                    return applyDig(scratch, x, y, exploding);
+                }
+                
+                unlockTiles(scratch);
+            }
+        } finally {
+            unlockTiles(scratch);
+        }
+    }
+    
+    /**
+     * If x,y are out of bounds, or square x,y is not dug, or the number of
+     * its flagged neighbors differs from the number of its mined neighbors,
+     * the board's state remains unchanged. Otherwise dig every untouched
+     * neighbor of square x,y, exploding the mines of those that have one, as
+     * one atomic update.
+     *
+     * @param x
+     *            the x-coordinate of the square in the board.
+     * @param y
+     *            the y-coordinate of the square in the board.
+     * @return true if a mine exploded
+     */
+    public boolean chord(int x, int y) {
+        if (!inBound(x, y)) {
+            return false;
+        }
+        
+        final Scratch scratch = SCRATCH.get();
+        scratch.tileCount = 0;
+        // The neighbors and the squares whose counts their explosions change
+        addTiles(scratch, x - 2, y - 2, x + 2, y + 2);
+        final long[] seeds = new long[8];
+        
+        try {
+            for (;;) {
+                lockTiles(scratch);
+                // Flags set without the locks must land before the flags are counted
+                while (sumOfLockFreeUpdates(scratch, false) != sumOfLockFreeUpdates(scratch, true)) {
+                    Thread.onSpinWait();
+                }
+                
+                final byte value = tileOf(x, y).cell(offset(x, y));
+                if ((value & DUG) == 0) {
+                    return false;
+                }
+                int flagged = 0;
+                int size = 0;
+                for (int j = Math.max(y - 1, 0); j <= Math.min(y + 1, sizeY - 1); j++) {
+                    for (int i = Math.max(x - 1, 0); i <= Math.min(x + 1, sizeX - 1); i++) {
+                        final byte neighbor = tileOf(i, j).cell(offset(i, j));
+                        if ((neighbor & FLAGGED) != 0) {
+                            flagged++;
+                        } else if ((neighbor & DUG) == 0) {
+                            seeds[size++] = position(i, j);
+                        }
+                    }
+                }
+                if (flagged != count(value) || size == 0) {
+                    return false;
+                }
+                
+                System.arraycopy(seeds, 0, scratch.plan, 0, size);
+                if (planDig(scratch, size, STATE)) {
+                    boolean exploded = false;
+                    for (int k = 0; k < size; k++) {
+                        // A seed dug by the expansion of an earlier one is left as is
+                        final int seedX = positionX(seeds[k]);
+                        final int seedY = positionY(seeds[k]);
+                        exploded |= applyDig(scratch, seedX, seedY, mined(seedX, seedY));
+                    }
+                    return exploded;
+                }
+                
+                unlockTiles(scratch);
+            }
+        } finally {
+            unlockTiles(scratch);
+        }
+    }
+    
+    /**
+     * Applies moves in order, as one atomic update: digs, flags and deflags
+     * the squares as dig(), flag() and deflag() would, one after the other.
+     * Moves out of bounds are skipped. The batch ends with the first dig that
+     * explodes a mine; the moves after it are not applied.
+     *
+     * @param moves
+     *            moves to apply
+     * @param xs
+     *            x-coordinates of the squares of the moves, xs[k] for moves[k]
+     * @param ys
+     *            y-coordinates of the squares of the moves, ys[k] for moves[k]
+     * @param count
+     *            number of moves, the first count entries of each array
+     * @return the index of the dig that exploded a mine, or -1 if no mine
+     *         exploded
+     * @throws IllegalArgumentException
+     *             if an array holds fewer than count entries
+     */
+    public int batch(Move[] moves, int[] xs, int[] ys, int count) {
+        if (count < 0 || moves.length < count || xs.length < count || ys.length < count) {
+            throw new IllegalArgumentException("expected " + count + " moves");
+        }
+        
+        final Scratch scratch = SCRATCH.get();
+        scratch.tileCount = 0;
+        for (int k = 0; k < count; k++) {
+            // The square and, for a dig, the neighbors an explosion changes
+            final int reach = moves[k] == Move.DIG ? 1 : 0;
+            addTiles(scratch, xs[k] - reach, ys[k] - reach, xs[k] + reach, ys[k] + reach);
+        }
+        if (scratch.tileCount == 0) {
+            return -1;
+        }
+        
+        try {
+            for (;;) {
+                lockTiles(scratch);
+                // Flags set without the locks must land before the batch reads them
+                while (sumOfLockFreeUpdates(scratch, false) != sumOfLockFreeUpdates(scratch, true)) {
+                    Thread.onSpinWait();
+                }
+                
+                // An earlier deflag of the batch may open a flagged square to a
+                // later dig, so flagged squares are planned through
+                int seeds = 0;
+                for (int k = 0; k < count; k++) {
+                    if (moves[k] == Move.DIG && inBound(xs[k], ys[k])) {
+                        final Tile tile = tileOf(xs[k], ys[k]);
+                        final int i = offset(xs[k], ys[k]);
+                        if ((tile.cell(i) & (DUG | VISITED)) == 0) {
+                            tile.getAndBitwiseOrCell(i, VISITED);
+                            if (seeds == scratch.plan.length) {
+                                scratch.plan = Arrays.copyOf(scratch.plan, seeds * 2);
+                            }
+                            scratch.plan[seeds++] = position(xs[k], ys[k]);
+                        }
+                    }
+                }
+                
+                if (seeds == 0 || planDig(scratch, seeds, DUG)) {
+                    return applyMoves(scratch, moves, xs, ys, count);
+                }
+                
+                unlockTiles(scratch);
+            }
+        } finally {
+            unlockTiles(scratch);
+        }
+    }
+    
+    /**
+     * Applies moves in order, until a dig explodes a mine. Requires the tiles
+     * of the moves to be write-locked with no lock-free update of them in
+     * progress, and planDig() to have locked every tile the digs need.
+     *
+     * @return the index of the dig that exploded a mine, or -1
+     */
+    private int applyMoves(Scratch scratch, Move[] moves, int[] xs, int[] ys, int count) {
+        for (int k = 0; k < count; k++) {
+            final int x = xs[k];
+            final int y = ys[k];
+            if (!inBound(x, y)) {
+                continue;
+            }
+            
+            final Tile tile = tileOf(x, y);
+            final int i = offset(x, y);
+            final byte value = tile.cell(i);
+            switch (moves[k]) {
+            case DIG:
+                if ((value & STATE) == 0 && applyDig(scratch, x, y, (value & MINED) != 0)) {
+                    return k;
+                }
+                break;
+            case FLAG:
+                if ((value & STATE) == 0) {
+                    tile.getAndBitwiseOrCell(i, FLAGGED);
+                    flaggedSquares.increment();
+                    patch(tile, x, y);
+                }
+                break;
+            case DEFLAG:
+                if ((value & FLAGGED) != 0) {
+                    tile.getAndBitwiseAndCell(i, (byte) ~FLAGGED);
+                    flaggedSquares.decrement();
+                    patch(tile, x, y);
+                }
+                break;
+            default:
+                throw new AssertionError("unknown move " + moves[k]);
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Write-locks the tiles of every square digging some seed squares one
+     * after the other would dig, without changing the state of the board: the
+     * seeds themselves, and every square reachable from them through squares
+     * with no mined neighbors (counted after the explosions of the mined
+     * seeds) that is neither a barrier nor dug. Counts only fall as seeds
+     * explode, so this covers the squares dug whatever the order of the digs.
+     * Requires the seeds to be distinct squares that are neither barriers nor
+     * dug, listed first in scratch.plan, and the tiles of their neighborhoods
+     * to be write-locked.
+     * <p>
+     * The search marks the cells it reaches VISITED and lists them in
+     * scratch.plan after the seeds. It is iterative, so its depth is not
+     * bounded by the thread's stack, and every cell is listed at most once. A
+     * tile the search reaches into is try-locked; if that fails the plan is
+     * abandoned.
+     *
+     * @param seeds
+     *            number of seeds, at least 1
+     * @param barrier
+     *            STATE if flagged squares stop the digs, DUG if the digs may
+     *            go through them
+     * @return true if every tile the digs need is locked, false if some tile
+     *         could not be locked. No cell is left VISITED in either case.
+     */
+    private boolean planDig(Scratch scratch, int seeds, byte barrier) {
+        long[] plan = scratch.plan;
+        int size = seeds;
+        boolean complete = true;
+        boolean exploding = false;
+        
+        for (int k = 0; k < seeds; k++) {
+            final int seedX = positionX(plan[k]);
+            final int seedY = positionY(plan[k]);
+            exploding |= (tileOf(seedX, seedY).getAndBitwiseOrCell(offset(seedX, seedY), VISITED) & MINED) != 0;
+        }
+        
+        for (int head = 0; head < size; head++) {
+            final int cellX = positionX(plan[head]);
+            final int cellY = positionY(plan[head]);
+            final int cellTile = tileIndex(cellX, cellY);
+            int count = count(tile(cellTile).cell(offset(cellX, cellY)));
+            if (exploding && count != 0) {
+                count -= explodingNeighbors(scratch, cellX, cellY);
+            }
+            if (count != 0) {
+                continue;
+            }
+            
+            final int minX = Math.max(cellX - 1, 0);
+            final int maxX = Math.min(cellX + 1, sizeX - 1);
+            final int minY = Math.max(cellY - 1, 0);
+            final int maxY = Math.min(cellY + 1, sizeY - 1);
+            
+            for (int j = minY; j <= maxY; j++) {
+                for (int i = minX; i <= maxX; i++) {
+                    final int neighborTile = tileIndex(i, j);
+                    if (neighborTile != cellTile && !tryLockTile(scratch, neighborTile)) {
+                        complete = false;
+                        continue;
+                    }
+                    
+                    final Tile tile = tile(neighborTile);
+                    final int neighbor = offset(i, j);
+                    if ((tile.cell(neighbor) & (barrier | VISITED)) != 0) {
+                        continue;
+                    }
+                    
+                    tile.getAndBitwiseOrCell(neighbor, VISITED);
+                    if (size == plan.length) {
+                        plan = scratch.plan = Arrays.copyOf(plan, size * 2);
+                    }
+                    plan[size++] = position(i, j);
+                }
+            }
+        }
+        
+        for (int k = 0; k < size; k++) {
+            final int cellX = positionX(plan[k]);
+            final int cellY = positionY(plan[k]);
+            tileOf(cellX, cellY).getAndBitwiseAndCell(offset(cellX, cellY), (byte) ~VISITED);
+        }
+        
+        return complete;
+    }
+    
+    /**
+     * Counts the neighbors of square x,y that are mined seeds of the plan in
+     * progress. Every square planDig() reaches has no mined neighbor but
+     * mined seeds, so a mined neighbor marked VISITED in a tile this thread
+     * holds is a seed; other threads only mark cells of tiles they hold.
+     *
+     * @return the number of mined seeds among the neighbors of square x,y
+     */
+    private int explodingNeighbors(Scratch scratch, int x, int y) {
+        int seeds = 0;
+        for (int j = Math.max(y - 1, 0); j <= Math.min(y + 1, sizeY - 1); j++) {
+            for (int i = Math.max(x - 1, 0); i <= Math.min(x + 1, sizeX - 1); i++) {
+                final int t = tileIndex(i, j);
+                final Tile tile = tiles.get(t);
+                if ((i != x || j != y) && tile != null
+                        && (tile.cell(offset(i, j)) & (MINED | VISITED)) == (MINED | VISITED)) {
+                    final int k = Arrays.binarySearch(scratch.tiles, 0, scratch.tileCount, t);
+                    if (k >= 0 && scratch.stamps[k] != 0) {
+                        seeds++;
+                    }
+                }
+            }
+        }
+        return seeds;
+    }
+    
+    /**
+     * Digs square x,y, exploding its mine if there is one, and expands through
+     * the squares with no mined neighbors. Requires planDig to have locked
+     * every tile the dig needs.
+     *
+     * @param exploding
+     *            true if square x,y is mined
+     * @return true if a mine exploded, false if it did not or if a concurrent
+     *         lock-free operation claimed square x,y first
+     */
+    private boolean applyDig(Scratch scratch, int x, int y, boolean exploding) {
+        final Tile tile = tileOf(x, y);
+        final int start = offset(x, y);
+        for (;;) {
+            final byte value = tile.cellVolatile(start);
+            if ((value & STATE) != 0) {
+                return false;
+            }
+            if (tile.compareAndSetCell(start, value, (byte) (value & ~MINED | DUG))) {
+                dugSquares.increment();
+                patch(tile, x, y);
+                break;
+            }
+        }
+        
+        if (exploding) {
+            explodedMines.increment();
+            addToNeighborCounts(x, y, -1);
+        }
+        if (count(x, y) == 0) {
+            floodFill(scratch, x, y);
+        }
+        
+        return exploding;
+    }
+    
+    /**
+     * Digs every untouched square reachable from square x,y through squares
+     * with no mined neighbors. Requires square x,y to be dug with a mined
+     * neighbor count of zero, and the tiles planned for the dig to be locked.
+     * <p>
+     * Each cell is claimed with a compare-and-set and pushed on the work stack
+     * only by the claim that digs it, so every cell is visited at most once.
+     *
+     * @param x
+     *            x-coordinate of the square from which the fill expands
+     * @param y
+     *            y-coordinate of the square from which the fill expands
+     */
+    private void floodFill(Scratch scratch, int x, int y) {
+        long[] stack = scratch.plan;
+        int size = 0;
+        stack[size++] = position(x, y);
+        
+        while (size > 0) {
+            final long cell = stack[--size];
+            final int cellX = positionX(cell);
+            final int cellY = positionY(cell);
+            final int minX = Math.max(cellX - 1, 0);
+            final int maxX = Math.min(cellX + 1, sizeX - 1);
+            final int minY = Math.max(cellY - 1, 0);
+            final int maxY = Math.min(cellY + 1, sizeY - 1);
+            
+            for (int j = minY; j <= maxY; j++) {
+                for (int i = minX; i <= maxX; i++) {
+                    final Tile tile = tileOf(i, j);
+                    final int neighbor = offset(i, j);
+                    for (;;) {
+                        final byte value = tile.cellVolatile(neighbor);
+                        if ((value & STATE) != 0) {
+                            break;
+                        }
+                        // A square with no mined neighbors cannot border a
+                        // mine, so digging its neighbors never explodes.
+                        if (tile.compareAndSetCell(neighbor, value, (byte) (value | DUG))) {
+                            dugSquares.increment();
+                            patch(tile, i, j);
+                            if (count(value) == 0) {
+                                if (size == stack.length) {
+                                    stack = scratch.plan = Arrays.copyOf(stack, size * 2);
+                                }
+                                stack[size++] = position(i, j);
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * If x,y are out of bounds, the boards' state remains unchanged. If x,y are
+     * in bounds, flag square x,y if untouched, otherwise leave the state as is.
+     *
+     * @param x
+     *            the x-coordinate of the square in the board.
+     * @param y
+     *            the y-coordinate of the square in the board.
+     */
+    public void flag(int x, int y) {
+        if (!inBound(x, y)) {
+            return;
+        }
+        
+        final Tile tile = tileOf(x, y);
+        final int cell = offset(x, y);
+        final StampedLock lock = tile.lock;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean taken = false;
+            boolean locked;
+            beginLockFree(tile);
+            try {
+                // As in dig(), only run if no writer locked the tile first
+                locked = !lock.validate(stamp);
+                while (!locked) {
+                    final byte value = tile.cellVolatile(cell);
+                    if ((value & STATE) != 0) {
+                        taken = true;
+                        break;
+                    }
+                    if (tile.compareAndSetCell(cell, value, (byte) (value | FLAGGED))) {
+                        flaggedSquares.increment();
+                        patch(tile, x, y);
+                        break;
+                    }
+                }
+            } finally {
+                endLockFree(tile);
+            }
+            
+            if (taken && !lock.validate(stamp)) {
+                awaitTile(lock);
+            }
+            if (!locked) {
+                return;
+            }
+        }
+        
+        // Another operation holds the tile; flag once it is done
+        stamp = lock.writeLock();
+        try {
+            if ((tile.cell(cell) & STATE) == 0) {
+                tile.getAndBitwiseOrCell(cell, FLAGGED);
+                flaggedSquares.increment();
+                patch(tile, x, y);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * If x,y are out of bounds, the boards' state remains unchanged. If x,y are
+     * in bounds, deflag square x,y if flagged, otherwise leave the state as is.
+     *
+     * @param x
+     *            the x-coordinate of the square in the board.
+     * @param y
+     *            the y-coordinate of the square in the board.
+     */
+    public void deflag(int x, int y) {
+        if (inBound(x, y)) {
+            final Tile tile = tileOf(x, y);
+            final long stamp = tile.lock.writeLock();
+            try {
+                // Clear atomically, a flag of the same square takes no lock
+                if ((tile.getAndBitwiseAndCell(offset(x, y), (byte) ~FLAGGED) & FLAGGED) != 0) {
+                    flaggedSquares.decrement();
+                    patch(tile, x, y);
+                }
+            } finally {
+                tile.lock.unlockWrite(stamp);
+            }
+        }
+    }
+    
+    /**
+     * Returns a grid of newline-separated (\n) rows of space space-separated
+     * characters, representing the board's state with exactly one character per
+     * each square. The mapping of characters is as follows:
+     * <ul>
+     * <li>"-" denotes an untouched square.</li>
+     * <li>"F" denotes a flagged square.</li>
+     * <li>" " (space) denotes a dug square with 0 neighbors that have a bomb.
+     * </li>
+     * <li>an integer between 1 and 8 denotes a dug square with that many
+     * neighbor that have a bomb.</li>
+     * </ul>
+     *
+     * @throws UnsupportedOperationException
+     *             if the board has too many squares (about 2^30) to fit in a
+     *             string; render windows of it with toString(int, int, int,
+     *             int) instead
+     */
+    @Override
+    public String toString() {
+        return render(0, 0, sizeX, sizeY);
+    }
+    
+    /**
+     * Returns the rows of toString() covering the window of squares x..x +
+     * width - 1 by y..y + height - 1, clipped to the bounds of the board. Takes
+     * time proportional to the size of the window, not of the board.
+     *
+     * @param x
+     *            x-coordinate of the top-left square of the window
+     * @param y
+     *            y-coordinate of the top-left square of the window
+     * @param width
+     *            number of squares of the window along the x-axis
+     * @param height
+     *            number of squares of the window along the y-axis
+     * @return a grid of newline-separated (\n) rows of space-separated
+     *         characters, one per in bound square of the window, as specified
+     *         by toString(); the empty string if the window holds no in bound
+     *         square
+     * @throws UnsupportedOperationException
+     *             if the window has too many in bound squares (about 2^30) to
+     *             fit in a string
+     */
+    public String toString(int x, int y, int width, int height) {
+        final int minX = Math.max(x, 0);
+        final int minY = Math.max(y, 0);
+        final int maxX = (int) Math.min((long) x + width, sizeX);
+        final int maxY = (int) Math.min((long) y + height, sizeY);
+        if (minX >= maxX || minY >= maxY) {
+            return "";
+        }
+        return render(minX, minY, maxX, maxY);
+    }
+    
+    /**
+     * Renders the in bound window minX..maxX - 1 by minY..maxY - 1 as a
+     * snapshot of the board at a single point in time.
+     *
+     * @return the window rendered as specified by toString(int, int, int, int)
+     * @throws UnsupportedOperationException
+     *             if the window is too large to fit in a string
+     */
+    private String render(int minX, int minY, int maxX, int maxY) {
+        if (2L * (maxX - minX) * (maxY - minY) > MAX_ARRAY_LENGTH) {
+            throw new UnsupportedOperationException(String.format(
+                    "window of %d by %d squares is too large to render", maxX - minX, maxY - minY));
+        }
+        
+        final Scratch scratch = SCRATCH.get();
+        scratch.tileCount = 0;
+        addTiles(scratch, minX, minY, maxX - 1, maxY - 1);
+        
+        for (int attempt = 0; attempt < MAX_RENDERS; attempt++) {
+            if (!tryOptimisticReads(scratch)) {
+                continue;
+            }
+            
+            final long finished = sumOfLockFreeUpdates(scratch, true);
+            final long begun = sumOfLockFreeUpdates(scratch, false);
+            if (begun != finished) {
+                continue;
+            }
+            final String rendered = copyViews(minX, minY, maxX, maxY);
+            VarHandle.acquireFence(); // keep the reads of the views before the checks
+            if (validate(scratch) && begun == sumOfLockFreeUpdates(scratch, false)) {
+                return rendered;
+            }
+        }
+        
+        // Updates keep racing the render; exclude them for one render
+        lockTiles(scratch);
+        try {
+            while (sumOfLockFreeUpdates(scratch, false) != sumOfLockFreeUpdates(scratch, true)) {
+                Thread.onSpinWait();
+            }
+            return copyViews(minX, minY, maxX, maxY);
+        } finally {
+            unlockTiles(scratch);
+        }
+    }
+    
+    /**
+     * Takes an optimistic read stamp of each of scratch's needed tiles that is
+     * generated. If a tile is write-locked, waits for it to be released
+     * instead. Leaves no stamp in scratch either way.
+     *
+     * @return true if all stamps were taken
+     */
+    private boolean tryOptimisticReads(Scratch scratch) {
+        for (int k = 0; k < scratch.tileCount; k++) {
+            final Tile tile = tiles.get(scratch.tiles[k]);
+            if (tile == null) {
+                scratch.optimisticStamps[k] = 0;
+                continue;
+            }
+            
+            final long stamp = tile.lock.tryOptimisticRead();
+            if (stamp == 0) {
+                awaitTile(tile.lock);
+                return false;
+            }
+            scratch.optimisticStamps[k] = stamp;
+        }
+        return true;
+    }
+    
+    /**
+     * @return true if none of scratch's needed tiles was generated or
+     *         write-locked since its optimistic stamp was taken
+     */
+    private boolean validate(Scratch scratch) {
+        for (int k = 0; k < scratch.tileCount; k++) {
+            final Tile tile = tiles.get(scratch.tiles[k]);
+            final long stamp = scratch.optimisticStamps[k];
+            if (stamp == 0 ? tile != null : !tile.lock.validate(stamp)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @param finished
+     *            false to sum the lock-free updates begun, true to sum those
+     *            finished
+     * @return the number of lock-free updates begun, or finished, on any of
+     *         scratch's needed tiles that is generated
+     */
+    private long sumOfLockFreeUpdates(Scratch scratch, boolean finished) {
+        long sum = 0;
+        for (int k = 0; k < scratch.tileCount; k++) {
+            final Tile tile = tiles.get(scratch.tiles[k]);
+            if (tile != null) {
+                sum += (finished ? tile.lockFreeFinished : tile.lockFreeBegun).get();
+            }
+        }
+        return sum;
+    }
+    
+    /**
+     * Copies the in bound window minX..maxX - 1 by minY..maxY - 1 out of the
+     * views of the tiles covering it. The result is only meaningful if no cell
+     * of the window changed during the call.
+     *
+     * @return the rendered window
+     */
+    private String copyViews(int minX, int minY, int maxX, int maxY) {
+        final byte[] window = new byte[2 * (maxX - minX) * (maxY - minY)];
+        int length = 0;
+        for (int j = minY; j < maxY; j++) {
+            final int row = (j & TILE_MASK) * UNTOUCHED_ROW.length;
+            for (int i = minX, end; i < maxX; i = end) {
+                final Tile tile = tiles.get(tileIndex(i, j));
+                // In long, as the end of the last tile of a row may exceed Integer.MAX_VALUE
+                end = (int) Math.min(maxX, (i | TILE_MASK) + 1L);
+                final int squares = end - i;
+                if (tile == null) {
+                    System.arraycopy(UNTOUCHED_ROW, 0, window, length, 2 * squares);
+                } else {
+                    tile.copyView(row + 2 * (i & TILE_MASK), window, length, 2 * squares);
+                }
+                length += 2 * squares;
+            }
+            window[length - 1] = '\n';
+        }
+        return new String(window, 0, length - 1, StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * @return the version of the board: the number of changes made to its
+     *         squares since it was created. Versions only increase.
+     */
+    public long version() {
+        return version.get();
+    }
+    
+    /**
+     * Lists the squares changed since version since of the board, as long as
+     * the board still remembers that version.
+     * <p>
+     * The result starts with a line "VERSION COUNT", where VERSION is the
+     * version of the board the changes bring a copy up to, and COUNT the
+     * number of lines that follow. Each following line is "X SPACE Y SPACE
+     * SQUARE", where X,Y is a changed square and SQUARE its current state
+     * written as in toString() (so the line of a dug square with no mined
+     * neighbors ends in two spaces). Lines are "\n"-terminated, except for the
+     * last one. A square may be reported in a state newer than VERSION;
+     * asking again for the changes since VERSION catches it up with whatever
+     * happened in between.
+     *
+     * @param since
+     *            version of the board, as returned by version() or by an
+     *            earlier call
+     * @return the changes since version since, as described above, or null if
+     *         the board no longer remembers, or never reached, version since
+     */
+    public String changesSince(long since) {
+        final ChangedSquares changes = changedSquares(since);
+        if (changes == null) {
+            return null;
+        }
+        
+        final StringBuilder lines = new StringBuilder();
+        lines.append(changes.version()).append(' ').append(changes.count());
+        for (int k = 0; k < changes.count(); k++) {
+            lines.append('\n')
+                 .append(changes.x(k)).append(' ').append(changes.y(k)).append(' ')
+                 .append((char) glyph(changes.cells[k]));
+        }
+        return lines.toString();
+    }
+    
+    /**
+     * Lists the squares changed since version since of the board, as
+     * changesSince() does, without rendering them.
+     *
+     * @param since
+     *            version of the board, as returned by version() or by an
+     *            earlier call
+     * @return the squares changed since version since, or null if the board
+     *         no longer remembers, or never reached, version since
+     */
+    ChangedSquares changedSquares(long since) {
+        final long current = version.get();
+        if (since < 0 || since > current || current - since > changeLog.length()) {
+            return null;
+        }
+        
+        long[] changed = new long[(int) (current - since)];
+        int count = 0;
+        long until = since;
+        for (; until < current; until++) {
+            final int slot = (int) (until & (changeLog.length() - 1));
+            final long tag = changeLogVersions.get(slot);
+            if (tag < until + 1) {
+                break; // not published yet, or being overwritten; report the changes before it
+            }
+            final long position = changeLog.get(slot);
+            if (tag > until + 1 || changeLogVersions.get(slot) != tag) {
+                return null; // overwritten by a newer change
+            }
+            changed[count++] = position;
+        }
+        
+        Arrays.sort(changed, 0, count);
+        final byte[] cells = new byte[count];
+        int distinct = 0;
+        for (int k = 0; k < count; k++) {
+            if (k > 0 && changed[k] == changed[k - 1]) {
+                continue;
+            }
+            final int x = positionX(changed[k]);
+            final int y = positionY(changed[k]);
+            changed[distinct] = changed[k];
+            cells[distinct] = tileOf(x, y).cellVolatile(offset(x, y));
+            distinct++;
+        }
+        return new ChangedSquares(until, changed, cells, distinct);
+    }
+    
+    /**
+     * Squares changed since a version of a board, in row order, each with the
+     * state it had when it was read. Immutable.
+     */
+    static final class ChangedSquares {
+        /** Version of the board the changes bring a copy up to. */
+        private final long version;
+        /** Positions, as by position(), of the changed squares at [0..count - 1]. */
+        private final long[] positions;
+        /** Cells of the changed squares at [0..count - 1], as read. */
+        private final byte[] cells;
+        /** Number of changed squares. */
+        private final int count;
+        
+        /**
+         * Requires positions and cells to be no longer referenced elsewhere.
+         */
+        private ChangedSquares(long version, long[] positions, byte[] cells, int count) {
+            this.version = version;
+            this.positions = positions;
+            this.cells = cells;
+            this.count = count;
+        }
+        
+        /**
+         * @return the version of the board the changes bring a copy up to
+         */
+        long version() {
+            return version;
+        }
+        
+        /**
+         * @return the number of changed squares
+         */
+        int count() {
+            return count;
+        }
+        
+        /**
+         * @return the x-coordinate of changed square k, 0 <= k < count()
+         */
+        int x(int k) {
+            return positionX(positions[k]);
+        }
+        
+        /**
+         * @return the y-coordinate of changed square k, 0 <= k < count()
+         */
+        int y(int k) {
+            return positionY(positions[k]);
+        }
+        
+        /**
+         * @return true if changed square k, 0 <= k < count(), is flagged
+         */
+        boolean flagged(int k) {
+            return (cells[k] & FLAGGED) != 0;
+        }
+        
+        /**
+         * @return true if changed square k, 0 <= k < count(), is dug
+         */
+        boolean dug(int k) {
+            return (cells[k] & DUG) != 0;
+        }
+    }
+    
+    /**
+     * @return Length of the board along x-axis--width.
+     */
+    public int sizeX() {
+        return sizeX;
+    }
+    
+    /**
+     * @return Length of the board along y-axis--height.
+     */
+    public int sizeY() {
+        return sizeY;
+    }
+    
+    /**
+     * @return the number of mines on the board: those it started with, less
+     *         those exploded, in constant time
+     */
+    public long mines() {
+        return startingMines.sum() - explodedMines.sum();
+    }
+    
+    /**
+     * @return the number of flagged squares, in constant time
+     */
+    public long flagged() {
+        return flaggedSquares.sum();
+    }
+    
+    /**
+     * @return the number of untouched squares, in constant time
+     */
+    public long untouched() {
+        return (long) sizeX * sizeY - dugSquares.sum() - flaggedSquares.sum();
+    }
+    
+    /**
+     * @return the number of squares without a mine left to dig, in constant
+     *         time; the game is won once there are none
+     */
+    public long safeSquaresLeft() {
+        return (long) sizeX * sizeY - mines() - dugSquares.sum();
     }
 
 }
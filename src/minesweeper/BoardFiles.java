@@ -0,0 +1,929 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Loads boards from board files. A board file is specified by the following
+ * grammar:
+ * <pre>
+ *   FILE ::= BOARD LINE+
+ *   BOARD ::= X SPACE Y NEWLINE
+ *   LINE ::= (VAL SPACE)* VAL NEWLINE
+ *   VAL ::= 0 | 1
+ *   X ::= INT
+ *   Y ::= INT
+ *   SPACE ::= " "
+ *   NEWLINE ::= "\n" | "\r" "\n"?
+ *   INT ::= [0-9]+
+ * </pre>
+ * The file must hold Y lines of X values each, and a VAL of 1 places a mine
+ * on its square.
+ * <p>
+ * A board file may instead be binary, as written by save(). All its integers
+ * are 4 bytes, most significant byte first:
+ * <pre>
+ *   MAGIC      "MSWB"
+ *   VERSION    1
+ *   X          size of the board along the x-axis
+ *   Y          size of the board along the y-axis
+ *   FLAGS      1 if the file holds the states of the squares, else 0
+ *   MINES      X * Y bits, one per square
+ *   STATES     X * Y 2-bit fields, one per square, only if FLAGS is 1:
+ *              0 if the square is untouched, 1 if flagged, 2 if dug
+ * </pre>
+ * Square x,y is number n = y * X + x. Its mine bit is bit n % 8 (counting
+ * from the least significant) of byte n / 8 of MINES, set if the square
+ * contains a mine, and its state field is bits 2 * (n % 4) and up of byte
+ * n / 4 of STATES. MINES and STATES each take a whole number of bytes; unused
+ * bits at their end are zero. load() tells the formats apart by MAGIC, which
+ * no text board file starts with.
+ * <p>
+ * Text files are parsed in a single pass straight into the board's squares,
+ * without building a string of the file's contents; binary files are read
+ * through memory mappings. When every line of a large text file ends in the
+ * same kind of newline, or the file is binary, the rows are split in ranges
+ * loaded by several threads.
+ */
+public final class BoardFiles {
+    /** Size in bytes of the buffer each parsing thread reads the file through. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Smallest number of bytes of the file worth handing to a thread of its own. */
+    private static final long MIN_BYTES_PER_THREAD = 1 << 20;
+    /** First bytes of a binary board file, "MSWB". */
+    private static final int MAGIC = 0x4D535742;
+    /** Version of the binary format written by save(). */
+    private static final int VERSION = 1;
+    /** Length in bytes of the header of a binary board file. */
+    private static final int HEADER_LENGTH = 5 * Integer.BYTES;
+    /** Bit of FLAGS set if a binary board file holds the states of the squares. */
+    private static final int WITH_STATES = 1;
+    /** State field of an untouched square. */
+    private static final int UNTOUCHED = 0;
+    /** State field of a flagged square. */
+    private static final int FLAGGED = 1;
+    /** State field of a dug square. */
+    private static final int DUG = 2;
+    /** Largest number of bytes of a binary board file mapped at once. */
+    private static final int MAX_MAPPING = 1 << 30;
+    
+    // Thread safety argument:
+    //  Each thread loading a range of rows has its own Input or Bits, and only
+    //  places mines and states on the squares of its rows. The board is not
+    //  shared until every thread has been joined.
+    
+    private BoardFiles() {
+        // not instantiable
+    }
+    
+    /**
+     * Load a board from a text or binary board file, with as many threads as
+     * there are processors when the file is large enough.
+     *
+     * @param file
+     *            board file, as specified above
+     * @return a board with the mines of the file, and the states of its
+     *         squares if it holds them; otherwise all squares are untouched
+     * @throws IOException
+     *             if an error occurs reading the file
+     * @throws IllegalArgumentException
+     *             if the file is not a board file as specified above
+     */
+    public static Board load(File file) throws IOException {
+        return load(file, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Load a board from a text or binary board file into a storage, with as
+     * many threads as there are processors when the file is large enough.
+     *
+     * @param file
+     *            board file, as specified above
+     * @param storage
+     *            storage of the board's squares
+     * @return a board with the mines of the file, and the states of its
+     *         squares if it holds them; otherwise all squares are untouched
+     * @throws IOException
+     *             if an error occurs reading the file
+     * @throws IllegalArgumentException
+     *             if the file is not a board file as specified above, or
+     *             storage already stores another board
+     */
+    public static Board load(File file, BoardStorage storage) throws IOException {
+        return load(file, Runtime.getRuntime().availableProcessors(), storage);
+    }
+    
+    /**
+     * Load a board from a text or binary board file.
+     *
+     * @param file
+     *            board file, as specified above
+     * @param parallelism
+     *            maximum number of threads loading the file, requires
+     *            parallelism >= 1
+     * @return a board with the mines of the file, and the states of its
+     *         squares if it holds them; otherwise all squares are untouched
+     * @throws IOException
+     *             if an error occurs reading the file
+     * @throws IllegalArgumentException
+     *             if the file is not a board file as specified above
+     */
+    public static Board load(File file, int parallelism) throws IOException {
+        return load(file, parallelism, BoardStorage.HEAP);
+    }
+    
+    /**
+     * Load a board from a text or binary board file into a storage.
+     *
+     * @param file
+     *            board file, as specified above
+     * @param parallelism
+     *            maximum number of threads loading the file, requires
+     *            parallelism >= 1
+     * @param storage
+     *            storage of the board's squares
+     * @return a board with the mines of the file, and the states of its
+     *         squares if it holds them; otherwise all squares are untouched
+     * @throws IOException
+     *             if an error occurs reading the file
+     * @throws IllegalArgumentException
+     *             if the file is not a board file as specified above, or
+     *             storage already stores another board
+     */
+    public static Board load(File file, int parallelism, BoardStorage storage) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+        }
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) >= 0) {
+                // keep reading until the magic is read or the file ends
+            }
+            if (!magic.hasRemaining() && magic.getInt(0) == MAGIC) {
+                return loadBinary(channel, parallelism, storage);
+            }
+            return loadText(channel, parallelism, storage);
+        }
+    }
+    
+    /**
+     * Load a board from a text board file.
+     *
+     * @param channel
+     *            text board file
+     * @param parallelism
+     *            maximum number of threads parsing the file
+     * @param storage
+     *            storage of the board's squares
+     * @return a board of untouched squares with the mines of the file
+     * @throws IOException
+     *             if an error occurs reading the file
+     * @throws IllegalArgumentException
+     *             if the file does not follow the grammar above, or holds
+     *             other than Y lines of X values
+     */
+    private static Board loadText(FileChannel channel, int parallelism, BoardStorage storage) throws IOException {
+        final long length = channel.size();
+        final Input in = new Input(channel, 0, length);
+        final int sizeX = in.readInt();
+        in.expect(' ', "a space");
+        final int sizeY = in.readInt();
+        in.readNewline();
+        if (sizeX == 0 || sizeY == 0) {
+            throw new IllegalArgumentException(String.format("a %d by %d board has no lines", sizeX, sizeY));
+        }
+        
+        // Every line takes at least two bytes per value; refuse to allocate
+        // a board the file is too short to describe
+        final long header = in.offset();
+        final long shortestLine = 2L * sizeX;
+        if (length - header < shortestLine * sizeY) {
+            throw new IllegalArgumentException(
+                    String.format("%d bytes are too few for %d lines of %d values", length - header, sizeY, sizeX));
+        }
+        
+        final Board board = Board.blank(sizeX, sizeY, storage);
+        final int threads = (int) Math.min(Math.min(parallelism, sizeY), 1 + length / MIN_BYTES_PER_THREAD);
+        final long stride = threads > 1 ? stride(channel, header, sizeX) : -1;
+        if (stride > 0 && header + stride * sizeY == length) {
+            // Every line is stride bytes long, so line y starts at
+            // header + y * stride
+            forEachRange(sizeY, threads, (fromY, toY) -> {
+                final Input lines = new Input(channel, header + fromY * stride, header + toY * stride);
+                readLines(board, lines, fromY, toY, false);
+                lines.expectEnd();
+            });
+        } else {
+            readLines(board, in, 0, sizeY, false);
+            in.expectEnd();
+        }
+        
+        forEachRange(sizeY, threads, board::countNeighbors);
+        return board;
+    }
+    
+    /**
+     * Load a board from a binary board file.
+     *
+     * @param channel
+     *            binary board file
+     * @param parallelism
+     *            maximum number of threads reading the file
+     * @param storage
+     *            storage of the board's squares
+     * @return a board with the mines of the file, and the states of its
+     *         squares if it holds them
+     * @throws IOException
+     *             if an error occurs reading the file
+     * @throws IllegalArgumentException
+     *             if the file is not a binary board file as specified above
+     */
+    private static Board loadBinary(FileChannel channel, int parallelism, BoardStorage storage) throws IOException {
+        final long length = channel.size();
+        if (length < HEADER_LENGTH) {
+            throw new IllegalArgumentException(String.format("%d bytes are too few for a header", length));
+        }
+        
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // keep reading until the header is read
+        }
+        final int version = header.getInt(Integer.BYTES);
+        final int sizeX = header.getInt(2 * Integer.BYTES);
+        final int sizeY = header.getInt(3 * Integer.BYTES);
+        final int flags = header.getInt(4 * Integer.BYTES);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported binary board file version " + version);
+        }
+        if (sizeX < 0 || sizeY < 0) {
+            throw new IllegalArgumentException(String.format("a board cannot be %d by %d", sizeX, sizeY));
+        }
+        if ((flags & ~WITH_STATES) != 0) {
+            throw new IllegalArgumentException(String.format("unknown flags 0x%x", flags));
+        }
+        
+        final long squares = (long) sizeX * sizeY;
+        final long minesLength = (squares + 7) / 8;
+        final long statesLength = (flags & WITH_STATES) != 0 ? (squares + 3) / 4 : 0;
+        if (length != HEADER_LENGTH + minesLength + statesLength) {
+            throw new IllegalArgumentException(String.format("a %d by %d board takes %d bytes, not %d", sizeX, sizeY,
+                    HEADER_LENGTH + minesLength + statesLength, length));
+        }
+        
+        final Board board = Board.blank(sizeX, sizeY, storage);
+        final int threads = (int) Math.max(1, Math.min(Math.min(parallelism, sizeY), 1 + length / MIN_BYTES_PER_THREAD));
+        forEachRange(sizeY, threads, (fromY, toY) -> {
+            final Bits mines = new Bits(channel, HEADER_LENGTH, minesLength, 1);
+            final Bits states = statesLength == 0 ? null : new Bits(channel, HEADER_LENGTH + minesLength, statesLength, 2);
+            final byte[] row = new byte[sizeX];
+            final byte[] rowStates = new byte[sizeX];
+            for (int y = fromY; y < toY; y++) {
+                final long n = (long) y * sizeX;
+                mines.get(n, row, sizeX);
+                for (int x = 0; x < sizeX; x++) {
+                    row[x] = row[x] == 0 ? 0 : Board.ROW_MINED;
+                }
+                if (states != null) {
+                    states.get(n, rowStates, sizeX);
+                    for (int x = 0; x < sizeX; x++) {
+                        switch (rowStates[x]) {
+                        case UNTOUCHED:
+                            break;
+                        case FLAGGED:
+                            row[x] |= Board.ROW_FLAGGED;
+                            break;
+                        case DUG:
+                            if (row[x] != 0) {
+                                throw new IllegalArgumentException(String.format("dug square %d,%d contains a mine", x, y));
+                            }
+                            row[x] = Board.ROW_DUG;
+                            break;
+                        default:
+                            throw new IllegalArgumentException(String.format("square %d,%d has no valid state", x, y));
+                        }
+                    }
+                }
+                board.placeRow(y, row);
+            }
+        });
+        
+        forEachRange(sizeY, threads, board::countNeighbors);
+        return board;
+    }
+    
+    /**
+     * Save a board to a binary board file. The file is written in full under
+     * another name first, then renamed, so it is never left half written.
+     *
+     * @param board
+     *            board to save, as it is at a single point in time; updates of
+     *            the board wait for the save to finish
+     * @param file
+     *            file to write, replaced if it exists
+     * @param withStates
+     *            true to save the states of the squares as well as their mines
+     * @throws IOException
+     *             if an error occurs writing the file
+     */
+    public static void save(Board board, File file, boolean withStates) throws IOException {
+        save(board, file, withStates, true);
+    }
+    
+    /**
+     * Save a board to a binary board file, as save(Board, File, boolean) does,
+     * either as it is at a single point in time, or tile by tile as by
+     * Board.forEachSquareTileByTile(), holding back updates of the board only
+     * a tile at a time.
+     *
+     * @param board
+     *            board to save
+     * @param file
+     *            file to write, replaced if it exists
+     * @param withStates
+     *            true to save the states of the squares as well as their mines
+     * @param atOnce
+     *            true to save the board at a single point in time, false to
+     *            save it tile by tile
+     * @throws IOException
+     *             if an error occurs writing the file
+     */
+    static void save(Board board, File file, boolean withStates, boolean atOnce) throws IOException {
+        final long squares = (long) board.sizeX() * board.sizeY();
+        final Path temporary = Paths.get(file.getPath() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final Output header = new Output(channel, 0, Integer.SIZE);
+                header.put(MAGIC);
+                header.put(VERSION);
+                header.put(board.sizeX());
+                header.put(board.sizeY());
+                header.put(withStates ? WITH_STATES : 0);
+                header.flush();
+                
+                final Output mines = new Output(channel, HEADER_LENGTH, 1);
+                final Output states = withStates ? new Output(channel, HEADER_LENGTH + (squares + 7) / 8, 2) : null;
+                final Board.SquareVisitor visitor = (x, y, mined, flagged, dug) -> {
+                    mines.put(mined ? 1 : 0);
+                    if (states != null) {
+                        states.put(dug ? DUG : flagged ? FLAGGED : UNTOUCHED);
+                    }
+                };
+                if (atOnce) {
+                    board.forEachSquare(visitor);
+                } else {
+                    board.forEachSquareTileByTile(visitor);
+                }
+                mines.flush();
+                if (states != null) {
+                    states.flush();
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+    
+    /**
+     * Parse lines of values into a board, placing a mine on the square of each
+     * 1.
+     *
+     * @param board
+     *            board to place the mines on, as by Board.blank()
+     * @param in
+     *            input positioned at the start of line fromY
+     * @param fromY
+     *            first line to parse
+     * @param toY
+     *            line after the last to parse
+     * @param lastNewlineOptional
+     *            true if line toY - 1 may end at the end of the input without
+     *            a newline
+     * @throws IOException
+     *             if an error occurs reading the input
+     * @throws IllegalArgumentException
+     *             if the input is not a line of board.sizeX() values, as
+     *             specified by LINE above, for each line from fromY to toY
+     */
+    static void readLines(Board board, Input in, int fromY, int toY, boolean lastNewlineOptional) throws IOException {
+        final int sizeX = board.sizeX();
+        for (int y = fromY; y < toY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                if (x > 0) {
+                    in.expect(' ', "a space");
+                }
+                final int value = in.read();
+                if (value == '1') {
+                    board.placeMine(x, y);
+                } else if (value != '0') {
+                    throw in.unexpected(value, "0 or 1");
+                }
+            }
+            
+            if (y < toY - 1 || !lastNewlineOptional || in.peek() != -1) {
+                in.readNewline();
+            }
+        }
+    }
+    
+    /**
+     * @param channel
+     *            board file
+     * @param header
+     *            offset of the first line
+     * @param sizeX
+     *            number of values per line
+     * @return length in bytes of the first line if its newline is present,
+     *         else -1
+     * @throws IOException
+     *             if an error occurs reading the file
+     */
+    private static long stride(FileChannel channel, long header, int sizeX) throws IOException {
+        final long newline = header + 2L * sizeX - 1;
+        final Input in = new Input(channel, newline, Math.min(newline + 2, channel.size()));
+        final int first = in.read();
+        if (first == '\n' || first == '\r' && in.peek() != '\n') {
+            return newline + 1 - header;
+        } else if (first == '\r') {
+            return newline + 2 - header;
+        }
+        return -1;
+    }
+    
+    /**
+     * Work on a range of lines.
+     */
+    @FunctionalInterface
+    private interface LineRange {
+        /**
+         * @param fromY
+         *            first line of the range
+         * @param toY
+         *            line after the last of the range
+         * @throws IOException
+         *             if an error occurs reading the lines
+         */
+        void run(int fromY, int toY) throws IOException;
+    }
+    
+    /**
+     * Split lines 0 to sizeY in contiguous ranges and run work on each, in
+     * parallel, returning once all are done.
+     *
+     * @param sizeY
+     *            number of lines
+     * @param threads
+     *            number of ranges, requires 1 <= threads <= sizeY
+     * @param work
+     *            work to run on each range
+     * @throws IOException
+     *             if work threw an IOException on any range, or the calling
+     *             thread was interrupted
+     */
+    private static void forEachRange(int sizeY, int threads, LineRange work) throws IOException {
+        final Thread[] workers = new Thread[threads - 1];
+        final RuntimeException[] failures = new RuntimeException[threads];
+        for (int k = 1; k < threads; k++) {
+            final int range = k;
+            workers[k - 1] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        work.run(from(sizeY, threads, range), from(sizeY, threads, range + 1));
+                    } catch (IOException ioe) {
+                        failures[range] = new UncheckedIOException(ioe);
+                    } catch (RuntimeException re) {
+                        failures[range] = re;
+                    }
+                }
+            });
+            workers[k - 1].start();
+        }
+        
+        try {
+            work.run(0, from(sizeY, threads, 1));
+        } catch (RuntimeException re) {
+            failures[0] = re;
+        } finally {
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while loading a board");
+                }
+            }
+        }
+        
+        for (RuntimeException failure : failures) {
+            if (failure instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) failure).getCause();
+            } else if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+    
+    /**
+     * @return first line of range k of sizeY lines split in threads ranges
+     */
+    private static int from(int sizeY, int threads, int k) {
+        return (int) ((long) sizeY * k / threads);
+    }
+    
+    /**
+     * Fixed-width fields of a section of a binary board file, read through a
+     * memory mapping of the file.
+     */
+    private static final class Bits {
+        private final FileChannel channel;
+        /** Offset in the file of the section. */
+        private final long start;
+        /** Length in bytes of the section. */
+        private final long length;
+        /** Width in bits of a field, a power of two no larger than 8. */
+        private final int width;
+        /** Mapping of part of the section. */
+        private ByteBuffer mapping = ByteBuffer.allocate(0);
+        /** Offset in the section of the first byte of mapping. */
+        private long mappingStart;
+        
+        // Rep invariant:
+        //  mappingStart + mapping.limit() <= length
+        // Abstraction function:
+        //  represents the fields of the length bytes of channel from start on,
+        //  field n taking bits (n * width) % 8 and up of byte n * width / 8
+        
+        /**
+         * Make a reader of the fields of a section of a file.
+         *
+         * @param channel
+         *            file to read, never closed by the reader
+         * @param start
+         *            offset in the file of the section
+         * @param length
+         *            length in bytes of the section
+         * @param width
+         *            width in bits of a field, 1, 2, 4 or 8
+         */
+        Bits(FileChannel channel, long start, long length, int width) {
+            this.channel = channel;
+            this.start = start;
+            this.length = length;
+            this.width = width;
+        }
+        
+        /**
+         * Read consecutive fields.
+         *
+         * @param n
+         *            index within the section of the first field to read
+         * @param fields
+         *            array receiving the value of field n + k at [k]
+         * @param count
+         *            number of fields to read
+         * @throws IOException
+         *             if an error occurs mapping the file
+         */
+        void get(long n, byte[] fields, int count) throws IOException {
+            final int mask = (1 << width) - 1;
+            int k = 0;
+            while (k < count) {
+                final long bit = (n + k) * width;
+                int value = byteAt(bit >>> 3) >>> (bit & 7);
+                for (int b = (int) (bit & 7); b < Byte.SIZE && k < count; b += width, k++) {
+                    fields[k] = (byte) (value & mask);
+                    value >>>= width;
+                }
+            }
+        }
+        
+        /**
+         * @param index
+         *            offset of a byte within the section
+         * @return the byte, as an unsigned value
+         * @throws IOException
+         *             if an error occurs mapping the file
+         */
+        private int byteAt(long index) throws IOException {
+            if (index < mappingStart || index - mappingStart >= mapping.limit()) {
+                mappingStart = index;
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, start + mappingStart,
+                        Math.min(MAX_MAPPING, length - mappingStart));
+            }
+            return mapping.get((int) (index - mappingStart)) & 0xFF;
+        }
+    }
+    
+    /**
+     * Fixed-width fields written in sequence to a file, through a buffer.
+     */
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        /** Offset in the file of the first byte of buffer. */
+        private long position;
+        /** Width in bits of a field, a power of two no larger than 32. */
+        private final int width;
+        /** Fields put since the last whole byte was buffered. */
+        private int pending;
+        /** Number of bits in pending. */
+        private int pendingBits;
+        
+        // Rep invariant:
+        //  0 <= pendingBits < 8, and pending has no bits set from pendingBits on
+        // Abstraction function:
+        //  represents the fields written from position on: those in buffer,
+        //  followed by the pendingBits low bits of pending
+        
+        /**
+         * Make a writer of fields to a file.
+         *
+         * @param channel
+         *            file to write, never closed by the writer
+         * @param position
+         *            offset in the file of the first field
+         * @param width
+         *            width in bits of a field, 1, 2, 4, 8 or 32; fields of 32
+         *            bits are written most significant byte first
+         */
+        Output(FileChannel channel, long position, int width) {
+            this.channel = channel;
+            this.position = position;
+            this.width = width;
+        }
+        
+        /**
+         * Write the next field.
+         *
+         * @param field
+         *            value of the field, requires 0 <= field < 2^width unless
+         *            width is 32
+         * @throws IOException
+         *             if an error occurs writing the file
+         */
+        void put(int field) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) {
+                drain();
+            }
+            if (width == Integer.SIZE) {
+                buffer.putInt(field);
+                return;
+            }
+            
+            pending |= field << pendingBits;
+            pendingBits += width;
+            if (pendingBits == Byte.SIZE) {
+                buffer.put((byte) pending);
+                pending = 0;
+                pendingBits = 0;
+            }
+        }
+        
+        /**
+         * Write out every field put, padding the last byte with zero bits.
+         *
+         * @throws IOException
+         *             if an error occurs writing the file
+         */
+        void flush() throws IOException {
+            if (pendingBits > 0) {
+                buffer.put((byte) pending);
+                pending = 0;
+                pendingBits = 0;
+            }
+            drain();
+        }
+        
+        /**
+         * Write out the buffer.
+         *
+         * @throws IOException
+         *             if an error occurs writing the file
+         */
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+    
+    /**
+     * Bytes read from a range of a file, or from a string, through a buffer.
+     */
+    static final class Input {
+        /** File read from, or null if the buffer holds the whole input. */
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        /** Offset in the input of the first byte of the buffer. */
+        private long bufferStart;
+        /** Offset in the input of the end of the range read. */
+        private final long end;
+        
+        // Rep invariant:
+        //  bufferStart + buffer.limit() <= end
+        //  if channel is null, bufferStart == 0 and buffer.limit() == end
+        // Abstraction function:
+        //  represents the bytes of channel, or of buffer if channel is null,
+        //  from offset bufferStart + buffer.position() to end
+        
+        /**
+         * Make an input reading a range of a file.
+         *
+         * @param channel
+         *            file to read, never closed by the input
+         * @param start
+         *            offset of the first byte to read
+         * @param end
+         *            offset after the last byte to read
+         */
+        Input(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(BUFFER_SIZE, end - start)));
+            this.buffer.limit(0);
+            this.bufferStart = start;
+            this.end = end;
+        }
+        
+        /**
+         * Make an input reading the characters of a string, each as one byte.
+         *
+         * @param text
+         *            string to read
+         */
+        Input(String text) {
+            this.channel = null;
+            this.buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+            this.bufferStart = 0;
+            this.end = buffer.limit();
+        }
+        
+        /**
+         * @return offset in the input of the next byte to read
+         */
+        long offset() {
+            return bufferStart + buffer.position();
+        }
+        
+        /**
+         * Refill the buffer with the bytes following it.
+         *
+         * @return true if the buffer has bytes left to read
+         * @throws IOException
+         *             if an error occurs reading the file
+         */
+        private boolean fill() throws IOException {
+            final long next = bufferStart + buffer.limit();
+            if (channel == null || next >= end) {
+                return false;
+            }
+            
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - next));
+            while (buffer.hasRemaining() && channel.read(buffer, next + buffer.position()) >= 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+            buffer.flip();
+            bufferStart = next;
+            return buffer.hasRemaining();
+        }
+        
+        /**
+         * @return the next byte of the input, consumed, or -1 at its end
+         * @throws IOException
+         *             if an error occurs reading the file
+         */
+        int read() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+        
+        /**
+         * @return the next byte of the input, not consumed, or -1 at its end
+         * @throws IOException
+         *             if an error occurs reading the file
+         */
+        int peek() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buffer.get(buffer.position()) & 0xFF;
+        }
+        
+        /**
+         * Consume the next byte, which must be expected.
+         *
+         * @param expected
+         *            expected byte
+         * @param description
+         *            description of expected for the error message
+         * @throws IOException
+         *             if an error occurs reading the file
+         * @throws IllegalArgumentException
+         *             if the next byte is not expected
+         */
+        void expect(char expected, String description) throws IOException {
+            final int actual = read();
+            if (actual != expected) {
+                throw unexpected(actual, description);
+            }
+        }
+        
+        /**
+         * Consume a NEWLINE, as specified by the grammar above.
+         *
+         * @throws IOException
+         *             if an error occurs reading the file
+         * @throws IllegalArgumentException
+         *             if the input does not continue with a newline
+         */
+        void readNewline() throws IOException {
+            final int actual = read();
+            if (actual == '\r') {
+                if (peek() == '\n') {
+                    read();
+                }
+            } else if (actual != '\n') {
+                throw unexpected(actual, "a newline");
+            }
+        }
+        
+        /**
+         * Consume an INT, as specified by the grammar above.
+         *
+         * @return its value
+         * @throws IOException
+         *             if an error occurs reading the file
+         * @throws IllegalArgumentException
+         *             if the input does not continue with an INT, or it is
+         *             larger than Integer.MAX_VALUE
+         */
+        int readInt() throws IOException {
+            int digit = read();
+            if (digit < '0' || digit > '9') {
+                throw unexpected(digit, "a digit");
+            }
+            
+            long value = digit - '0';
+            for (digit = peek(); digit >= '0' && digit <= '9'; digit = peek()) {
+                read();
+                value = value * 10 + digit - '0';
+                if (value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("size at byte " + (offset() - 1) + " is too large");
+                }
+            }
+            return (int) value;
+        }
+        
+        /**
+         * @throws IOException
+         *             if an error occurs reading the file
+         * @throws IllegalArgumentException
+         *             if there is input left
+         */
+        void expectEnd() throws IOException {
+            final int actual = read();
+            if (actual != -1) {
+                throw unexpected(actual, "the end of the input");
+            }
+        }
+        
+        /**
+         * @param actual
+         *            byte just read, or -1 if the input ended
+         * @param expected
+         *            description of the byte expected instead
+         * @return an exception reporting that actual was found where expected
+         *         should have been
+         */
+        IllegalArgumentException unexpected(int actual, String expected) {
+            if (actual == -1) {
+                return new IllegalArgumentException(
+                        String.format("expected %s at byte %d but the input ended", expected, offset()));
+            }
+            
+            final String found = actual >= ' ' && actual < 0x7F ? "'" + (char) actual + "'" : String.format("byte 0x%02x", actual);
+            return new IllegalArgumentException(String.format("expected %s at byte %d but found %s", expected, offset() - 1, found));
+        }
+    }
+}
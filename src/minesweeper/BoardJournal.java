@@ -0,0 +1,688 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal keeping a board recoverable from a directory, so that
+ * a restarted server resumes the game where it stopped.
+ * <p>
+ * The directory holds generations of a snapshot of the board, a binary board
+ * file as specified by BoardFiles, and a journal of the squares changed
+ * since. Journal generation G starts before snapshot G is taken, so the
+ * snapshot followed by the journals of generation G and later is the board.
+ * A new generation is started whenever the journal grows past
+ * SNAPSHOT_THRESHOLD bytes, and older ones are deleted once its snapshot is
+ * saved.
+ * <p>
+ * A journal is a sequence of batches: a 4-byte length, the 4-byte CRC-32 of
+ * the batch's entries, then the entries, each a 4-byte x, a 4-byte y and a
+ * 1-byte state (0 untouched, 1 flagged, 2 dug) of a changed square. Integers
+ * are written most significant byte first. Recovery stops at the first
+ * batch cut short or failing its CRC, as the one being written when the
+ * process died.
+ * <p>
+ * Changes are recorded with group commit: each record() waits for its batch
+ * to be forced to disk, and one thread forces the batches of every thread
+ * that recorded in the meantime at once.
+ * <p>
+ * Snapshots are saved by a thread of the journal's own, tile by tile, so that
+ * updates of the board are only held back for a tile at a time while one is
+ * saved. A snapshot is also how changes are recorded when more of them are
+ * pending than the board remembers, as after one large flood fill: record()
+ * then waits for a new generation to be saved instead of appending a batch.
+ */
+public final class BoardJournal implements Closeable {
+    /** Size in bytes past which the journal starts a new generation with a snapshot. */
+    private static final long SNAPSHOT_THRESHOLD = 64L << 20;
+    /** Length in bytes of the length and CRC-32 preceding the entries of a batch. */
+    private static final int BATCH_HEADER_LENGTH = 2 * Integer.BYTES;
+    /** Length in bytes of an entry of a batch. */
+    private static final int ENTRY_LENGTH = 2 * Integer.BYTES + 1;
+    /** State of an untouched square in a journal entry. */
+    private static final byte UNTOUCHED = 0;
+    /** State of a flagged square in a journal entry. */
+    private static final byte FLAGGED = 1;
+    /** State of a dug square in a journal entry. */
+    private static final byte DUG = 2;
+    /** Names of the files of a generation, with the generation as group 2. */
+    private static final Pattern GENERATION_FILE = Pattern.compile("(snapshot|journal)-(\\d{1,18})\\.(bin|log)");
+    
+    /**
+     * Lock guarding the journal; a ReentrantLock rather than a monitor, so that
+     * a virtual thread waiting for its batch to be forced does not pin its
+     * carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Condition of lock signalled whenever the state of the journal changes. */
+    private final Condition changed = lock.newCondition();
+    private final File directory;
+    private final Board board;
+    /** Journal of the current generation. */
+    private FileChannel journal;
+    /** Current generation: that of journal, and of the latest snapshot started. */
+    private long generation;
+    /** Generation of the latest snapshot saved. */
+    private long saved;
+    /** True if a snapshot is to be started. */
+    private boolean snapshotRequested;
+    /** Bytes written to journal, or pending to be. */
+    private long journalLength;
+    /** Batches appended but not yet handed to a thread forcing them to disk. */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 12);
+    /** Buffer pending switches to while a thread forces its batches. */
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 12);
+    /** Number of batches appended. */
+    private long appended;
+    /** Number of batches forced to disk. */
+    private long durable;
+    /** True while a thread is forcing batches to disk. */
+    private boolean forcing;
+    /** Version of the board up to which every change is recorded. */
+    private long recordedVersion;
+    /** Error that broke the journal, or null. */
+    private IOException failure;
+    private boolean closed;
+    /** Thread taking the snapshots. */
+    private final Thread snapshots;
+    
+    // Rep invariant:
+    //  saved <= generation; journal is the file of generation generation.
+    //  durable <= appended. pending holds the batches after the first durable
+    //  ones that no thread is forcing; while forcing is false, these are all
+    //  the batches after the first durable ones.
+    //  Snapshot saved of the directory, followed by the durable batches of the
+    //  journals of generations saved and later, is the board as it was at
+    //  some point no earlier than the last completed record() or snapshot().
+    // Abstraction function:
+    //  represents the board kept recoverable from directory
+    // Thread safety argument:
+    //  All fields except the final ones are guarded by lock. A thread forcing
+    //  batches, or saving a snapshot, releases lock meanwhile: forcing marks
+    //  the former, and the latter only reads board and writes files of its
+    //  own generation.
+    //  record() reads the board's changes and appends them with lock held, so
+    //  the order of the batches is the order the squares were read in. Each
+    //  change is followed by a read of its square, by the thread that made it,
+    //  so the last entry of a square in the journal has its final state.
+    //  A snapshot is started with lock held, after starting its journal, so
+    //  the snapshot is no older than any entry before it, and any later change
+    //  to a square is followed by an entry in its journal. It is saved tile by
+    //  tile, so each square is saved in some state it had since the snapshot
+    //  started; the entries of its journal then bring every square changed
+    //  meanwhile to its final state. The neighbor counts are not saved but
+    //  recounted when the snapshot is loaded, so they match the mines saved.
+    
+    /**
+     * Start keeping a board recoverable from an empty directory, by saving a
+     * first snapshot of it.
+     *
+     * @param directory
+     *            directory to keep the board in, created if need be; requires
+     *            it holds no journal already
+     * @param board
+     *            board to keep
+     * @return the journal of board
+     * @throws IOException
+     *             if an error occurs writing to directory
+     * @throws IllegalArgumentException
+     *             if directory already holds a journal
+     */
+    public static BoardJournal create(File directory, Board board) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory " + directory);
+        }
+        if (!generations(directory, "snapshot").isEmpty()) {
+            throw new IllegalArgumentException(directory + " already holds a journal");
+        }
+        return new BoardJournal(directory, board, 0);
+    }
+    
+    /**
+     * Recover the board kept in a directory, replaying its journal onto its
+     * latest snapshot, and go on keeping it there.
+     *
+     * @param directory
+     *            directory a board is kept in by an earlier journal
+     * @return the journal of the recovered board, or empty if directory holds
+     *         no snapshot
+     * @throws IOException
+     *             if an error occurs reading or writing directory
+     * @throws IllegalArgumentException
+     *             if the snapshot is not a binary board file or the journal
+     *             names squares out of the board
+     */
+    public static Optional<BoardJournal> recover(File directory) throws IOException {
+        return recover(directory, BoardStorage.HEAP);
+    }
+    
+    /**
+     * Recover the board kept in a directory into a storage, replaying its
+     * journal onto its latest snapshot, and go on keeping it there.
+     *
+     * @param directory
+     *            directory a board is kept in by an earlier journal
+     * @param storage
+     *            storage of the recovered board's squares
+     * @return the journal of the recovered board, or empty if directory holds
+     *         no snapshot
+     * @throws IOException
+     *             if an error occurs reading or writing directory
+     * @throws IllegalArgumentException
+     *             if the snapshot is not a binary board file, the journal
+     *             names squares out of the board, or storage already stores
+     *             another board
+     */
+    public static Optional<BoardJournal> recover(File directory, BoardStorage storage) throws IOException {
+        final List<Long> snapshots = generations(directory, "snapshot");
+        if (snapshots.isEmpty()) {
+            return Optional.empty();
+        }
+        
+        final long latest = snapshots.get(snapshots.size() - 1);
+        final Board board = BoardFiles.load(file(directory, "snapshot", latest), storage);
+        final List<Long> journals = generations(directory, "journal");
+        long last = latest;
+        for (long g : journals) {
+            if (g >= latest) {
+                last = g;
+                if (!replay(file(directory, "journal", g), board)) {
+                    // Torn at the end; nothing was written after
+                    break;
+                }
+            }
+        }
+        return Optional.of(new BoardJournal(directory, board, last + 1));
+    }
+    
+    /**
+     * Make a journal of board, starting generation first with a snapshot.
+     *
+     * @throws IOException
+     *             if an error occurs writing to directory
+     */
+    private BoardJournal(File directory, Board board, long first) throws IOException {
+        this.directory = directory;
+        this.board = board;
+        this.generation = first;
+        this.saved = first;
+        this.recordedVersion = board.version();
+        this.journal = open(first);
+        BoardFiles.save(board, file(directory, "snapshot", first), true, false);
+        deleteBefore(first);
+        
+        this.snapshots = new Thread(this::takeSnapshots, "board snapshots");
+        this.snapshots.setDaemon(true);
+        this.snapshots.start();
+    }
+    
+    /**
+     * @return the board kept recoverable
+     */
+    public Board board() {
+        return board;
+    }
+    
+    /**
+     * Record every change made to the board and not recorded yet, and wait for
+     * the changes to be on disk. A thread that changes the board records
+     * afterwards, and its changes are then recorded, by it or along with
+     * those of another thread. If the board no longer remembers every change
+     * not recorded yet, waits for the snapshots thread to save a snapshot of
+     * a new generation instead, which records them all.
+     *
+     * @throws IOException
+     *             if the journal is broken, by an error writing it now or
+     *             earlier, or closed
+     */
+    public void record() throws IOException {
+        final long batch;
+        lock.lock();
+        try {
+            check();
+            final Board.ChangedSquares changes = board.changedSquares(recordedVersion);
+            if (changes == null) {
+                // The board forgot these changes; only a snapshot records them
+                awaitSnapshot(generation + 1);
+                return;
+            }
+            append(changes);
+            batch = appended;
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(batch);
+    }
+    
+    /**
+     * Start a new generation with a snapshot of the board, and wait for it to
+     * be saved.
+     *
+     * @throws IOException
+     *             if the journal is broken, by an error writing it now or
+     *             earlier, or closed
+     */
+    public void snapshot() throws IOException {
+        lock.lock();
+        try {
+            check();
+            awaitSnapshot(generation + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Stop recording, after forcing the batches recorded to disk. The
+     * directory keeps the board as it was after the last record().
+     *
+     * @throws IOException
+     *             if an error occurs writing the journal
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            while (forcing) {
+                await();
+            }
+            closed = true;
+            changed.signalAll();
+            try {
+                if (failure == null) {
+                    writePending();
+                }
+            } finally {
+                journal.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            snapshots.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the journal");
+        }
+    }
+    
+    /**
+     * Append changed squares as a batch, unless there are none. Requires lock.
+     *
+     * @param changes
+     *            changes as listed by Board.changedSquares()
+     */
+    private void append(Board.ChangedSquares changes) {
+        recordedVersion = Math.max(recordedVersion, changes.version());
+        final int count = changes.count();
+        if (count == 0) {
+            return;
+        }
+        
+        final int length = count * ENTRY_LENGTH;
+        if (pending.remaining() < BATCH_HEADER_LENGTH + length) {
+            final ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + BATCH_HEADER_LENGTH + length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        
+        final int start = pending.position();
+        pending.putInt(length).putInt(0);
+        for (int k = 0; k < count; k++) {
+            pending.putInt(changes.x(k));
+            pending.putInt(changes.y(k));
+            pending.put(changes.dug(k) ? DUG : changes.flagged(k) ? FLAGGED : UNTOUCHED);
+        }
+        
+        final CRC32 crc = new CRC32();
+        crc.update(pending.array(), start + BATCH_HEADER_LENGTH, length);
+        pending.putInt(start + Integer.BYTES, (int) crc.getValue());
+        journalLength += BATCH_HEADER_LENGTH + length;
+        appended++;
+    }
+    
+    /**
+     * Wait until a batch is forced to disk, forcing it and the batches pending
+     * along with it if no other thread is doing so.
+     *
+     * @param batch
+     *            number of the batch
+     * @throws IOException
+     *             if the journal is broken
+     */
+    private void awaitDurable(long batch) throws IOException {
+        for (;;) {
+            final ByteBuffer batches;
+            final long last;
+            final FileChannel channel;
+            lock.lock();
+            try {
+                while (durable < batch && forcing) {
+                    await();
+                }
+                if (durable >= batch) {
+                    return;
+                }
+                check();
+                
+                forcing = true;
+                batches = pending;
+                last = appended;
+                channel = journal;
+                pending = spare;
+                pending.clear();
+            } finally {
+                lock.unlock();
+            }
+            
+            IOException error = null;
+            try {
+                batches.flip();
+                while (batches.hasRemaining()) {
+                    channel.write(batches);
+                }
+                channel.force(false);
+            } catch (IOException ioe) {
+                error = ioe;
+            }
+            
+            lock.lock();
+            try {
+                forcing = false;
+                spare = batches;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = last;
+                }
+                if (journalLength >= SNAPSHOT_THRESHOLD && saved == generation) {
+                    snapshotRequested = true;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Wait until snapshot of a generation is saved, requesting one. Requires
+     * lock.
+     *
+     * @param target
+     *            generation of the snapshot, no later than generation + 1
+     * @throws IOException
+     *             if the journal is broken
+     */
+    private void awaitSnapshot(long target) throws IOException {
+        while (saved < target) {
+            check();
+            if (generation < target) {
+                snapshotRequested = true;
+                changed.signalAll();
+            }
+            await();
+        }
+    }
+    
+    /**
+     * Body of the snapshots thread: start a new generation, and save its
+     * snapshot, whenever requested until the journal is closed.
+     */
+    private void takeSnapshots() {
+        for (;;) {
+            final long next;
+            final long version;
+            lock.lock();
+            try {
+                while (!snapshotRequested && !closed && failure == null) {
+                    awaitUninterruptibly();
+                }
+                if (closed || failure != null) {
+                    return;
+                }
+                snapshotRequested = false;
+                
+                try {
+                    while (forcing) {
+                        awaitUninterruptibly();
+                    }
+                    writePending();
+                    journal.close();
+                    next = generation + 1;
+                    journal = open(next);
+                    generation = next;
+                    journalLength = 0;
+                    version = board.version();
+                } catch (IOException ioe) {
+                    failure = ioe;
+                    changed.signalAll();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                BoardFiles.save(board, file(directory, "snapshot", next), true, false);
+                deleteBefore(next);
+            } catch (IOException ioe) {
+                lock.lock();
+                try {
+                    failure = ioe;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            
+            lock.lock();
+            try {
+                saved = next;
+                recordedVersion = Math.max(recordedVersion, version);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Write and force the pending batches to the journal. Requires lock, and
+     * no thread forcing batches.
+     *
+     * @throws IOException
+     *             if an error occurs writing the journal
+     */
+    private void writePending() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            journal.write(pending);
+        }
+        pending.clear();
+        journal.force(false);
+        durable = appended;
+        changed.signalAll();
+    }
+    
+    /**
+     * @throws IOException
+     *             if the journal is broken or closed
+     */
+    private void check() throws IOException {
+        if (failure != null) {
+            throw new IOException("journal of " + directory + " is broken", failure);
+        }
+        if (closed) {
+            throw new IOException("journal of " + directory + " is closed");
+        }
+    }
+    
+    /**
+     * Wait for changed. Requires lock.
+     *
+     * @throws InterruptedIOException
+     *             if the thread is interrupted
+     */
+    private void await() throws InterruptedIOException {
+        try {
+            changed.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the journal");
+        }
+    }
+    
+    /**
+     * Wait for changed, ignoring interrupts. Requires lock.
+     */
+    private void awaitUninterruptibly() {
+        // only close() stops the snapshots thread
+        changed.awaitUninterruptibly();
+    }
+    
+    /**
+     * @return a new, empty, journal file of generation g
+     * @throws IOException
+     *             if an error occurs creating the file
+     */
+    private FileChannel open(long g) throws IOException {
+        final FileChannel channel = FileChannel.open(file(directory, "journal", g).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        syncDirectory();
+        return channel;
+    }
+    
+    /**
+     * Delete the files of every generation before g.
+     *
+     * @throws IOException
+     *             if an error occurs listing the directory
+     */
+    private void deleteBefore(long g) throws IOException {
+        for (String kind : new String[] { "snapshot", "journal" }) {
+            for (long older : generations(directory, kind)) {
+                if (older < g) {
+                    file(directory, kind, older).delete();
+                }
+            }
+        }
+        syncDirectory();
+    }
+    
+    /**
+     * Force the entries of the directory to disk, where the platform allows
+     * it, so that created, renamed and deleted files stay so.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ioe) {
+            // not supported on every platform
+        }
+    }
+    
+    /**
+     * Replay the entries of a journal onto a board.
+     *
+     * @param journal
+     *            journal file
+     * @param board
+     *            board to restore the squares of
+     * @return true if the journal ended with a whole batch, false if it ended
+     *         with a batch cut short or corrupt
+     * @throws IOException
+     *             if an error occurs reading the journal
+     * @throws IllegalArgumentException
+     *             if an entry names a square out of the board or no state
+     */
+    private static boolean replay(File journal, Board board) throws IOException {
+        try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_LENGTH);
+            for (long position = 0; position < channel.size();) {
+                header.clear();
+                if (channel.read(header, position) < BATCH_HEADER_LENGTH) {
+                    return false;
+                }
+                final int length = header.getInt(0);
+                if (length <= 0 || length % ENTRY_LENGTH != 0 || length > channel.size() - position - BATCH_HEADER_LENGTH) {
+                    return false;
+                }
+                
+                final ByteBuffer entries = ByteBuffer.allocate(length);
+                while (entries.hasRemaining() && channel.read(entries, position + BATCH_HEADER_LENGTH + entries.position()) >= 0) {
+                    // keep reading until the batch is read
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(entries.array(), 0, length);
+                if ((int) crc.getValue() != header.getInt(Integer.BYTES)) {
+                    return false;
+                }
+                
+                entries.flip();
+                while (entries.hasRemaining()) {
+                    final int x = entries.getInt();
+                    final int y = entries.getInt();
+                    final byte state = entries.get();
+                    if (x < 0 || x >= board.sizeX() || y < 0 || y >= board.sizeY() || state < UNTOUCHED || state > DUG) {
+                        throw new IllegalArgumentException(String.format("%s names no state %d of a square %d,%d", journal, state, x, y));
+                    }
+                    board.restoreSquare(x, y, state == FLAGGED, state == DUG);
+                }
+                position += BATCH_HEADER_LENGTH + length;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * @param directory
+     *            directory of a journal
+     * @param kind
+     *            "snapshot" or "journal"
+     * @return the generations of the files of kind in directory, in order
+     */
+    private static List<Long> generations(File directory, String kind) {
+        final List<Long> generations = new ArrayList<>();
+        final String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                final Matcher matcher = GENERATION_FILE.matcher(name);
+                if (matcher.matches() && matcher.group(1).equals(kind)) {
+                    generations.add(Long.parseLong(matcher.group(2)));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+    
+    /**
+     * @return the file of kind, "snapshot" or "journal", of generation g
+     */
+    private static File file(File directory, String kind, long g) {
+        return new File(directory, String.format("%s-%d.%s", kind, g, kind.equals("snapshot") ? "bin" : "log"));
+    }
+}
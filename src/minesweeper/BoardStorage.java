@@ -0,0 +1,163 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Where the squares of a board are stored: on the Java heap, the default, or
+ * off the heap in a memory-mapped file.
+ * <p>
+ * A board stored in a mapped file keeps only a small fixed-size object per
+ * tile of its squares on the heap, so the work of the garbage collector does
+ * not grow with the board, and the board may be larger than the heap. Its
+ * squares are read and written in place in the file's pages, which the
+ * operating system loads on demand and writes back to the file in the
+ * background. The file is a backing store for a live board, not a board file:
+ * it is not crash-consistent and cannot be loaded again; keep a board
+ * recoverable with BoardJournal. The parts of the file under tiles not yet
+ * generated are never written, so on file systems with sparse files they take
+ * no disk space.
+ */
+public final class BoardStorage {
+    /** Storage of the squares on the Java heap. */
+    public static final BoardStorage HEAP = new BoardStorage(null);
+    
+    /** Largest number of bytes of the file mapped at once. */
+    private static final int MAX_MAPPING = 1 << 30;
+    /** Number of locks tile generations into the file are striped over. */
+    private static final int GENERATION_LOCKS = 64;
+    
+    /** Mapped file, or null on the heap. */
+    private final FileChannel channel;
+    /** True once a board uses this storage. */
+    private final AtomicBoolean used = new AtomicBoolean();
+    /** Length in bytes of the region of a tile. */
+    private int tileLength;
+    /** Number of tiles per mapping. */
+    private int tilesPerMapping;
+    /** Number of tiles of the board. */
+    private int tileCount;
+    /** Mapping number m of the file, holding tiles from m * tilesPerMapping on, null until mapped. */
+    private AtomicReferenceArray<MappedByteBuffer> mappings;
+    /**
+     * Locks excluding concurrent generations of the same tile; not monitors,
+     * so a virtual thread generating a tile does not pin its carrier thread.
+     */
+    private final ReentrantLock[] generationLocks;
+    
+    // Rep invariant:
+    //  channel == null iff this is HEAP, and then the other fields are unused.
+    //  Once used, tileLength > 0, tilesPerMapping > 0, and mappings has one
+    //  entry per tilesPerMapping tiles of tileCount; the region of tile t is
+    //  bytes [t * tileLength, (t + 1) * tileLength) of the file.
+    // Abstraction function:
+    //  represents the heap if channel is null, else the file of channel,
+    //  divided in the regions of the tiles of the board using it
+    // Thread safety argument:
+    //  tileLength, tilesPerMapping, tileCount and mappings are written once by
+    //  use(), before the board that calls it is constructed and published, and
+    //  only read afterwards. Threads racing to map the same part of the file
+    //  both map it, and all go on with the mapping published first; the
+    //  mappings are of the same file, so they share its pages.
+    
+    /**
+     * @param channel
+     *            mapped file, or null on the heap
+     */
+    private BoardStorage(FileChannel channel) {
+        this.channel = channel;
+        this.generationLocks = new ReentrantLock[channel == null ? 0 : GENERATION_LOCKS];
+        for (int k = 0; k < generationLocks.length; k++) {
+            generationLocks[k] = new ReentrantLock();
+        }
+    }
+    
+    /**
+     * Make a storage of the squares of a board off the heap, in a file mapped
+     * to memory. A mapped storage stores a single board.
+     *
+     * @param file
+     *            file to store the squares in, created or emptied
+     * @return the new storage
+     * @throws IOException
+     *             if an error occurs opening the file
+     */
+    public static BoardStorage mapped(File file) throws IOException {
+        return new BoardStorage(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+    
+    /**
+     * @return true if squares are stored in a mapped file, false if on the heap
+     */
+    boolean isMapped() {
+        return channel != null;
+    }
+    
+    /**
+     * Dedicate the storage to a board. Requires the storage to be mapped.
+     *
+     * @param tiles
+     *            number of tiles of the board
+     * @param length
+     *            length in bytes of the region of a tile, a multiple of 4096
+     * @throws IllegalArgumentException
+     *             if another board already uses the storage
+     */
+    void use(int tiles, int length) {
+        if (!used.compareAndSet(false, true)) {
+            throw new IllegalArgumentException("a mapped storage stores a single board");
+        }
+        tileLength = length;
+        tileCount = tiles;
+        tilesPerMapping = MAX_MAPPING / length;
+        mappings = new AtomicReferenceArray<>((tiles + tilesPerMapping - 1) / tilesPerMapping);
+    }
+    
+    /**
+     * @param t
+     *            index of a tile of the board using the storage
+     * @return the region of tile t in the file, zero until first written
+     * @throws UncheckedIOException
+     *             if the file cannot be mapped
+     */
+    ByteBuffer region(int t) {
+        final int m = t / tilesPerMapping;
+        MappedByteBuffer mapping = mappings.get(m);
+        if (mapping == null) {
+            final long start = (long) m * tilesPerMapping * tileLength;
+            final int tiles = Math.min(tilesPerMapping, tileCount - m * tilesPerMapping);
+            try {
+                mapping = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) tiles * tileLength);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException("cannot map the squares of the board", ioe);
+            }
+            final MappedByteBuffer witness = mappings.compareAndExchange(m, null, mapping);
+            if (witness != null) {
+                mapping = witness;
+            }
+        }
+        return mapping.slice((t % tilesPerMapping) * tileLength, tileLength);
+    }
+    
+    /**
+     * @param t
+     *            index of a tile of the board using the storage
+     * @return the lock a thread generating tile t into the file must hold, so
+     *         that no other thread writes the region of the tile meanwhile
+     */
+    ReentrantLock generationLock(int t) {
+        return generationLocks[t & (GENERATION_LOCKS - 1)];
+    }
+}
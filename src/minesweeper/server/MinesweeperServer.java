@@ -5,15 +5,36 @@ package minesweeper.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import minesweeper.Board;
+import minesweeper.BoardFiles;
+import minesweeper.BoardJournal;
+import minesweeper.BoardStorage;
 
 /**
  * Multiplayer Minesweeper server.
  */
 public class MinesweeperServer {
-
+    
     /*
      * System thread safety argument:
      * 
@@ -35,48 +56,94 @@ public class MinesweeperServer {
      * thread, as a result all communication with the client is also confined to
      * that thread.
      * 
-     * As clients connect and disconnect from the server, the number of
-     * connected clients is tracked through numberOfClients. All
-     * modifications/writes of the rep numberOfClients are synchronized on the
-     * same lock--distinct from the server's lock which is held by the main
-     * thread. However, the reading of numberOfClients remains unguarded. On
-     * connection to the server, the client handler will send a hello message
-     * containing the number of active players (numberOfClients) in the game. By
-     * synchronizing the modifications, we know, when it's all said and done,
-     * when concurrent connections and disconnections have completed, we are not
-     * at risk of violating the invariant "numberOfClients must count the number
-     * of clients", that is, value of numberOfClients is eventually consistent.
-     * However, as the events are unfolding, while concurrent
-     * connections/disconnections are taking place, it is possible for a thread
-     * handling a connection to see a value of numberOfClients not consistent
-     * with the number of connected clients; consequently, sending a hello
-     * message with number of players different from the actual number of
-     * clients connected at that time. This should be fine, however, because
-     * what the client sees is consistent with some relative ordering of events;
-     * it is consistent with other connections/disconnections occurring before
-     * or after its connections.
-     * 
-     * You may ask why not just guard the reading of numberOfClients as well?
-     * numberOfClients is read then written to the output stream along the hello
-     * message. Synchronizing the reading of numberOfClients means synchronizing
-     * the writing to the stream. Writes can block; therefore, if one thread
-     * blocks on a write, synchronizing in this manner will cause all threads to
-     * block on that thread.
+     * The server hosts games in rooms, kept by name in rooms, a
+     * ConcurrentHashMap: it locks only the bin of the name it updates, so
+     * clients creating, joining and leaving different rooms do not contend.
+     * Each client thread holds the room its client is in, confined to it.
+     * Every room counts its clients under its own lock; the count sent in a
+     * hello or joined message is read under that lock, so it is consistent
+     * with some order of the connections and disconnections around it, though
+     * it may be stale by the time the client reads it. The lock is never held
+     * while writing to a stream, since writes can block.
+     * 
+     * A room is closed by the sweeper thread under the room's lock, only if it
+     * has no client, and removed from rooms afterwards; a client entering it
+     * meanwhile finds it closed and is told there is no such room, so no
+     * client is ever left in a room that was removed. The default room is
+     * never closed.
      * 
      * The minesweeper board is a threadsafe data type; it is safe for
      * concurrent modification by multiple clients. Request-response associated
      * with board's operations also satisfy serializability; the possible
-     * interleaving between the time of a mutating operation (dig, flag, deflag)
-     * on the board and obtaining the observable state (via toString()) doesn't
-     * threaten the consistency of the observed result by the client.
+     * interleaving between the time of a mutating operation (dig, chord,
+     * flag, deflag, batch) on the board and obtaining the observable state
+     * (via toString()) doesn't threaten the consistency of the observed
+     * result by the client. A batch is a single atomic update of the board.
+     * 
+     * The finisher of a room is set once, by the first thread to see no safe
+     * square left after a move. Each client thread writes the game over
+     * message to its own client only, after a reply, so the message never
+     * lands inside another reply and is never read in place of the reply to
+     * a request.
+     * 
+     * serveOnVirtualThreads() runs the same handlers on virtual threads. No
+     * lock a request may block under is a monitor--the board's tiles use
+     * StampedLocks, and the journal a ReentrantLock--so a client thread
+     * blocked there, or on its socket, does not pin its carrier thread. The
+     * monitors of rooms are only held for a few field updates.
+     * 
+     * serveNonBlocking() hands each client to one of its event loop threads,
+     * and the client's connection, session and queued replies are confined to
+     * that thread from then on. A client is handed over through the loop's
+     * concurrent queue of accepted channels, which publishes it safely. The
+     * requests are handled by the same code as for serve(), so the arguments
+     * above hold for either way of serving.
+     * 
+     * A client's requests are handled in the order they are received, and
+     * their replies written in the same order; the output is flushed only
+     * once no whole request is left already received, so requests a client
+     * pipelines get their replies in one flush.
+     * 
+     * A client is admitted by the thread accepting it, which takes a permit
+     * of the semaphore of the running serve method, and released by the thread
+     * disconnecting it, which gives the permit back; a client accepted while
+     * none is left is written BUSY_MESSAGE and closed by the accepting thread
+     * itself, without taking a room or a worker. The counters of queued and
+     * rejected connections are atomic.
+     * 
+     * A changes request may report some squares in a state newer than the
+     * version it reports, since the board changes while it is read. The client
+     * never misses a change by this, as its next changes request reports those
+     * squares again.
      */
     
     /** Default server port. */
     private static final int DEFAULT_PORT = 4444;
     /** Maximum port number as defined by ServerSocket. */
     private static final int MAXIMUM_PORT = 65535;
+    /** Default length of the queue of connections not yet accepted. */
+    private static final int DEFAULT_BACKLOG = 50;
+    /** Default number of threads serve() handles clients on. */
+    static final int DEFAULT_WORKERS = 1000;
+    /** Default largest number of clients connected at once. */
+    static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    /** Seconds a worker thread stays without a client before it ends. */
+    private static final long IDLE_WORKER_SECONDS = 60;
     /** Default square board size. */
     private static final int DEFAULT_SIZE = 10;
+    /**
+     * Number of squares of the largest board the server sends whole. Clients
+     * of larger boards look at windows of them and ask for changes instead.
+     */
+    private static final long MAX_BOARD_MESSAGE_SQUARES = 1 << 24;
+    /** Name of the room clients are in when they connect. */
+    static final String DEFAULT_ROOM = "lobby";
+    /** Largest number of rooms, including the default room. */
+    static final int MAX_ROOMS = 10000;
+    /** Seconds a room other than the default stays without a client before it is closed. */
+    private static final long IDLE_ROOM_SECONDS = 600;
+    /** Seconds between two sweeps for idle rooms. */
+    private static final long SWEEP_SECONDS = 60;
     
     /**
      * Format of the hello message returned on client connection. First integer
@@ -85,29 +152,102 @@ public class MinesweeperServer {
      * players connected to the server
      */
     static final String HELLO_MESSAGE_FORMAT = "Welcome to Minesweeper. Board: %1$d columns by %2$d rows. Players: %3$d including you. Type 'help' for help.";
+    /** Message sent in place of the hello message to a client connecting while the server is full, before it is disconnected. */
+    static final String BUSY_MESSAGE = "Server busy. Try again later.";
     /** Help message */
-    static final String HELP_MESSAGE = "Usage: 'look' | 'help' | 'bye' | '(dig | flag | deflag) X Y' where X Y are integers";
+    static final String HELP_MESSAGE = "Usage: 'look' | 'look X Y W H' | 'help' | 'bye' | 'join ROOM' | 'create ROOM W H' | 'leave' | '(dig | chord | flag | deflag) X Y' | 'batch MOVE; MOVE; ...' with MOVE '(dig | flag | deflag) X Y' | 'changes VERSION' | 'stats' | 'coalesce (on | off)' where X Y W H VERSION are integers";
     /** BOOM message*/
     static final String BOOM_MESSAGE = "BOOM!";
+    /**
+     * Reply to a batch whose move number %d, counted from 0, exploded a mine;
+     * the moves after it were not applied.
+     */
+    static final String BATCH_BOOM_MESSAGE_FORMAT = BOOM_MESSAGE + " at move %d";
+    /** Largest number of moves in a batch. */
+    static final int MAX_BATCH_MOVES = 1024;
+    /**
+     * Number of characters looked ahead for a whole request already
+     * received; a longer request is handled as if not received yet.
+     */
+    private static final int MAX_PEEK = 8192;
+    /** Line separator ending each line of a reply, the one println() writes. */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    /** Charset of requests and replies, the one InputStreamReader and PrintWriter use. */
+    private static final Charset CHARSET = Charset.defaultCharset();
+    /**
+     * Length in bytes of the longest request an event loop reads; a client
+     * sending a longer one is disconnected.
+     */
+    private static final int MAX_REQUEST_BYTES = 1 << 20;
+    /**
+     * Longest time, in milliseconds, a disconnected client is waited for to
+     * close its end of the connection before it is closed on it.
+     */
+    private static final long LINGER_MILLIS = 1000;
+    /**
+     * Reply to a stats request. Arguments are the number of mines left on the
+     * board, of flagged squares, of untouched squares, and of squares without
+     * a mine left to dig.
+     */
+    static final String STATS_MESSAGE_FORMAT = "stats mines %d flagged %d untouched %d safe %d";
+    /**
+     * Message sent once to every client but the one that dug the last square
+     * without a mine, whose reply already shows the finished board. It follows
+     * the reply to the first request the client makes after the game is over.
+     */
+    static final String GAME_OVER_MESSAGE = "Game over: every square without a mine is dug.";
+    /**
+     * Reply to a request entering a room. First argument is the name of the
+     * room, second and third the size of its board along the x-axis and
+     * y-axis, and fourth the number of players in the room.
+     */
+    static final String JOINED_MESSAGE_FORMAT = "Joined room %1$s. Board: %2$d columns by %3$d rows. Players: %4$d including you.";
+    /** Reply to a join request for a room that does not exist. Argument is the name of the room. */
+    static final String NO_ROOM_MESSAGE_FORMAT = "No room %s.";
+    /**
+     * Reply to a create request that did not create the room, because a room
+     * of that name exists, the board is empty or has more than
+     * MAX_BOARD_MESSAGE_SQUARES squares, or there are MAX_ROOMS rooms.
+     * Argument is the name of the room.
+     */
+    static final String ROOM_NOT_CREATED_MESSAGE_FORMAT = "Room %s not created.";
+    /**
+     * First line of the reply to a changes request, followed by the changed
+     * squares. Argument is the rest of the line--version of the board and
+     * number of changed squares--as specified by Board.changesSince().
+     */
+    static final String CHANGES_MESSAGE_FORMAT = "changes %s";
+    /**
+     * First line of the reply to a changes request the board cannot answer
+     * with changes, followed by the whole board. Argument is the version of
+     * the board.
+     */
+    static final String BOARD_MESSAGE_FORMAT = "board %d";
+    /** Message sent in place of a board too large to send whole. */
+    static final String BOARD_TOO_LARGE_MESSAGE = "Board too large to show whole. Use 'look X Y W H' and 'changes VERSION'.";
     
-    /** Synchronization lock. */
-    private final Object lock = new Object();
-
     /** Socket for receiving incoming connections. */
     private final ServerSocket serverSocket;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
-    /** Number of connected clients*/
-    private int numberOfClients;
-    /** Minesweeper board*/
-    private final Board board;
+    /** Rooms hosted, by name */
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    /** Room clients are in when they connect */
+    private final Room lobby;
+    /** Number of clients admitted and waiting for a worker thread */
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+    /** Number of clients sent BUSY_MESSAGE */
+    private final LongAdder rejectedConnections = new LongAdder();
     
     // Rep invariant:
-    //  numberOfClients counts the number of connected clients--the number of
-    //  active client threads.
+    //  Every room is kept in rooms under its id(), and lobby under
+    //  DEFAULT_ROOM. The number of clients of each room counts the active
+    //  client threads whose client is in it. queuedConnections >= 0.
     // Abstract function:
-    //  A server listing to serverSocket.getLocalPort() with numberOfClients
-    //  connected clients interacting with board.
+    //  A server listing to serverSocket.getLocalPort() hosting the games of
+    //  rooms, each played by the clients in it, and with lobby the room where
+    //  clients start, which has turned away rejectedConnections clients and
+    //  has queuedConnections clients waiting to be handled.
     // Rep exposure:
     //  No part of the rep is exposed to clients.
     
@@ -127,10 +267,7 @@ public class MinesweeperServer {
      *             if an error occurs opening the server socket
      */
     public MinesweeperServer(int port, boolean debug, int sizeX, int sizeY) throws IOException {
-        serverSocket = new ServerSocket(port);
-        this.debug = debug;
-        numberOfClients = 0;
-        board = new Board(sizeX, sizeY);
+        this(new Options().port(port).debug(debug).size(sizeX, sizeY));
     }
     
     /**
@@ -143,76 +280,587 @@ public class MinesweeperServer {
      * @param debug
      *            debug mode flag
      * @param file
-     *            file from which the the board is initialized
+     *            text or binary board file, as specified by BoardFiles, from
+     *            which the the board is initialized
      * @throws IOException
      *             if an error occurs loading the file or opening the server
      *             socket
      */
     public MinesweeperServer(int port, boolean debug, File file) throws IOException {
-        serverSocket = new ServerSocket(port);
-        this.debug = debug;
-        numberOfClients = 0;
+        this(new Options().port(port).debug(debug).file(file));
+    }
+    
+    /**
+     * Make a MinesweeperServer as specified by options: its default room
+     * plays the board they specify, kept in their journal directory if they
+     * have one, and it listens for connections on their port, with their
+     * backlog. How it serves the connections is up to the serve method run.
+     * 
+     * @param options
+     *            options of the server
+     * @throws IOException
+     *             if an error occurs loading the board, reading or writing
+     *             the journal or the mapped file, or opening the server socket
+     */
+    public MinesweeperServer(Options options) throws IOException {
+        final BoardStorage storage = options.mapped.isPresent()
+                ? BoardStorage.mapped(options.mapped.get()) : BoardStorage.HEAP;
+        final BoardJournal journal = options.journal.isPresent() ? openJournal(options, storage) : null;
+        final Board board = journal != null ? journal.board() : newBoard(options, storage);
         
-        //TODO Do I need to separate BufferedReader and FileReader in the try-with-resources statement?
-        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-            String[] dimensions = in.readLine().split(" ");
-
-            if (dimensions.length != 2) {
-                throw new RuntimeException("Improper file format");
-            }
-
-            StringBuilder sb = new StringBuilder();
-
-            for (int character = in.read(); character != -1; character = in.read()) {
-                sb.append((char) character);
+        // Opened through a channel, so it can be served with blocking or non-blocking sockets
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(options.port), options.backlog);
+        } catch (IOException ioe) {
+            channel.close();
+            if (journal != null) {
+                journal.close();
             }
-
-            board = new Board(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), sb.toString());
+            throw ioe;
+        }
+        serverSocket = channel.socket();
+        this.debug = options.debug;
+        lobby = new Room(DEFAULT_ROOM, board, journal, 0);
+        rooms.put(DEFAULT_ROOM, lobby);
+    }
+    
+    /**
+     * @param options options with a journal directory
+     * @param storage storage of the board's squares
+     * @return the journal of the board kept in the directory of options, or
+     *         of a new board made as specified by options if it holds none
+     * @throws IOException if an error occurs reading or writing the journal,
+     *                     or loading the new board
+     */
+    private static BoardJournal openJournal(Options options, BoardStorage storage) throws IOException {
+        final Optional<BoardJournal> recovered;
+        try {
+            recovered = BoardJournal.recover(options.journal.get(), storage);
         } catch (IllegalArgumentException iae) {
             throw new RuntimeException("Improper file format", iae);
         }
+        if (recovered.isPresent()) {
+            return recovered.get();
+        }
+        return BoardJournal.create(options.journal.get(), newBoard(options, storage));
     }
-
+    
     /**
-     * Run the server, listening for client connections and handling them.
+     * @param options options of the server
+     * @param storage storage of the board's squares, unless options give the board
+     * @return the board given by options, or a new one loaded from their file
+     *         or random of their size and seed
+     * @throws IOException if an error occurs reading the file
+     */
+    private static Board newBoard(Options options, BoardStorage storage) throws IOException {
+        if (options.board.isPresent()) {
+            return options.board.get();
+        }
+        if (options.file.isPresent()) {
+            try {
+                return BoardFiles.load(options.file.get(), storage);
+            } catch (IllegalArgumentException iae) {
+                throw new RuntimeException("Improper file format", iae);
+            }
+        }
+        return new Board(options.sizeX, options.sizeY,
+                options.seed.orElseGet(() -> ThreadLocalRandom.current().nextLong()), storage);
+    }
+    
+    /**
+     * Options of a MinesweeperServer: the board of its default room, how it
+     * listens for connections, and how runMinesweeperServer() serves them.
+     * Each setter checks its argument and returns the options, so that calls
+     * chain. Options are not threadsafe; a server reads them only while it is
+     * made or run.
+     */
+    public static final class Options {
+        private int port = DEFAULT_PORT;
+        private int backlog = DEFAULT_BACKLOG;
+        private boolean debug = false;
+        private int sizeX = DEFAULT_SIZE;
+        private int sizeY = DEFAULT_SIZE;
+        private Optional<File> file = Optional.empty();
+        private Optional<Board> board = Optional.empty();
+        private Optional<Long> seed = Optional.empty();
+        private Optional<File> journal = Optional.empty();
+        private Optional<File> mapped = Optional.empty();
+        private int eventLoops = 0;
+        private boolean virtualThreads = false;
+        private int workers = DEFAULT_WORKERS;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        
+        // Rep invariant:
+        //  0 <= port <= MAXIMUM_PORT; backlog, sizeX, sizeY, workers and
+        //  maxConnections are positive; eventLoops >= 0; at most one of file
+        //  and board is present.
+        
+        /**
+         * @param port port to listen on, requires 0 <= port <= 65535; 0
+         *             assigns any available port. Defaults to DEFAULT_PORT.
+         * @return these options
+         * @throws IllegalArgumentException if port is out of range
+         */
+        public Options port(int port) {
+            if (port < 0 || port > MAXIMUM_PORT) {
+                throw new IllegalArgumentException("port " + port + " out of range");
+            }
+            this.port = port;
+            return this;
+        }
+        
+        /**
+         * @param backlog length of the queue of connections not yet accepted,
+         *                requires backlog > 0. Defaults to DEFAULT_BACKLOG.
+         * @return these options
+         * @throws IllegalArgumentException if backlog is out of range
+         */
+        public Options backlog(int backlog) {
+            if (backlog <= 0) {
+                throw new IllegalArgumentException("backlog " + backlog + " out of range");
+            }
+            this.backlog = backlog;
+            return this;
+        }
+        
+        /**
+         * @param debug true if a client is *not* disconnected after a BOOM
+         *              message. Defaults to false.
+         * @return these options
+         */
+        public Options debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+        
+        /**
+         * Play a random board of sizeX by sizeY, instead of a board loaded
+         * from a file or given. This is the default, with 10 by 10 squares.
+         * 
+         * @param sizeX width of the board, requires sizeX > 0
+         * @param sizeY height of the board, requires sizeY > 0
+         * @return these options
+         * @throws IllegalArgumentException if a size is out of range
+         */
+        public Options size(int sizeX, int sizeY) {
+            if (sizeX <= 0 || sizeY <= 0) {
+                throw new IllegalArgumentException(String.format("size %d,%d out of range", sizeX, sizeY));
+            }
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            file = Optional.empty();
+            board = Optional.empty();
+            return this;
+        }
+        
+        /**
+         * Play a board loaded from a file, instead of a random or given board.
+         * 
+         * @param file text or binary board file, as specified by BoardFiles
+         * @return these options
+         */
+        public Options file(File file) {
+            this.file = Optional.of(file);
+            board = Optional.empty();
+            return this;
+        }
+        
+        /**
+         * Play a given board, instead of a random board or one loaded from a
+         * file.
+         * 
+         * @param board board played in the default room
+         * @return these options
+         */
+        public Options board(Board board) {
+            this.board = Optional.of(board);
+            file = Optional.empty();
+            return this;
+        }
+        
+        /**
+         * @param seed seed a random board is generated from; the same size and
+         *             seed always generate the same board. Defaults to a random
+         *             seed.
+         * @return these options
+         */
+        public Options seed(long seed) {
+            this.seed = Optional.of(seed);
+            return this;
+        }
+        
+        /**
+         * Keep the board recoverable in a journal directory, as specified by
+         * BoardJournal, and play the board it holds, if any, instead of the
+         * one the other options specify.
+         * 
+         * @param directory journal directory, made if it does not exist
+         * @return these options
+         */
+        public Options journal(File directory) {
+            journal = Optional.of(directory);
+            return this;
+        }
+        
+        /**
+         * Store the squares of a board the server makes or recovers off the
+         * heap, in a file mapped to memory, as specified by BoardStorage.
+         * 
+         * @param file file holding the squares, overwritten
+         * @return these options
+         */
+        public Options mapped(File file) {
+            mapped = Optional.of(file);
+            return this;
+        }
+        
+        /**
+         * @param eventLoops if eventLoops > 0, serve the clients on that many
+         *                   event loop threads with non-blocking sockets, as
+         *                   serveNonBlocking() does; if 0, the default, on a
+         *                   thread each
+         * @return these options
+         * @throws IllegalArgumentException if eventLoops < 0
+         */
+        public Options eventLoops(int eventLoops) {
+            if (eventLoops < 0) {
+                throw new IllegalArgumentException("event loops " + eventLoops + " out of range");
+            }
+            this.eventLoops = eventLoops;
+            return this;
+        }
+        
+        /**
+         * @param virtualThreads if there are no event loops, serve each client
+         *                       on a virtual thread if true, on a platform
+         *                       thread if false, the default
+         * @return these options
+         */
+        public Options virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+        
+        /**
+         * @param workers largest number of platform threads serving clients at
+         *                once, with neither event loops nor virtual threads,
+         *                requires workers > 0. Defaults to DEFAULT_WORKERS.
+         * @return these options
+         * @throws IllegalArgumentException if workers is out of range
+         */
+        public Options workers(int workers) {
+            if (workers <= 0) {
+                throw new IllegalArgumentException("workers " + workers + " out of range");
+            }
+            this.workers = workers;
+            return this;
+        }
+        
+        /**
+         * @param maxConnections largest number of clients connected at once,
+         *                       requires maxConnections > 0. Defaults to
+         *                       DEFAULT_MAX_CONNECTIONS.
+         * @return these options
+         * @throws IllegalArgumentException if maxConnections is out of range
+         */
+        public Options maxConnections(int maxConnections) {
+            if (maxConnections <= 0) {
+                throw new IllegalArgumentException("max connections " + maxConnections + " out of range");
+            }
+            this.maxConnections = maxConnections;
+            return this;
+        }
+    }
+    
+    /**
+     * Run the server, listening for client connections and handling them on
+     * up to DEFAULT_WORKERS threads, with up to DEFAULT_MAX_CONNECTIONS
+     * clients connected at once, as serve(int, int) does. Never returns unless
+     * an exception is thrown. Only a single thread can run this server at a
+     * time. While it runs, a sweeper thread closes the rooms left without a
+     * client for IDLE_ROOM_SECONDS.
+     * 
+     * @throws IOException if the main server socket is broken or the server has been terminated
+     *                     (IOExceptions from individual clients do *not* terminate serve())
+     */
+    public synchronized void serve() throws IOException {
+        serve(DEFAULT_WORKERS, DEFAULT_MAX_CONNECTIONS);
+    }
+    
+    /**
+     * Run the server, listening for client connections and handling each on
+     * a thread of a pool of up to workers threads. A client connecting while
+     * every worker is busy waits, without its hello message, until one is
+     * free. A client connecting while maxConnections clients are connected,
+     * handled or waiting, is sent BUSY_MESSAGE and disconnected at once.
      * Never returns unless an exception is thrown. Only a single thread can
      * run this server at a time.
      * 
+     * @param workers largest number of threads handling clients, requires workers > 0
+     * @param maxConnections largest number of clients connected at once, requires maxConnections > 0
      * @throws IOException if the main server socket is broken or the server has been terminated
      *                     (IOExceptions from individual clients do *not* terminate serve())
      */
-    public synchronized void serve() throws IOException {
-        while (true) {
-            // block until a client connects
-            final Socket socket = serverSocket.accept();
-
-            new Thread(new Runnable() {
-                public void run() {
-                    // handle the client
-                    try {
-                        handleConnection(socket);
-                    } catch (IOException ioe) {
-                        ioe.printStackTrace();
+    public synchronized void serve(int workers, int maxConnections) throws IOException {
+        serve(Thread::new, workers, maxConnections);
+    }
+    
+    /**
+     * Run the server as serve() does, but handling each client on a virtual
+     * thread instead of a platform thread of its own, so that the server can
+     * keep many more clients connected. Virtual threads are found by
+     * reflection, since the server also runs on JDKs without them. Never
+     * returns unless an exception is thrown. Only a single thread can run this
+     * server at a time. Up to DEFAULT_MAX_CONNECTIONS clients are connected
+     * at once.
+     * 
+     * @throws IOException if the main server socket is broken or the server has been terminated
+     *                     (IOExceptions from individual clients do *not* terminate serveOnVirtualThreads())
+     * @throws UnsupportedOperationException if the JDK running the server has no virtual threads
+     */
+    public synchronized void serveOnVirtualThreads() throws IOException {
+        serveOnVirtualThreads(DEFAULT_MAX_CONNECTIONS);
+    }
+    
+    /**
+     * Run the server as serveOnVirtualThreads() does, with up to
+     * maxConnections clients connected at once; a client connecting while
+     * that many are is sent BUSY_MESSAGE and disconnected at once. Never
+     * returns unless an exception is thrown.
+     * 
+     * @param maxConnections largest number of clients connected at once, requires maxConnections > 0
+     * @throws IOException if the main server socket is broken or the server has been terminated
+     *                     (IOExceptions from individual clients do *not* terminate serveOnVirtualThreads())
+     * @throws UnsupportedOperationException if the JDK running the server has no virtual threads
+     */
+    public synchronized void serveOnVirtualThreads(int maxConnections) throws IOException {
+        // Every client admitted gets a virtual thread at once
+        serve(virtualThreadFactory(), maxConnections, maxConnections);
+    }
+    
+    /**
+     * @return a factory of virtual threads
+     * @throws UnsupportedOperationException if the JDK running the server has no virtual threads
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException roe) {
+            throw new UnsupportedOperationException("virtual threads need JDK 21 or later", roe);
+        }
+    }
+    
+    /**
+     * Run the server, handling each client on a thread of a bounded pool.
+     * 
+     * @param clientThreads factory of the threads handling the clients
+     * @param workers largest number of threads handling clients, requires workers > 0
+     * @param maxConnections largest number of clients connected at once, requires maxConnections > 0
+     * @throws IOException if the main server socket is broken or the server has been terminated
+     */
+    private synchronized void serve(ThreadFactory clientThreads, int workers, int maxConnections)
+            throws IOException {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers " + workers + " out of range");
+        }
+        final Semaphore admissions = admissions(maxConnections);
+        // Clients wait in the queue for a worker; admissions bounds its length
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers,
+                IDLE_WORKER_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), clientThreads);
+        pool.allowCoreThreadTimeOut(true);
+        final ScheduledExecutorService sweeper = startSweeper();
+        try {
+            while (true) {
+                // block until a client connects
+                final Socket socket = serverSocket.accept();
+                if (!admissions.tryAcquire()) {
+                    reject(socket);
+                    continue;
+                }
+                
+                queuedConnections.incrementAndGet();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        queuedConnections.decrementAndGet();
+                        // handle the client
+                        try {
+                            handleConnection(socket);
+                        } catch (IOException ioe) {
+                            ioe.printStackTrace();
+                        } finally {
+                            admissions.release();
+                        }
                     }
+                });
+            }
+        } finally {
+            sweeper.shutdownNow();
+            // Clients already admitted are still handled
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * @param maxConnections largest number of clients connected at once
+     * @return a semaphore with a permit for each client admitted at once
+     * @throws IllegalArgumentException if maxConnections is not positive
+     */
+    private static Semaphore admissions(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("max connections " + maxConnections + " out of range");
+        }
+        return new Semaphore(maxConnections);
+    }
+    
+    /**
+     * Turn away a client the server has no room for: send it BUSY_MESSAGE and
+     * disconnect it. The message is short enough to fit in the send buffer of
+     * a new socket, so this does not block.
+     * 
+     * @param socket socket where the client is connected, closed when this returns
+     */
+    private void reject(Socket socket) {
+        rejectedConnections.increment();
+        try (Socket rejected = socket) {
+            rejected.getOutputStream().write((BUSY_MESSAGE + LINE_SEPARATOR).getBytes(CHARSET));
+        } catch (IOException ioe) {
+            // The client is gone already, which is as good
+        }
+    }
+    
+    /**
+     * @return the number of clients admitted and waiting for a worker thread
+     *         to be handled
+     */
+    public int queuedConnections() {
+        return queuedConnections.get();
+    }
+    
+    /**
+     * @return the number of clients sent BUSY_MESSAGE and disconnected since
+     *         the server was made
+     */
+    public long rejectedConnections() {
+        return rejectedConnections.sum();
+    }
+    
+    /**
+     * Run the server, listening for client connections and handling them the
+     * way serve() does, but with non-blocking sockets: the calling thread
+     * accepts the connections and hands them in turn to a fixed number of
+     * event loop threads, each handling many clients. Requests and replies
+     * are the same as with serve(), but a client sending a request longer than
+     * MAX_REQUEST_BYTES bytes is disconnected. Up to DEFAULT_MAX_CONNECTIONS
+     * clients are connected at once. Never returns unless an exception is
+     * thrown. Only a single thread can run this server at a time.
+     * 
+     * @param loops number of event loop threads, requires loops > 0
+     * @throws IOException if the main server socket is broken or the server has been terminated
+     *                     (IOExceptions from individual clients do *not* terminate serveNonBlocking())
+     */
+    public synchronized void serveNonBlocking(int loops) throws IOException {
+        serveNonBlocking(loops, DEFAULT_MAX_CONNECTIONS);
+    }
+    
+    /**
+     * Run the server as serveNonBlocking(int) does, with up to maxConnections
+     * clients connected at once; a client connecting while that many are is
+     * sent BUSY_MESSAGE and disconnected at once. Never returns unless an
+     * exception is thrown.
+     * 
+     * @param loops number of event loop threads, requires loops > 0
+     * @param maxConnections largest number of clients connected at once, requires maxConnections > 0
+     * @throws IOException if the main server socket is broken or the server has been terminated
+     *                     (IOExceptions from individual clients do *not* terminate serveNonBlocking())
+     */
+    public synchronized void serveNonBlocking(int loops, int maxConnections) throws IOException {
+        final Semaphore admissions = admissions(maxConnections);
+        final EventLoop[] eventLoops = new EventLoop[loops];
+        for (int k = 0; k < loops; k++) {
+            eventLoops[k] = new EventLoop(admissions);
+        }
+        for (int k = 0; k < loops; k++) {
+            new Thread(eventLoops[k], "event loop " + k).start();
+        }
+        final ScheduledExecutorService sweeper = startSweeper();
+        try {
+            for (int k = 0; true; ) {
+                // block until a client connects
+                final SocketChannel channel = serverSocket.getChannel().accept();
+                if (admissions.tryAcquire()) {
+                    eventLoops[k].add(channel);
+                    k = (k + 1) % loops;
+                } else {
+                    reject(channel.socket());
                 }
-            }).start();
+            }
+        } finally {
+            sweeper.shutdownNow();
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.stopAccepting();
+            }
+        }
+    }
+    
+    /**
+     * @return a scheduler running, on a daemon thread, a periodic removal of
+     *         the rooms left without a client for IDLE_ROOM_SECONDS
+     */
+    private ScheduledExecutorService startSweeper() {
+        final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "room sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> removeIdleRooms(TimeUnit.SECONDS.toNanos(IDLE_ROOM_SECONDS)),
+                SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+        return sweeper;
+    }
+    
+    /**
+     * Close and remove the rooms, other than the default room, that have been
+     * without a client for at least idleNanos.
+     * 
+     * @param idleNanos time in nanoseconds a room must have been without a client
+     */
+    void removeIdleRooms(long idleNanos) {
+        final long now = System.nanoTime();
+        for (Room room : rooms.values()) {
+            if (room != lobby && room.closeIfIdle(now, idleNanos)) {
+                rooms.remove(room.id(), room);
+            }
         }
     }
     
+    /**
+     * @return the number of rooms hosted, including the default room
+     */
+    int numberOfRooms() {
+        return rooms.size();
+    }
+    
     /**
      * Terminates this server. The socket on which the server is listening is
      * closed, and any thread running serve() will throw IOException indicating
      * the termination of the server. Once the server is terminated, it can no
      * longer be restarted; any attempt to do so with throw an IOException.
-     * Individual client connections are *not* terminated.
+     * Individual client connections are *not* terminated, but the journal of
+     * the default room's board, if any, is closed: their changes are no longer recorded, and
+     * they are disconnected instead of answered.
      * 
      * @throws IOException
      *             if an I/O error occurs when terminating the server.
      */
     public void terminate() throws IOException {
-        serverSocket.close();
+        try {
+            serverSocket.close();
+        } finally {
+            lobby.closeJournal();
+        }
     }
-
+    
     /**
      * Handle a single client connection. Returns when client disconnects.
      * 
@@ -223,80 +871,705 @@ public class MinesweeperServer {
      *             unexpectedly
      */
     private void handleConnection(Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()), MAX_PEEK);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
         
-        synchronized(lock) {++numberOfClients;}
+        final Session session = new Session(lobby);
         
         // Send hello message immediately after connection.
-        out.println(String.format(HELLO_MESSAGE_FORMAT, board.sizeX(), board.sizeY(), numberOfClients));
-
+        out.println(helloMessage(lobby.enter()));
+        out.flush();
+        
         try {
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                String output = handleRequest(line);
-
-                if (output == null) {
+            String line = in.readLine();
+            while (line != null) {
+                // Replies to requests already received go out together, in order
+                final boolean buffered = lineBuffered(in);
+                final String next = buffered ? in.readLine() : null;
+                
+                final String reply = respond(session, line, next);
+                if (reply == null) {
                     // TODO: Consider improving spec of handleRequest to avoid use of null
                     break;
                 }
                 
-                out.println(output);
+                out.print(reply);
                 
-                if (output.equals(BOOM_MESSAGE) && !debug) {
+                if (disconnects(reply)) {
                     break;
                 }
+                
+                if (buffered) {
+                    line = next;
+                } else {
+                    out.flush();
+                    line = in.readLine();
+                }
             }
         } finally {
-            out.close();
-            in.close();
-            socket.close();
-            synchronized(lock) {--numberOfClients;}
+            session.room.exit();
+            out.flush();
+            closeLingering(socket);
         }
     }
-
+    
+    /**
+     * Close a client's socket once the client has read its replies. Closing a
+     * socket with requests of the client left unread resets the connection,
+     * and the client can lose the replies it has not read yet; so output is
+     * shut down first, and whatever the client still sends is discarded until
+     * it closes its end, or for at most LINGER_MILLIS.
+     * 
+     * @param socket socket where the client is connected
+     */
+    private static void closeLingering(Socket socket) {
+        try (Socket lingering = socket) {
+            lingering.shutdownOutput();
+            final InputStream in = lingering.getInputStream();
+            final byte[] discarded = new byte[MAX_PEEK];
+            final long deadline = System.currentTimeMillis() + LINGER_MILLIS;
+            for (long left = LINGER_MILLIS; left > 0; left = deadline - System.currentTimeMillis()) {
+                lingering.setSoTimeout((int) left);
+                if (in.read(discarded) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            // The client is gone already, or did not close its end in time
+        }
+    }
+    
+    /**
+     * @param players number of players in the default room, including the client
+     * @return the hello message sent to a client as it connects
+     */
+    private String helloMessage(int players) {
+        return String.format(HELLO_MESSAGE_FORMAT, lobby.board().sizeX(), lobby.board().sizeY(), players);
+    }
+    
+    /**
+     * Handle a request of a client, and the commands changing the state of its
+     * connection.
+     * 
+     * @param session state of the client's connection
+     * @param line request of the client
+     * @param next request received after line, or null if none is received yet
+     * @return the reply, each of its lines followed by a line separator, possibly none; or
+     *         null if the client is to be disconnected without a reply
+     * @throws IOException if the change requested cannot be recorded in the journal
+     */
+    private String respond(Session session, String line, String next) throws IOException {
+        // With coalescing on, a board is left out when the next request
+        // already received is answered with the board as well
+        final boolean superseded = session.coalesce && next != null && session.lookahead.parseBoardRequest(next);
+        final Request request = session.request;
+        final Request.Kind kind = request.parse(line);
+        final String output;
+        if (kind == Request.Kind.COALESCE) {
+            session.coalesce = request.coalesce();
+            output = line;
+        } else if (kind == Request.Kind.JOIN || kind == Request.Kind.CREATE || kind == Request.Kind.LEAVE) {
+            final String id = kind == Request.Kind.LEAVE ? DEFAULT_ROOM : request.room();
+            final Room entered = kind == Request.Kind.CREATE ? createRoom(id, request.width(), request.height())
+                    : joinRoom(id);
+            if (entered == null) {
+                output = String.format(kind == Request.Kind.CREATE ? ROOM_NOT_CREATED_MESSAGE_FORMAT
+                        : NO_ROOM_MESSAGE_FORMAT, id);
+            } else {
+                session.room.exit();
+                session.room = entered;
+                session.toldGameOver = false;
+                output = joinedMessage(entered);
+            }
+        } else {
+            output = handleRequest(request, session.room, session, !superseded);
+        }
+        
+        if (output == null) {
+            return null;
+        }
+        
+        final StringBuilder reply = new StringBuilder();
+        // Left out: the board in reply to a superseded request
+        if (!superseded || !output.isEmpty()) {
+            reply.append(output).append(LINE_SEPARATOR);
+        }
+        
+        if (!session.toldGameOver && session.room.finisher() != null) {
+            session.toldGameOver = true;
+            if (session.room.finisher() != session) {
+                reply.append(GAME_OVER_MESSAGE).append(LINE_SEPARATOR);
+            }
+        }
+        return reply.toString();
+    }
+    
+    /**
+     * @param reply reply to a request, as returned by respond()
+     * @return true if the client is to be disconnected after the reply
+     */
+    private boolean disconnects(String reply) {
+        return reply.startsWith(BOOM_MESSAGE) && !debug;
+    }
+    
+    /**
+     * State of a client's connection, confined to the thread handling it.
+     */
+    private static final class Session {
+        /** Room the client is in. */
+        Room room;
+        /** True if a board superseded by the next request already received is left out. */
+        boolean coalesce;
+        /** True once the client is sent GAME_OVER_MESSAGE for room, or needs not be. */
+        boolean toldGameOver;
+        /** Request of the client handled last, parsed anew for each line. */
+        final Request request = new Request();
+        /** Request of the client received after the one handled last, parsed to tell if it supersedes it. */
+        final Request lookahead = new Request();
+        
+        /**
+         * @param room room the client is in
+         */
+        Session(Room room) {
+            this.room = room;
+        }
+    }
+    
+    /**
+     * A client handled by an event loop.
+     */
+    private static final class Connection {
+        /** Non-blocking channel of the client. */
+        final SocketChannel channel;
+        /** State of the client's connection. */
+        final Session session;
+        /** Bytes received and not yet handled, in write mode. */
+        ByteBuffer input = ByteBuffer.allocate(MAX_PEEK);
+        /** True if the last line read ended with '\r', so that a '\n' right after it ends no line. */
+        boolean skipLineFeed;
+        /** Replies not yet written, in order. */
+        final Deque<ByteBuffer> output = new ArrayDeque<>();
+        /** True once no more requests are handled; the channel is closed once output is written. */
+        boolean closing;
+        /** True once output is written and shut down, while waiting for the client to close its end. */
+        boolean lingering;
+        /** System.currentTimeMillis() by which the channel is closed, once lingering. */
+        long lingerDeadline;
+        
+        /**
+         * @param channel non-blocking channel of the client
+         * @param session state of the client's connection
+         */
+        Connection(SocketChannel channel, Session session) {
+            this.channel = channel;
+            this.session = session;
+        }
+    }
+    
+    /**
+     * Event loop handling the clients handed to it, whose channels are
+     * registered with its selector. A request is handled as soon as its line
+     * is read; the replies to the requests read together are written
+     * together. While a client's replies cannot all be written, its requests
+     * are not read.
+     */
+    private final class EventLoop implements Runnable {
+        /** Selector of the channels of the clients. */
+        private final Selector selector;
+        /** Clients handed to the loop and not yet registered. */
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        /** False once no more clients are handed to the loop. */
+        private volatile boolean accepting = true;
+        /** Number of clients registered and not yet disconnected. */
+        private int connections;
+        /** Clients lingering, and possibly disconnected since, by lingerDeadline. */
+        private final Queue<Connection> lingering = new ArrayDeque<>();
+        /**
+         * Admissions of the clients, one permit of which each client handed to
+         * the loop holds until it lingers.
+         */
+        private final Semaphore admissions;
+        
+        /**
+         * @param admissions admissions of the clients, given a permit back as
+         *            each client lingers or is disconnected
+         * @throws IOException if the selector cannot be opened
+         */
+        EventLoop(Semaphore admissions) throws IOException {
+            this.admissions = admissions;
+            selector = Selector.open();
+        }
+        
+        /**
+         * Hand a client to the loop.
+         * 
+         * @param channel channel of the client, just accepted
+         */
+        void add(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+        
+        /**
+         * Let the loop end once it has no client left.
+         */
+        void stopAccepting() {
+            accepting = false;
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (accepting || connections > 0 || !accepted.isEmpty()) {
+                    selector.select(lingerTimeout());
+                    closeLingering();
+                    for (SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll()) {
+                        connect(channel);
+                    }
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        // Skip a client disconnected earlier in this pass, by closeLingering()
+                        if (key.isValid()) {
+                            handle(key);
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        }
+        
+        /**
+         * @return the time in milliseconds to wait for the channels before the
+         *         first lingering client is to be disconnected, or 0 to wait
+         *         with no time limit if none is lingering
+         */
+        private long lingerTimeout() {
+            final Connection first = lingering.peek();
+            return first == null ? 0 : Math.max(1, first.lingerDeadline - System.currentTimeMillis());
+        }
+        
+        /**
+         * Disconnect the lingering clients past their lingerDeadline.
+         */
+        private void closeLingering() {
+            final long now = System.currentTimeMillis();
+            for (Connection first = lingering.peek(); first != null
+                    && (!first.channel.isOpen() || first.lingerDeadline <= now); first = lingering.peek()) {
+                lingering.remove();
+                disconnect(first);
+            }
+        }
+        
+        /**
+         * Register a client and send it the hello message.
+         * 
+         * @param channel channel of the client
+         */
+        private void connect(SocketChannel channel) {
+            final Connection connection = new Connection(channel, new Session(lobby));
+            ++connections;
+            connection.output.add(encode(helloMessage(lobby.enter()) + LINE_SEPARATOR));
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, connection);
+                write(connection);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                disconnect(connection);
+            }
+        }
+        
+        /**
+         * Read and write what a client's channel is ready for, and disconnect
+         * it if that fails.
+         * 
+         * @param key selection key of the client's channel
+         */
+        private void handle(SelectionKey key) {
+            final Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    read(connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                disconnect(connection);
+            }
+        }
+        
+        /**
+         * Read what a client sent, handle the whole requests it holds and
+         * write their replies. At end of stream, a last request without a
+         * line end is handled too, as BufferedReader.readLine() does. A
+         * request that fails, as a change that cannot be recorded in the
+         * journal, ends the client's requests after the replies before it.
+         * What a lingering client sends is discarded.
+         * 
+         * @param connection the client
+         * @throws IOException if an I/O error occurs
+         */
+        private void read(Connection connection) throws IOException {
+            if (connection.lingering) {
+                connection.input.clear();
+                if (connection.channel.read(connection.input) < 0) {
+                    disconnect(connection);
+                }
+                return;
+            }
+            final boolean ended = connection.channel.read(connection.input) < 0;
+            final List<String> lines = lines(connection);
+            if (ended) {
+                if (connection.input.position() > 0) {
+                    lines.add(new String(connection.input.array(), 0, connection.input.position(), CHARSET));
+                }
+                connection.closing = true;
+            } else if (!connection.input.hasRemaining()) {
+                if (connection.input.capacity() >= MAX_REQUEST_BYTES) {
+                    throw new IOException("request longer than " + MAX_REQUEST_BYTES + " bytes");
+                }
+                final ByteBuffer larger = ByteBuffer.allocate(2 * connection.input.capacity());
+                connection.input.flip();
+                connection.input = larger.put(connection.input);
+            }
+            
+            // Replies to requests already received go out together, in order
+            final StringBuilder replies = new StringBuilder();
+            for (int k = 0; k < lines.size(); k++) {
+                final String reply;
+                try {
+                    reply = respond(connection.session, lines.get(k), k + 1 < lines.size() ? lines.get(k + 1) : null);
+                } catch (IOException | RuntimeException e) {
+                    // As with a blocking socket, the replies before still go
+                    // out, and then the client is disconnected
+                    e.printStackTrace();
+                    connection.closing = true;
+                    break;
+                }
+                if (reply == null) {
+                    connection.closing = true;
+                    break;
+                }
+                replies.append(reply);
+                if (disconnects(reply)) {
+                    connection.closing = true;
+                    break;
+                }
+            }
+            if (replies.length() > 0) {
+                connection.output.add(encode(replies.toString()));
+            }
+            write(connection);
+        }
+        
+        /**
+         * Remove the whole lines from the bytes a client sent. A line ends
+         * with '\n', '\r', or '\r' followed by '\n', as for
+         * BufferedReader.readLine().
+         * 
+         * @param connection the client
+         * @return the lines removed, without their line ends
+         */
+        private List<String> lines(Connection connection) {
+            final List<String> lines = new ArrayList<>();
+            final ByteBuffer input = connection.input;
+            final byte[] bytes = input.array();
+            int start = 0;
+            for (int i = 0; i < input.position(); i++) {
+                if (connection.skipLineFeed) {
+                    connection.skipLineFeed = false;
+                    if (bytes[i] == '\n') {
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                if (bytes[i] == '\n' || bytes[i] == '\r') {
+                    lines.add(new String(bytes, start, i - start, CHARSET));
+                    connection.skipLineFeed = bytes[i] == '\r';
+                    start = i + 1;
+                }
+            }
+            input.flip().position(start);
+            input.compact();
+            return lines;
+        }
+        
+        /**
+         * Write as much of a client's replies as its channel takes, then wait
+         * to read its next requests if they are all written, to write the
+         * rest otherwise; or let it linger if it is closing and they are all
+         * written.
+         * 
+         * @param connection the client
+         * @throws IOException if an I/O error occurs
+         */
+        private void write(Connection connection) throws IOException {
+            while (!connection.output.isEmpty()) {
+                final ByteBuffer head = connection.output.peek();
+                connection.channel.write(head);
+                if (head.hasRemaining()) {
+                    connection.channel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.output.remove();
+            }
+            if (connection.closing) {
+                linger(connection);
+            } else {
+                connection.channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+            }
+        }
+        
+        /**
+         * Take a client whose replies are all written out of its room, making
+         * room for another client, and shut down its output; then wait for it
+         * to close its end before closing the channel, for at most
+         * LINGER_MILLIS, as closeLingering(Socket) does with a blocking
+         * socket.
+         * 
+         * @param connection the client, closing
+         * @throws IOException if an I/O error occurs
+         */
+        private void linger(Connection connection) throws IOException {
+            connection.session.room.exit();
+            admissions.release();
+            connection.lingering = true;
+            connection.lingerDeadline = System.currentTimeMillis() + LINGER_MILLIS;
+            lingering.add(connection);
+            connection.channel.shutdownOutput();
+            connection.channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+        }
+        
+        /**
+         * Close a client's channel and take it out of its room, unless already
+         * done.
+         * 
+         * @param connection the client
+         */
+        private void disconnect(Connection connection) {
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            if (!connection.lingering) {
+                connection.session.room.exit();
+                admissions.release();
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            --connections;
+        }
+    }
+    
+    /**
+     * @param text text of a reply
+     * @return text encoded in CHARSET, ready to be written
+     */
+    private static ByteBuffer encode(String text) {
+        return ByteBuffer.wrap(text.getBytes(CHARSET));
+    }
+    
+    /**
+     * @param in reader of a client's requests
+     * @return true if in holds a whole line already received, so that reading it does not block
+     * @throws IOException if an I/O error occurs
+     */
+    private static boolean lineBuffered(BufferedReader in) throws IOException {
+        in.mark(MAX_PEEK);
+        try {
+            for (int n = 0; n < MAX_PEEK && in.ready(); n++) {
+                final int c = in.read();
+                if (c == '\n' || c == '\r' || c == -1) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+    
+    /**
+     * Enter a client in a room.
+     * 
+     * @param id name of the room
+     * @return the room, or null if there is no room named id
+     */
+    private Room joinRoom(String id) {
+        final Room room = rooms.get(id);
+        return room != null && room.enter() > 0 ? room : null;
+    }
+    
+    /**
+     * Make a room playing a new random board, entered by a client.
+     * 
+     * @param id name of the room
+     * @param sizeX width of the board
+     * @param sizeY height of the board
+     * @return the room, or null if a room named id exists, the board would be
+     *         empty or have more than MAX_BOARD_MESSAGE_SQUARES squares, or
+     *         there are MAX_ROOMS rooms already
+     */
+    private Room createRoom(String id, int sizeX, int sizeY) {
+        if (sizeX == 0 || sizeY == 0 || (long) sizeX * sizeY > MAX_BOARD_MESSAGE_SQUARES
+                || rooms.size() >= MAX_ROOMS || rooms.containsKey(id)) {
+            return null;
+        }
+        final Room room = new Room(id, new Board(sizeX, sizeY), null, 1);
+        return rooms.putIfAbsent(id, room) == null ? room : null;
+    }
+    
+    /**
+     * @param room room a client just entered
+     * @return JOINED_MESSAGE_FORMAT filled in for room; the number of players
+     *         is read at the time of the call
+     */
+    private static String joinedMessage(Room room) {
+        return String.format(JOINED_MESSAGE_FORMAT, room.id(), room.board().sizeX(), room.board().sizeY(),
+                room.numberOfClients());
+    }
+    
     /**
      * Handler for client input, performing requested operations and returning an output message.
      * 
-     * @param input message from client
+     * @param request message from client, parsed, neither a room nor a coalesce request
+     * @param room room the client is in
+     * @param requester state of the client's connection
+     * @param showBoard false to leave out a reply made of the board alone, which is then the empty string
      * @return message to client, or null if none
+     * @throws IOException if the change requested cannot be recorded in the journal
      */
-    private String handleRequest(String input) {
-        String regex = "(look)|(help)|(bye)|"
-                     + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
-        if ( ! input.matches(regex)) {
+    private String handleRequest(Request request, Room room, Session requester, boolean showBoard) throws IOException {
+        final Board board = room.board();
+        if (request.kind() == null) {
             // invalid input
             return HELP_MESSAGE;
         }
-        String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
+        switch (request.kind()) {
+        case LOOK:
             // 'look' request
-            return board.toString();
-        } else if (tokens[0].equals("help")) {
+            return boardMessage(board, showBoard);
+        case LOOK_AREA: {
+            // 'look x y w h' request
+            int x = request.x();
+            int y = request.y();
+            int width = request.width();
+            int height = request.height();
+            long columns = Math.min((long) x + width, board.sizeX()) - Math.max(x, 0);
+            long rows = Math.min((long) y + height, board.sizeY()) - Math.max(y, 0);
+            if (columns > 0 && rows > 0 && columns * rows > MAX_BOARD_MESSAGE_SQUARES) {
+                return BOARD_TOO_LARGE_MESSAGE;
+            }
+            return board.toString(x, y, width, height);
+        }
+        case HELP:
             // 'help' request
             return HELP_MESSAGE;
-        } else if (tokens[0].equals("bye")) {
+        case BYE:
             // 'bye' request
             return null;
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (tokens[0].equals("dig")) {
-                // 'dig x y' request
-                return board.dig(x, y) ? BOOM_MESSAGE : board.toString();
-            } else if (tokens[0].equals("flag")) {
-                // 'flag x y' request
-                board.flag(x, y);
-                return board.toString();
-            } else if (tokens[0].equals("deflag")) {
-                // 'deflag x y' request
-                board.deflag(x, y);
-                return board.toString();
-            }
-        }
-        // TODO: Should never get here, make sure to return in each of the cases above
-        throw new UnsupportedOperationException();
+        case STATS:
+            // 'stats' request
+            return String.format(STATS_MESSAGE_FORMAT, board.mines(), board.flagged(), board.untouched(),
+                    board.safeSquaresLeft());
+        case BATCH:
+            // 'batch move; move; ...' request
+            return handleBatch(request, room, requester, showBoard);
+        case CHANGES: {
+            // 'changes version' request
+            final long version = board.version();
+            final String changes = board.changesSince(request.version());
+            if (changes == null) {
+                // Too old, or not a version of this board; start the client over
+                return String.format(BOARD_MESSAGE_FORMAT, version) + "\n" + boardMessage(board, true);
+            }
+            return String.format(CHANGES_MESSAGE_FORMAT, changes);
+        }
+        case DIG: {
+            // 'dig x y' request
+            final boolean boom = board.dig(request.x(), request.y());
+            room.record();
+            if (board.safeSquaresLeft() == 0) {
+                room.announceGameOver(requester);
+            }
+            return boom ? BOOM_MESSAGE : boardMessage(board, showBoard);
+        }
+        case CHORD: {
+            // 'chord x y' request
+            final boolean boom = board.chord(request.x(), request.y());
+            room.record();
+            if (board.safeSquaresLeft() == 0) {
+                room.announceGameOver(requester);
+            }
+            return boom ? BOOM_MESSAGE : boardMessage(board, showBoard);
+        }
+        case FLAG:
+            // 'flag x y' request
+            board.flag(request.x(), request.y());
+            room.record();
+            return boardMessage(board, showBoard);
+        case DEFLAG:
+            // 'deflag x y' request
+            board.deflag(request.x(), request.y());
+            room.record();
+            return boardMessage(board, showBoard);
+        default:
+            throw new AssertionError("unknown request kind " + request.kind());
+        }
     }
-
+    
+    /**
+     * Apply the moves of a batch request to the board as one update.
+     * 
+     * @param request batch request, parsed, of at most MAX_BATCH_MOVES moves
+     * @param room room the client is in
+     * @param requester state of the client's connection
+     * @param showBoard false to reply with the empty string in place of the board
+     * @return the board, or BATCH_BOOM_MESSAGE_FORMAT with the index of the move that exploded a mine
+     * @throws IOException if the changes cannot be recorded in the journal
+     */
+    private String handleBatch(Request request, Room room, Session requester, boolean showBoard) throws IOException {
+        final Board board = room.board();
+        final int boom = board.batch(request.moves(), request.xs(), request.ys(), request.count());
+        room.record();
+        if (board.safeSquaresLeft() == 0) {
+            room.announceGameOver(requester);
+        }
+        return boom >= 0 ? String.format(BATCH_BOOM_MESSAGE_FORMAT, boom) : boardMessage(board, showBoard);
+    }
+    
+    /**
+     * @param board board to show
+     * @param showBoard false to leave the board out
+     * @return the board rendered as specified by Board.toString(), or
+     *         BOARD_TOO_LARGE_MESSAGE if it has more than
+     *         MAX_BOARD_MESSAGE_SQUARES squares; the empty string if
+     *         !showBoard
+     */
+    private static String boardMessage(Board board, boolean showBoard) {
+        if (!showBoard) {
+            return "";
+        }
+        if ((long) board.sizeX() * board.sizeY() > MAX_BOARD_MESSAGE_SQUARES) {
+            return BOARD_TOO_LARGE_MESSAGE;
+        }
+        return board.toString();
+    }
+    
     /**
      * @return the port assigned to the server socket
      */
@@ -308,7 +1581,7 @@ public class MinesweeperServer {
      * Start a MinesweeperServer using the given arguments.
      * 
      * <br> Usage:
-     *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
+     *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE] [--seed SEED] [--journal DIR] [--mapped FILE] [--event-loops N | --virtual-threads] [--workers N] [--max-connections N] [--backlog N]
      * 
      * <br> The --debug argument means the server should run in debug mode. The server should disconnect a
      *      client after a BOOM message if and only if the --debug flag was NOT given.
@@ -320,7 +1593,8 @@ public class MinesweeperServer {
      * <br> E.g. "MinesweeperServer --port 1234" starts the server listening on port 1234.
      * 
      * <br> SIZE_X and SIZE_Y are optional positive integer arguments, specifying that a random board of size
-     *      SIZE_X*SIZE_Y should be generated.
+     *      SIZE_X*SIZE_Y should be generated. Squares are generated as players reach them, so the board may
+     *      have billions of squares; boards larger than MAX_BOARD_MESSAGE_SQUARES are never sent whole.
      * <br> E.g. "MinesweeperServer --size 42,58" starts the server initialized with a random board of size
      *      42*58.
      * 
@@ -342,46 +1616,104 @@ public class MinesweeperServer {
      *   INT ::= [0-9]+
      * </pre>
      * 
+     * <br> FILE may instead be a binary board file, as written by Board.save() and specified by BoardFiles,
+     *      which starts with the magic number "MSWB". It loads much faster than a text file, and also
+     *      restores the flagged and dug squares it holds.
+     * 
      * <br> If neither --file nor --size is given, generate a random board of size 10x10.
      * 
+     * <br> SEED is an optional integer argument, specifying the seed from which the random board is generated.
+     *      The same size and seed always generate the same board. Without it, the seed is itself random.
+     *      SEED has no effect on a board loaded with --file.
+     * <br> E.g. "MinesweeperServer --size 42,58 --seed 7" starts the server initialized with random board 7
+     *      of size 42*58.
+     * 
+     * <br> DIR is an optional directory argument. If given, every change made to the board is recorded in DIR
+     *      before it is answered, as specified by BoardJournal, and a server restarted with the same DIR resumes
+     *      the board as it was left, even after a crash. --file, --size and --seed are then only used to make the
+     *      board when DIR does not hold one yet.
+     * <br> E.g. "MinesweeperServer --size 42,58 --journal games/1" starts the server with the board kept in
+     *      directory games/1, or with a new random board of size 42*58 kept there if it holds none.
+     * 
+     * <br> FILE after --mapped is an optional file argument. If given, the squares of the board are stored off the
+     *      Java heap, in FILE mapped to memory, as specified by BoardStorage, so that boards larger than the heap
+     *      can be played and garbage collection pauses do not grow with the board. FILE is overwritten, and
+     *      cannot be loaded again; use --journal to keep a board across restarts.
+     * <br> E.g. "MinesweeperServer --size 100000,100000 --mapped squares.bin" starts the server initialized with
+     *      a random board of size 100000*100000 stored in squares.bin.
+     * 
+     * <br> N is an optional positive integer argument. If given, clients are served with non-blocking sockets
+     *      by N event loop threads, as specified by serveNonBlocking(), instead of by a thread each.
+     * <br> E.g. "MinesweeperServer --event-loops 4" starts the server handling its clients on 4 threads.
+     * 
+     * <br> The --virtual-threads argument means each client is served on a virtual thread of its own, as
+     *      specified by serveOnVirtualThreads(), instead of a platform thread. It requires a JDK with virtual
+     *      threads.
+     * 
+     * <br> N after --workers is an optional positive integer argument, the largest number of platform threads
+     *      clients are served on at once; a client connecting while they are all busy waits for one. It defaults
+     *      to DEFAULT_WORKERS, and has no effect with --event-loops or --virtual-threads.
+     * 
+     * <br> N after --max-connections is an optional positive integer argument, the largest number of clients
+     *      connected at once, defaulting to DEFAULT_MAX_CONNECTIONS. A client connecting beyond it is sent
+     *      BUSY_MESSAGE and disconnected.
+     * <br> E.g. "MinesweeperServer --workers 200 --max-connections 1000" starts the server handling up to 200
+     *      clients at once, with up to 800 more waiting, and turning away the others.
+     * 
+     * <br> N after --backlog is an optional positive integer argument, the length of the queue of connections
+     *      the operating system keeps until the server accepts them, defaulting to DEFAULT_BACKLOG.
+     * 
      * <br> Note that --file and --size may not be specified simultaneously.
      * 
      * @param args arguments as described
      */
     public static void main(String[] args) {
-        // Command-line argument parsing is provided. Do not change this method.
-        boolean debug = false;
-        int port = DEFAULT_PORT;
-        int sizeX = DEFAULT_SIZE;
-        int sizeY = DEFAULT_SIZE;
-        Optional<File> file = Optional.empty();
-
+        final Options options = new Options();
+        
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
             while ( ! arguments.isEmpty()) {
                 String flag = arguments.remove();
                 try {
                     if (flag.equals("--debug")) {
-                        debug = true;
+                        options.debug(true);
                     } else if (flag.equals("--no-debug")) {
-                        debug = false;
+                        options.debug(false);
                     } else if (flag.equals("--port")) {
-                        port = Integer.parseInt(arguments.remove());
-                        if (port < 0 || port > MAXIMUM_PORT) {
-                            throw new IllegalArgumentException("port " + port + " out of range");
-                        }
+                        options.port(Integer.parseInt(arguments.remove()));
                     } else if (flag.equals("--size")) {
                         String[] sizes = arguments.remove().split(",");
-                        sizeX = Integer.parseInt(sizes[0]);
-                        sizeY = Integer.parseInt(sizes[1]);
-                        file = Optional.empty();
+                        options.size(Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]));
                     } else if (flag.equals("--file")) {
-                        sizeX = -1;
-                        sizeY = -1;
-                        file = Optional.of(new File(arguments.remove()));
-                        if ( ! file.get().isFile()) {
-                            throw new IllegalArgumentException("file not found: \"" + file.get() + "\"");
+                        File file = new File(arguments.remove());
+                        if ( ! file.isFile()) {
+                            throw new IllegalArgumentException("file not found: \"" + file + "\"");
+                        }
+                        options.file(file);
+                    } else if (flag.equals("--seed")) {
+                        options.seed(Long.parseLong(arguments.remove()));
+                    } else if (flag.equals("--journal")) {
+                        File journal = new File(arguments.remove());
+                        if (journal.exists() && ! journal.isDirectory()) {
+                            throw new IllegalArgumentException("not a directory: \"" + journal + "\"");
                         }
+                        options.journal(journal);
+                    } else if (flag.equals("--mapped")) {
+                        options.mapped(new File(arguments.remove()));
+                    } else if (flag.equals("--event-loops")) {
+                        int eventLoops = Integer.parseInt(arguments.remove());
+                        if (eventLoops == 0) {
+                            throw new IllegalArgumentException("event loops " + eventLoops + " out of range");
+                        }
+                        options.eventLoops(eventLoops);
+                    } else if (flag.equals("--virtual-threads")) {
+                        options.virtualThreads(true);
+                    } else if (flag.equals("--workers")) {
+                        options.workers(Integer.parseInt(arguments.remove()));
+                    } else if (flag.equals("--max-connections")) {
+                        options.maxConnections(Integer.parseInt(arguments.remove()));
+                    } else if (flag.equals("--backlog")) {
+                        options.backlog(Integer.parseInt(arguments.remove()));
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -391,40 +1723,45 @@ public class MinesweeperServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 }
             }
+            if (options.eventLoops > 0 && options.virtualThreads) {
+                throw new IllegalArgumentException("--event-loops and --virtual-threads may not be specified simultaneously");
+            }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE] [--seed SEED] [--journal DIR] [--mapped FILE] [--event-loops N | --virtual-threads] [--workers N] [--max-connections N] [--backlog N]");
             return;
         }
-
+        
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            runMinesweeperServer(options);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
     }
-
+    
     /**
-     * Start a MinesweeperServer running on the specified port, with either a random new board or a
-     * board loaded from a file.
-     * 
-     * @param debug The server will disconnect a client after a BOOM message if and only if debug is false.
-     * @param file If file.isPresent(), start with a board loaded from the specified file,
-     *             according to the input file format defined in the documentation for main(..).
-     * @param sizeX If (!file.isPresent()), start with a random board with width sizeX
-     *              (and require sizeX > 0).
-     * @param sizeY If (!file.isPresent()), start with a random board with height sizeY
-     *              (and require sizeY > 0).
-     * @param port The network port on which the server should listen, requires 0 <= port <= 65535.
-     * @throws IOException if a network error occurs
-     */
-    public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port) throws IOException {
-        if (file.isPresent()) {
-            MinesweeperServer server = new MinesweeperServer(port, debug, file.get());
-            server.serve();
+     * Start a MinesweeperServer as specified by options, and serve its clients
+     * on event loops, on a virtual thread each, or on a platform thread each
+     * from a bounded pool, as the options say. Never returns unless an
+     * exception is thrown.
+     * 
+     * @param options options of the server
+     * @throws IOException if a network error occurs, or an error occurs loading the board or reading or
+     *                     writing the journal or the mapped file
+     * @throws UnsupportedOperationException if options ask for virtual threads and the JDK has none
+     */
+    public static void runMinesweeperServer(Options options) throws IOException {
+        if (options.eventLoops == 0 && options.virtualThreads) {
+            // Fail before the board is made
+            virtualThreadFactory();
+        }
+        final MinesweeperServer server = new MinesweeperServer(options);
+        if (options.eventLoops > 0) {
+            server.serveNonBlocking(options.eventLoops, options.maxConnections);
+        } else if (options.virtualThreads) {
+            server.serveOnVirtualThreads(options.maxConnections);
         } else {
-            MinesweeperServer server = new MinesweeperServer(port, debug, sizeX, sizeY);
-            server.serve();
+            server.serve(options.workers, options.maxConnections);
         }
     }
 }
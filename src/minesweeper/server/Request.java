@@ -0,0 +1,531 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import minesweeper.Board;
+
+/**
+ * A request of a client, for the board of its room or for its connection,
+ * parsed from its line in a single pass. A client's requests are parsed one
+ * after the other into the same Request, so that parsing allocates nothing.
+ *
+ * The requests parsed are those of the grammar
+ * <pre>
+ *   REQUEST ::= "look" | "look" SP INT SP INT SP NAT SP NAT | "help" | "bye" | "stats"
+ *             | ("dig" | "chord" | "flag" | "deflag") SP INT SP INT | "changes" SP VERSION
+ *             | "batch" SP MOVE ("; " MOVE)*
+ *             | "join" SP ROOM | "create" SP ROOM SP SIZE SP SIZE | "leave"
+ *             | "coalesce" SP ("on" | "off")
+ *   MOVE ::= ("dig" | "flag" | "deflag") SP INT SP INT
+ *   INT ::= "-"? NAT
+ *   NAT ::= [0-9]+
+ *   VERSION ::= [0-9]{1,18}
+ *   ROOM ::= [A-Za-z0-9_-]{1,32}
+ *   SIZE ::= [0-9]{1,9}
+ *   SP ::= " "
+ * </pre>
+ * with at most MAX_MOVES moves in a batch, and no line terminator, as
+ * Pattern's '.' matches none, anywhere in a batch. A line is thus a request
+ * if and only if it matches the regular expression
+ * <pre>
+ *   look|look -?\d+ -?\d+ \d+ \d+|help|bye|(dig|chord|flag|deflag) -?\d+ -?\d+|changes \d{1,18}|stats|batch .+
+ *   |join [\w-]{1,32}|create [\w-]{1,32} \d{1,9} \d{1,9}|leave|coalesce (on|off)
+ * </pre>
+ * and, for a batch, each part of the rest of the line split around "; "
+ * matches (dig|flag|deflag) -?\d+ -?\d+.
+ */
+final class Request {
+    
+    /** Kinds of requests. */
+    enum Kind {
+        /** 'look' */
+        LOOK,
+        /** 'look X Y W H' */
+        LOOK_AREA,
+        /** 'help' */
+        HELP,
+        /** 'bye' */
+        BYE,
+        /** 'stats' */
+        STATS,
+        /** 'dig X Y' */
+        DIG,
+        /** 'chord X Y' */
+        CHORD,
+        /** 'flag X Y' */
+        FLAG,
+        /** 'deflag X Y' */
+        DEFLAG,
+        /** 'changes VERSION' */
+        CHANGES,
+        /** 'batch MOVE; MOVE; ...' */
+        BATCH,
+        /** 'join ROOM' */
+        JOIN,
+        /** 'create ROOM W H' */
+        CREATE,
+        /** 'leave' */
+        LEAVE,
+        /** 'coalesce on' or 'coalesce off' */
+        COALESCE
+    }
+    
+    /** Largest number of moves in a batch. */
+    static final int MAX_MOVES = MinesweeperServer.MAX_BATCH_MOVES;
+    /** Largest number of digits of a version. */
+    private static final int MAX_VERSION_DIGITS = 18;
+    /** Largest number of characters of a room id. */
+    private static final int MAX_ROOM_LENGTH = 32;
+    /** Largest number of digits of a size of a room's board. */
+    private static final int MAX_SIZE_DIGITS = 9;
+    
+    /** Line parsed last. */
+    private String line;
+    /** Index in line of the next character to parse. */
+    private int position;
+    /** True once an integer parsed is out of the range of int. */
+    private boolean overflow;
+    /** Kind of the request parsed last, or null if it was invalid. */
+    private Kind kind;
+    /** Integer arguments of the request parsed last. */
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    /** Version argument of the request parsed last. */
+    private long version;
+    /** Indices in line of the room id of the request parsed last, from roomStart to roomEnd. */
+    private int roomStart;
+    private int roomEnd;
+    /** True if the coalesce request parsed last turns coalescing on. */
+    private boolean coalesce;
+    /** Moves of the batch parsed last, or null until a batch is parsed. */
+    private Board.Move[] moves;
+    private int[] xs;
+    private int[] ys;
+    /** Number of moves of the batch parsed last. */
+    private int count;
+    
+    // Rep invariant:
+    //  0 <= position <= line.length() + 1 once a line is parsed, past the
+    //  end of line only once the line is found not to be a request.
+    //  moves, xs and ys are all null, or all hold MAX_MOVES entries.
+    //  0 <= count <= MAX_MOVES, and count > 0 if kind == BATCH.
+    // Abstraction function:
+    //  The request kind of line, with the arguments among x, y, width,
+    //  height, version, line.substring(roomStart, roomEnd) and coalesce its
+    //  kind has, or the batch of the first count
+    //  moves of moves, xs and ys if kind == BATCH; an invalid request if
+    //  kind == null. position and overflow only matter while parsing.
+    // Rep exposure:
+    //  moves(), xs() and ys() return the arrays of the rep, which are
+    //  overwritten by the next batch parsed; a Request is confined to the
+    //  thread handling its client, which uses them before parsing again.
+    
+    /**
+     * Parse a line of a client, as the request it holds.
+     *
+     * @param line a request of a client, without its line terminator
+     * @return the kind of request line is, or null if it is none
+     * @throws NumberFormatException if line is a request, but an integer
+     *             argument is out of the range of int, as Integer.parseInt()
+     *             would throw; for a batch, if it is so for a move whose
+     *             moves before are all valid
+     */
+    Kind parse(String line) {
+        this.line = line;
+        this.position = 0;
+        this.overflow = false;
+        this.kind = null;
+        final Kind parsed = parseRequest();
+        if (parsed != null && overflow) {
+            throw new NumberFormatException("For input string: \"" + line + "\"");
+        }
+        kind = parsed;
+        return kind;
+    }
+    
+    /**
+     * Parse a line of a client received after another, to tell whether its
+     * reply supersedes the board replied to the other.
+     *
+     * @param line a request of a client, without its line terminator
+     * @return true if line is a request whose reply is the board alone,
+     *         unless a dig explodes: a look at the whole board, a move, or a
+     *         batch, with every integer in the range of int
+     */
+    boolean parseBoardRequest(String line) {
+        final Kind parsed;
+        try {
+            parsed = parse(line);
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+        return parsed == Kind.LOOK || parsed == Kind.DIG || parsed == Kind.CHORD || parsed == Kind.FLAG
+                || parsed == Kind.DEFLAG || parsed == Kind.BATCH;
+    }
+    
+    /**
+     * @return the kind of request parsed, or null if not a request
+     */
+    private Kind parseRequest() {
+        final int end = line.indexOf(' ');
+        final int length = end < 0 ? line.length() : end;
+        if (is("look", length)) {
+            if (position == line.length()) {
+                return Kind.LOOK;
+            }
+            x = integer(true);
+            y = integer(true);
+            width = integer(false);
+            height = integer(false);
+            return ended() ? Kind.LOOK_AREA : null;
+        } else if (is("help", length)) {
+            return ended() ? Kind.HELP : null;
+        } else if (is("bye", length)) {
+            return ended() ? Kind.BYE : null;
+        } else if (is("stats", length)) {
+            return ended() ? Kind.STATS : null;
+        } else if (is("dig", length)) {
+            return parseSquare() ? Kind.DIG : null;
+        } else if (is("chord", length)) {
+            return parseSquare() ? Kind.CHORD : null;
+        } else if (is("flag", length)) {
+            return parseSquare() ? Kind.FLAG : null;
+        } else if (is("deflag", length)) {
+            return parseSquare() ? Kind.DEFLAG : null;
+        } else if (is("changes", length)) {
+            return parseVersion() ? Kind.CHANGES : null;
+        } else if (is("batch", length)) {
+            return parseBatch() ? Kind.BATCH : null;
+        } else if (is("join", length)) {
+            return parseRoom() && ended() ? Kind.JOIN : null;
+        } else if (is("create", length)) {
+            if (!parseRoom()) {
+                return null;
+            }
+            width = size();
+            height = size();
+            return ended() ? Kind.CREATE : null;
+        } else if (is("leave", length)) {
+            return ended() ? Kind.LEAVE : null;
+        } else if (is("coalesce", length)) {
+            coalesce = line.length() == position + 3 && line.startsWith(" on", position);
+            return coalesce || line.length() == position + 4 && line.startsWith(" off", position)
+                    ? Kind.COALESCE : null;
+        }
+        return null;
+    }
+    
+    /**
+     * Consume word if the first length characters of the line are word.
+     *
+     * @param word a word
+     * @param length length of the first word of the line
+     * @return true if word is the first word of the line
+     */
+    private boolean is(String word, int length) {
+        if (length != word.length() || !line.startsWith(word)) {
+            return false;
+        }
+        position = length;
+        return true;
+    }
+    
+    /**
+     * @return true if the whole line is consumed
+     */
+    private boolean ended() {
+        return position == line.length();
+    }
+    
+    /**
+     * Consume a space followed by an integer, setting overflow if it is out
+     * of the range of int.
+     *
+     * @param signed true if the integer may start with '-'
+     * @return the integer, or 0 if out of range; position is past the end of
+     *         the line if there is no such integer
+     */
+    private int integer(boolean signed) {
+        if (position >= line.length() || line.charAt(position) != ' ') {
+            position = line.length() + 1;
+            return 0;
+        }
+        position++;
+        final boolean negative = signed && position < line.length() && line.charAt(position) == '-';
+        if (negative) {
+            position++;
+        }
+        final int start = position;
+        // Accumulated negated, as Integer.parseInt() does, to reach Integer.MIN_VALUE
+        long value = 0;
+        while (position < line.length() && line.charAt(position) >= '0' && line.charAt(position) <= '9') {
+            if (value >= Integer.MIN_VALUE) {
+                value = value * 10 - (line.charAt(position) - '0');
+            }
+            position++;
+        }
+        if (position == start) {
+            position = line.length() + 1;
+            return 0;
+        }
+        if (value < Integer.MIN_VALUE || (!negative && value == Integer.MIN_VALUE)) {
+            overflow = true;
+            return 0;
+        }
+        return (int) (negative ? value : -value);
+    }
+    
+    /**
+     * @return true if the rest of the line is the coordinates of a square, parsed into x and y
+     */
+    private boolean parseSquare() {
+        x = integer(true);
+        y = integer(true);
+        return ended();
+    }
+    
+    /**
+     * @return true if the rest of the line is a version, parsed into version
+     */
+    private boolean parseVersion() {
+        if (position + 1 >= line.length() || line.charAt(position) != ' ') {
+            return false;
+        }
+        final int start = ++position;
+        long value = 0;
+        while (position < line.length() && position - start < MAX_VERSION_DIGITS
+                && line.charAt(position) >= '0' && line.charAt(position) <= '9') {
+            value = value * 10 + (line.charAt(position) - '0');
+            position++;
+        }
+        version = value;
+        return position > start && ended();
+    }
+    
+    /**
+     * Consume a space followed by a room id, found between roomStart and
+     * roomEnd; the id is only copied out of the line by room().
+     *
+     * @return true if there is such a room id
+     */
+    private boolean parseRoom() {
+        if (position >= line.length() || line.charAt(position) != ' ') {
+            return false;
+        }
+        roomStart = ++position;
+        while (position < line.length() && position - roomStart < MAX_ROOM_LENGTH && isRoomChar(line.charAt(position))) {
+            position++;
+        }
+        roomEnd = position;
+        return roomEnd > roomStart;
+    }
+    
+    /**
+     * @return true if c may be part of a room id
+     */
+    private static boolean isRoomChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-';
+    }
+    
+    /**
+     * Consume a space followed by the size of a room's board.
+     *
+     * @return the size; position is past the end of the line if there is no
+     *         such size
+     */
+    private int size() {
+        if (position >= line.length() || line.charAt(position) != ' ') {
+            position = line.length() + 1;
+            return 0;
+        }
+        final int start = ++position;
+        int value = 0;
+        while (position < line.length() && position - start < MAX_SIZE_DIGITS
+                && line.charAt(position) >= '0' && line.charAt(position) <= '9') {
+            value = value * 10 + (line.charAt(position) - '0');
+            position++;
+        }
+        if (position == start) {
+            position = line.length() + 1;
+        }
+        return value;
+    }
+    
+    /**
+     * Parse the rest of the line as the moves of a batch, in order. The
+     * number of moves is checked first, and a move is checked whole before
+     * its integers.
+     *
+     * @return true if the rest of the line is the moves of a batch, parsed
+     *         into moves, xs, ys and count
+     * @throws NumberFormatException if an integer of a move is out of the
+     *             range of int, and the moves before it are valid
+     */
+    private boolean parseBatch() {
+        if (position + 1 >= line.length() || line.charAt(position) != ' ') {
+            return false;
+        }
+        final int start = ++position;
+        int separators = 0;
+        for (int i = start; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+            if (c == ';' && i + 1 < line.length() && line.charAt(i + 1) == ' ') {
+                separators++;
+                i++;
+            }
+        }
+        if (separators + 1 > MAX_MOVES) {
+            return false;
+        }
+        if (moves == null) {
+            moves = new Board.Move[MAX_MOVES];
+            xs = new int[MAX_MOVES];
+            ys = new int[MAX_MOVES];
+        }
+        count = 0;
+        while (true) {
+            int end = line.indexOf("; ", position);
+            if (end < 0) {
+                end = line.length();
+            }
+            final Board.Move move = parseMove(end);
+            if (move == null) {
+                return false;
+            }
+            if (overflow) {
+                throw new NumberFormatException("For input string: \"" + line + "\"");
+            }
+            moves[count] = move;
+            xs[count] = x;
+            ys[count] = y;
+            count++;
+            if (end == line.length()) {
+                return true;
+            }
+            position = end + 2;
+        }
+    }
+    
+    /**
+     * Parse a move of a batch, starting at position.
+     *
+     * @param end index in line where the move ends
+     * @return the move, with its square parsed into x and y, or null if the
+     *         characters up to end are not a move
+     */
+    private Board.Move parseMove(int end) {
+        final int space = line.indexOf(' ', position);
+        final int length = (space < 0 || space > end ? end : space) - position;
+        final Board.Move move;
+        if (length == 3 && line.startsWith("dig", position)) {
+            move = Board.Move.DIG;
+        } else if (length == 4 && line.startsWith("flag", position)) {
+            move = Board.Move.FLAG;
+        } else if (length == 6 && line.startsWith("deflag", position)) {
+            move = Board.Move.DEFLAG;
+        } else {
+            return null;
+        }
+        position += length;
+        x = integer(true);
+        y = integer(true);
+        return position == end ? move : null;
+    }
+    
+    /**
+     * @return the kind of the request parsed last, or null if it was invalid
+     */
+    Kind kind() {
+        return kind;
+    }
+    
+    /**
+     * @return the x-coordinate of the square or area of the request parsed last
+     */
+    int x() {
+        return x;
+    }
+    
+    /**
+     * @return the y-coordinate of the square or area of the request parsed last
+     */
+    int y() {
+        return y;
+    }
+    
+    /**
+     * @return the width of the area of the look request, or of the board of
+     *         the create request, parsed last
+     */
+    int width() {
+        return width;
+    }
+    
+    /**
+     * @return the height of the area of the look request, or of the board of
+     *         the create request, parsed last
+     */
+    int height() {
+        return height;
+    }
+    
+    /**
+     * @return the version of the changes request parsed last
+     */
+    long version() {
+        return version;
+    }
+    
+    /**
+     * @return the room id of the join or create request parsed last
+     */
+    String room() {
+        return line.substring(roomStart, roomEnd);
+    }
+    
+    /**
+     * @return true if the coalesce request parsed last turns coalescing on
+     */
+    boolean coalesce() {
+        return coalesce;
+    }
+    
+    /**
+     * @return the moves of the batch parsed last, its first count() entries;
+     *         overwritten by the next batch parsed
+     */
+    Board.Move[] moves() {
+        return moves;
+    }
+    
+    /**
+     * @return the x-coordinates of the squares of the moves of the batch
+     *         parsed last, its first count() entries; overwritten by the next
+     *         batch parsed
+     */
+    int[] xs() {
+        return xs;
+    }
+    
+    /**
+     * @return the y-coordinates of the squares of the moves of the batch
+     *         parsed last, its first count() entries; overwritten by the next
+     *         batch parsed
+     */
+    int[] ys() {
+        return ys;
+    }
+    
+    /**
+     * @return the number of moves of the batch parsed last
+     */
+    int count() {
+        return count;
+    }
+}
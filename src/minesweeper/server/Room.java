@@ -0,0 +1,170 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.IOException;
+
+import minesweeper.Board;
+import minesweeper.BoardJournal;
+
+/**
+ * A game hosted by a MinesweeperServer: a board and the clients playing it.
+ * A room is closed once it has stayed without clients for long enough, and
+ * no client can enter it afterwards.
+ */
+final class Room {
+    
+    /** Name of the room. */
+    private final String id;
+    /** Board played in the room. */
+    private final Board board;
+    /** Journal keeping board recoverable, or null if it is not kept. */
+    private final BoardJournal journal;
+    /** Number of clients in the room. */
+    private int numberOfClients;
+    /** System.nanoTime() when the last client left, or the room was made. */
+    private long idleSince;
+    /** True once the room is closed. */
+    private boolean closed;
+    /** The client whose move left no safe square, or null until then. */
+    private volatile Object finisher;
+    
+    // Rep invariant:
+    //  numberOfClients >= 0, and numberOfClients == 0 if closed.
+    //  journal is null, or journal.board() == board.
+    //  finisher, once not null, never changes.
+    // Abstraction function:
+    //  The game id played on board by numberOfClients clients, without a
+    //  client since idleSince if numberOfClients == 0, and over for good if
+    //  closed.
+    // Thread safety argument:
+    //  numberOfClients, idleSince and closed are guarded by this. finisher is
+    //  written under this, once, and read without it, being volatile. board
+    //  and journal are threadsafe.
+    
+    /**
+     * Make a room entered by a number of clients.
+     *
+     * @param id
+     *            name of the room
+     * @param board
+     *            board played in the room
+     * @param journal
+     *            journal keeping board recoverable, or null if it is not kept
+     * @param clients
+     *            number of clients entering the room as it is made, requires
+     *            clients >= 0
+     */
+    Room(String id, Board board, BoardJournal journal, int clients) {
+        this.id = id;
+        this.board = board;
+        this.journal = journal;
+        this.numberOfClients = clients;
+        this.idleSince = System.nanoTime();
+    }
+    
+    /**
+     * @return the name of the room
+     */
+    String id() {
+        return id;
+    }
+    
+    /**
+     * @return the board played in the room
+     */
+    Board board() {
+        return board;
+    }
+    
+    /**
+     * @return the number of clients in the room
+     */
+    synchronized int numberOfClients() {
+        return numberOfClients;
+    }
+    
+    /**
+     * Add a client to the room, unless it is closed.
+     *
+     * @return the number of clients in the room including the new one, or 0
+     *         if the room is closed
+     */
+    synchronized int enter() {
+        if (closed) {
+            return 0;
+        }
+        return ++numberOfClients;
+    }
+    
+    /**
+     * Remove a client from the room. Requires the client to be in the room.
+     */
+    synchronized void exit() {
+        if (--numberOfClients == 0) {
+            idleSince = System.nanoTime();
+        }
+    }
+    
+    /**
+     * Close the room if it has no client, and had none for at least
+     * idleNanos.
+     *
+     * @param now
+     *            System.nanoTime() at the time of the check
+     * @param idleNanos
+     *            time in nanoseconds the room must have been without a client
+     * @return true if the room is closed
+     */
+    synchronized boolean closeIfIdle(long now, long idleNanos) {
+        if (numberOfClients == 0 && now - idleSince >= idleNanos) {
+            closed = true;
+        }
+        return closed;
+    }
+    
+    /**
+     * Record the changes made to the board in the journal, if it is kept, and
+     * wait for them to be on disk.
+     *
+     * @throws IOException if the changes cannot be recorded
+     */
+    void record() throws IOException {
+        if (journal != null) {
+            journal.record();
+        }
+    }
+    
+    /**
+     * Close the journal of the board, if it is kept.
+     *
+     * @throws IOException if an error occurs closing the journal
+     */
+    void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+    
+    /**
+     * Record that the game is over, unless it already was, so that every other
+     * client is sent the game over message after its next reply.
+     *
+     * @param digger the client that dug the last safe square, as identified
+     *            by the server
+     */
+    synchronized void announceGameOver(Object digger) {
+        if (finisher == null) {
+            finisher = digger;
+        }
+    }
+    
+    /**
+     * @return the client whose move left no safe square, as identified by the
+     *         server, or null while the game is not over
+     */
+    Object finisher() {
+        return finisher;
+    }
+}
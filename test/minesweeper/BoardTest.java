@@ -7,12 +7,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -410,6 +417,24 @@ public class BoardTest {
                      "     ", board.toString());
     }
     
+    @Test
+    public void testDigLargeEmptyRegion() {
+        final int size = 1000;
+        StringBuilder row = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            row.append(i == size - 1 ? "0\n" : "0 ");
+        }
+        StringBuilder bombs = new StringBuilder();
+        for (int j = 0; j < size; j++) {
+            bombs.append(row);
+        }
+        Board board = new Board(size, size, bombs.toString());
+        
+        assertFalse(board.dig(0, 0));
+        
+        assertFalse("Expected every square to be dug", board.toString().contains("-"));
+    }
+    
     @Test
     public void testDigAxisDefinition() {
         Board board = new Board(2, 1, "1 0\n");
@@ -548,6 +573,220 @@ public class BoardTest {
 
     }
     
+    @Test
+    public void testChord() {
+        Board board = new Board(3, 3, "1 0 0\n"+
+                                      "0 0 0\n"+
+                                      "0 0 1\n");
+        board.dig(1, 1);
+        
+        // Unsatisfied: no flag around a 2
+        assertFalse(board.chord(1, 1));
+        assertEquals("- - -\n"+
+                     "- 2 -\n"+
+                     "- - -", board.toString());
+        
+        board.flag(0, 0);
+        board.flag(2, 2);
+        assertFalse(board.chord(1, 1));
+        assertEquals("F 1  \n"+
+                     "1 2 1\n"+
+                     "  1 F", board.toString());
+    }
+    
+    @Test
+    public void testChordUntouchedOrOutOfBound() {
+        Board board = new Board(2, 1, "0 0\n");
+        
+        assertFalse(board.chord(0, 0));
+        assertFalse(board.chord(-1, 0));
+        assertFalse(board.chord(2, 0));
+        assertEquals("- -", board.toString());
+    }
+    
+    @Test
+    public void testChordWrongFlagExplodes() {
+        Board board = new Board(4, 1, "1 0 0 0\n");
+        board.dig(1, 0);
+        board.flag(2, 0);
+        
+        assertTrue(board.chord(1, 0));
+        assertEquals("    F -", board.toString());
+    }
+    
+    @Test
+    public void testBatch() {
+        Board board = new Board(4, 2, "0 0 0 1\n"+
+                                      "0 0 0 0\n");
+        Board.Move[] moves = {Board.Move.FLAG, Board.Move.DIG, Board.Move.DEFLAG, Board.Move.FLAG, Board.Move.DIG};
+        int[] xs = {1, 0, 1, 3, 9};
+        int[] ys = {1, 0, 1, 0, 9};
+        
+        // The flag walls the dig in; the deflag comes after it
+        assertEquals(-1, board.batch(moves, xs, ys, moves.length));
+        assertEquals("    1 F\n"+
+                     "  - 1 -", board.toString());
+        assertEquals(1, board.flagged());
+        assertEquals(2, board.safeSquaresLeft());
+    }
+    
+    @Test
+    public void testBatchExplodes() {
+        Board board = new Board(3, 1, "0 1 0\n");
+        Board.Move[] moves = {Board.Move.FLAG, Board.Move.DIG, Board.Move.FLAG, Board.Move.DIG};
+        int[] xs = {0, 1, 2, 0};
+        int[] ys = {0, 0, 0, 0};
+        
+        assertEquals(1, board.batch(moves, xs, ys, moves.length));
+        assertEquals("F    ", board.toString());
+        assertEquals(-1, board.batch(moves, xs, ys, 0));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testBatchTooFewEntries() {
+        new Board(3, 3).batch(new Board.Move[2], new int[2], new int[1], 2);
+    }
+    
+    @Test
+    public void testBatchMatchesMoves() {
+        Board.Move[] kinds = Board.Move.values();
+        for (long seed = 0; seed < 20; seed++) {
+            Board batched = Board.withDensity(100, 70, seed, 0.15);
+            Board moved = Board.withDensity(100, 70, seed, 0.15);
+            Random random = new Random(seed);
+            for (int n = 0; n < 30; n++) {
+                int count = random.nextInt(40);
+                Board.Move[] moves = new Board.Move[count];
+                int[] xs = new int[count];
+                int[] ys = new int[count];
+                int boom = -1;
+                for (int k = 0; k < count; k++) {
+                    // Mostly flags and deflags, so digs meet flags set and cleared by the batch
+                    moves[k] = kinds[random.nextInt(8) == 0 ? 0 : 1 + random.nextInt(2)];
+                    xs[k] = random.nextInt(104) - 2;
+                    ys[k] = random.nextInt(74) - 2;
+                    if (boom < 0) {
+                        switch (moves[k]) {
+                        case DIG:
+                            boom = moved.dig(xs[k], ys[k]) ? k : -1;
+                            break;
+                        case FLAG:
+                            moved.flag(xs[k], ys[k]);
+                            break;
+                        default:
+                            moved.deflag(xs[k], ys[k]);
+                        }
+                    }
+                }
+                assertEquals(boom, batched.batch(moves, xs, ys, count));
+                assertEquals(moved.toString(), batched.toString());
+            }
+            assertStatsMatchSquares(batched);
+        }
+    }
+    
+    @Test
+    public void testConcurrentBatchIsAtomic() {
+        final Board board = new Board(200, 200, 5L);
+        final Board.Move[] moves = {Board.Move.FLAG, Board.Move.FLAG, Board.Move.DEFLAG, Board.Move.DEFLAG};
+        final int[] xs = {10, 150, 10, 150};
+        final int[] ys = {10, 150, 10, 150};
+        final Thread batches = new Thread(() -> {
+            for (int n = 0; n < 20000; n++) {
+                board.batch(moves, xs, ys, moves.length);
+            }
+        });
+        batches.start();
+        // A batch that flags then deflags a square is never seen half done
+        while (batches.isAlive()) {
+            assertEquals("-", board.toString(10, 10, 1, 1));
+            assertEquals("-", board.toString(150, 150, 1, 1));
+        }
+        assertEquals(0, board.flagged());
+    }
+    
+    @Test
+    public void testConcurrentChords() {
+        final Board board = Board.withMineCount(128, 128, 21L, 1500);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                try {
+                    // Flags only go on mines, so a chord never explodes one
+                    for (int k = 0; k < 20000; k++) {
+                        final int x = (k * 31 + offset * 7) % 128;
+                        final int y = (k * 47 + offset * 13) % 128;
+                        if (board.mined(x, y)) {
+                            board.flag(x, y);
+                        } else if (k % 2 == 0) {
+                            assertFalse(board.dig(x, y));
+                        } else {
+                            assertFalse(board.chord(x, y));
+                        }
+                    }
+                } catch (Throwable failure) {
+                    failures.add(failure);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                throw new AssertionError(ie);
+            }
+        }
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(1500, board.mines());
+        assertStatsMatchSquares(board);
+    }
+    
+    @Test
+    public void testChordMatchesDigs() {
+        for (long seed = 0; seed < 20; seed++) {
+            Board chorded = Board.withDensity(70, 70, seed, 0.2);
+            Board dug = Board.withDensity(70, 70, seed, 0.2);
+            Random random = new Random(seed);
+            for (int n = 0; n < 200; n++) {
+                int x = random.nextInt(70);
+                int y = random.nextInt(70);
+                switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(dug.dig(x, y), chorded.dig(x, y));
+                    break;
+                case 1:
+                    dug.flag(x, y);
+                    chorded.flag(x, y);
+                    break;
+                default:
+                    // Satisfied or not, a chord digs as the digs of its untouched neighbors would
+                    boolean satisfied = dug.toString(x, y, 1, 1).matches("[1-8 ]");
+                    int flagged = 0;
+                    for (int j = y - 1; j <= y + 1; j++) {
+                        for (int i = x - 1; i <= x + 1; i++) {
+                            flagged += dug.toString(i, j, 1, 1).equals("F") ? 1 : 0;
+                        }
+                    }
+                    satisfied &= flagged == dug.count(x, y);
+                    boolean boom = false;
+                    for (int j = y - 1; j <= y + 1 && satisfied; j++) {
+                        for (int i = x - 1; i <= x + 1; i++) {
+                            boom |= dug.toString(i, j, 1, 1).equals("-") && dug.dig(i, j);
+                        }
+                    }
+                    assertEquals(boom, chorded.chord(x, y));
+                }
+                assertEquals(dug.toString(), chorded.toString());
+            }
+            assertEquals(dug.safeSquaresLeft(), chorded.safeSquaresLeft());
+        }
+    }
+    
     @Test
     public void testBoardSize() {
         Board board;
@@ -582,6 +821,959 @@ public class BoardTest {
 
     }
     
+    @Test
+    public void testWindow() {
+        Board board = new Board(3, 3, "0 0 0\n"+
+                                      "0 0 0\n"+
+                                      "0 0 1\n");
+        board.dig(0, 0);
+        board.flag(2, 2);
+        
+        assertEquals("     \n"+
+                     "  1 1\n"+
+                     "  1 F", board.toString(0, 0, 3, 3));
+        assertEquals("1 1\n"+
+                     "1 F", board.toString(1, 1, 2, 2));
+        assertEquals("1", board.toString(1, 1, 1, 1));
+        assertEquals("  1 1", board.toString(0, 1, 3, 1));
+        assertEquals("1\n"+
+                     "F", board.toString(2, 1, 1, 2));
+    }
+    
+    @Test
+    public void testWindowOutOfBound() {
+        Board board = new Board(2, 2, "0 1\n"+
+                                      "0 0\n");
+        board.flag(1, 1);
+        
+        assertEquals("expected window clipped to the board",
+                     "- -\n"+
+                     "- F", board.toString(-5, -5, 100, 100));
+        assertEquals("F", board.toString(1, 1, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals("-", board.toString(-1, -1, 2, 2));
+        assertEquals("", board.toString(2, 0, 1, 1));
+        assertEquals("", board.toString(0, -3, 2, 3));
+        assertEquals("", board.toString(0, 0, 0, 2));
+    }
+    
+    @Test
+    public void testSeededBoardsAreEqual() {
+        Board board = new Board(150, 130, 42);
+        Board other = new Board(150, 130, 42);
+        
+        // Generate the tiles of other in a different order
+        other.flag(149, 129);
+        other.deflag(149, 129);
+        
+        int mines = 0;
+        for (int y = 0; y < 130; y++) {
+            for (int x = 0; x < 150; x++) {
+                assertEquals(board.mined(x, y), other.mined(x, y));
+                mines += board.mined(x, y) ? 1 : 0;
+            }
+        }
+        assertTrue("expected about a quarter of the squares mined, got " + mines,
+                mines > 150 * 130 / 5 && mines < 150 * 130 / 3);
+        
+        board.dig(70, 70);
+        other.dig(70, 70);
+        assertEquals(board.toString(), other.toString());
+    }
+    
+    @Test
+    public void testMineCount() {
+        for (long mines : new long[] {0, 1, 1234, 150 * 77 - 1, 150 * 77}) {
+            Board board = Board.withMineCount(150, 77, mines, mines);
+            
+            long found = 0;
+            for (int y = 0; y < 77; y++) {
+                for (int x = 0; x < 150; x++) {
+                    found += board.mined(x, y) ? 1 : 0;
+                }
+            }
+            assertEquals(mines, found);
+        }
+    }
+    
+    @Test
+    public void testDensity() {
+        Board empty = Board.withDensity(70, 70, 3, 0);
+        Board full = Board.withDensity(70, 70, 3, 1);
+        
+        for (int y = 0; y < 70; y++) {
+            for (int x = 0; x < 70; x++) {
+                assertFalse(empty.mined(x, y));
+                assertTrue(full.mined(x, y));
+            }
+        }
+        assertFalse(empty.dig(35, 35));
+        assertEquals("expected whole board dug", -1, empty.toString().indexOf('-'));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testTooManyMines() {
+        Board.withMineCount(3, 3, 0, 10);
+    }
+    
+    private static void assertCountsMatchMines(Board board) {
+        for (int y = 0; y < board.sizeY(); y++) {
+            for (int x = 0; x < board.sizeX(); x++) {
+                int mines = 0;
+                for (int j = y - 1; j <= y + 1; j++) {
+                    for (int i = x - 1; i <= x + 1; i++) {
+                        if ((i != x || j != y) && board.mined(i, j)) {
+                            mines++;
+                        }
+                    }
+                }
+                assertEquals("count of " + x + "," + y, mines, board.count(x, y));
+            }
+        }
+    }
+    
+    @Test
+    public void testCountsMatchMines() {
+        int[][] sizes = {{1, 1}, {1, 70}, {70, 1}, {63, 65}, {64, 64}, {65, 63}, {130, 129}};
+        for (int[] size : sizes) {
+            for (double density : new double[] {0, 0.1, 0.5, 0.9, 1}) {
+                assertCountsMatchMines(Board.withDensity(size[0], size[1], size[0] * 31 + size[1], density));
+            }
+            assertCountsMatchMines(Board.withMineCount(size[0], size[1], 7, size[0] * size[1] / 3));
+            
+            // Counted by rows as a loaded board
+            Board generated = new Board(size[0], size[1], 11);
+            StringBuilder bombs = new StringBuilder();
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    bombs.append(x == 0 ? "" : " ").append(generated.mined(x, y) ? "1" : "0");
+                }
+                bombs.append("\n");
+            }
+            Board loaded = new Board(size[0], size[1], bombs.toString());
+            assertCountsMatchMines(loaded);
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    assertEquals(generated.count(x, y), loaded.count(x, y));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testConcurrentGenerationMatchesSequential() {
+        final int size = 300;
+        final Board sequential = Board.withMineCount(size, size, 99, size * size / 5);
+        final Board concurrent = Board.withMineCount(size, size, 99, size * size / 5);
+        
+        // Generate the tiles of concurrent from several threads in different orders
+        List<Thread> threads = new ArrayList<>();
+        for (int n = 0; n < 4; n++) {
+            final List<Integer> rows = new ArrayList<>();
+            for (int y = 0; y < size; y++) {
+                rows.add(y);
+            }
+            Collections.shuffle(rows);
+            threads.add(new Thread(() -> {
+                for (int y : rows) {
+                    concurrent.flag(y % size, y);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                throw new AssertionError(ie);
+            }
+        }
+        
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                assertEquals(sequential.mined(x, y), concurrent.mined(x, y));
+            }
+        }
+    }
+    
+    @Test
+    public void testLoadMatchesStringBoard() throws IOException {
+        File file = File.createTempFile("board", ".txt");
+        try {
+            // Large enough for the lines to be split among threads
+            final int size = 1200;
+            StringBuilder bombs = new StringBuilder();
+            for (int j = 0; j < size; j++) {
+                for (int i = 0; i < size; i++) {
+                    bombs.append((i * 7 + j * 13) % 5 == 0 ? '1' : '0').append(i == size - 1 ? '\n' : ' ');
+                }
+            }
+            Files.write(file.toPath(), (size + " " + size + "\r\n" + bombs).getBytes(StandardCharsets.US_ASCII));
+            
+            Board expected = new Board(size, size, bombs.toString());
+            Board sequential = BoardFiles.load(file, 1);
+            Board parallel = BoardFiles.load(file, 4);
+            for (int j = 0; j < size; j++) {
+                for (int i = 0; i < size; i++) {
+                    assertEquals(expected.mined(i, j), sequential.mined(i, j));
+                    assertEquals(expected.mined(i, j), parallel.mined(i, j));
+                }
+            }
+            for (Board board : Arrays.asList(expected, sequential, parallel)) {
+                board.dig(1, 1);
+                board.dig(size - 2, size / 2);
+            }
+            assertEquals(expected.toString(), sequential.toString());
+            assertEquals(expected.toString(), parallel.toString());
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testLoadMixedNewlines() throws IOException {
+        File file = File.createTempFile("board", ".txt");
+        try {
+            Files.write(file.toPath(), "2 3\r\n1 0\r0 0\n0 1\r".getBytes(StandardCharsets.US_ASCII));
+            Board board = BoardFiles.load(file);
+            assertTrue(board.mined(0, 0));
+            assertFalse(board.mined(1, 0));
+            assertFalse(board.mined(0, 1));
+            assertTrue(board.mined(1, 2));
+            board.dig(0, 1);
+            assertEquals("- -\n2 -\n- -", board.toString());
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        File file = File.createTempFile("board", ".bin");
+        try {
+            // Not a whole number of tiles or bytes, with tiles not yet generated
+            Board board = Board.withMineCount(203, 131, 7L, 5000);
+            board.flag(0, 0);
+            board.flag(202, 130);
+            board.dig(100, 60);
+            board.dig(150, 10);
+            board.save(file);
+            
+            Board loaded = BoardFiles.load(file);
+            assertEquals(board.toString(), loaded.toString());
+            for (int j = 0; j < 131; j++) {
+                for (int i = 0; i < 203; i++) {
+                    assertEquals(board.mined(i, j), loaded.mined(i, j));
+                }
+            }
+            
+            board.dig(5, 120);
+            loaded.dig(5, 120);
+            assertEquals(board.toString(), loaded.toString());
+            
+            // Without the states, every square is untouched again
+            BoardFiles.save(board, file, false);
+            assertEquals(Board.withMineCount(203, 131, 7L, 5000).toString(), BoardFiles.load(file).toString());
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testLoadTruncatedBinaryFile() throws IOException {
+        File file = File.createTempFile("board", ".bin");
+        try {
+            new Board(10, 10, 7L).save(file);
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+            BoardFiles.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testLoadInvalidValueInLargeFile() throws IOException {
+        File file = File.createTempFile("board", ".txt");
+        try {
+            final int size = 1200;
+            StringBuilder bombs = new StringBuilder(size + " " + size + "\n");
+            for (int j = 0; j < size; j++) {
+                for (int i = 0; i < size; i++) {
+                    bombs.append(i == size - 1 && j == size - 1 ? '2' : '0').append(i == size - 1 ? '\n' : ' ');
+                }
+            }
+            Files.write(file.toPath(), bombs.toString().getBytes(StandardCharsets.US_ASCII));
+            BoardFiles.load(file, 4);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    /**
+     * @return a new empty temporary directory
+     */
+    private static File journalDirectory() throws IOException {
+        return Files.createTempDirectory("journal").toFile();
+    }
+    
+    /**
+     * Delete a temporary directory and the files in it.
+     */
+    private static void delete(File directory) {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    /**
+     * Assert that two boards have the same squares and mines.
+     */
+    private static void assertSameBoard(Board expected, Board actual) {
+        assertEquals(expected.toString(), actual.toString());
+        for (int j = 0; j < expected.sizeY(); j++) {
+            for (int i = 0; i < expected.sizeX(); i++) {
+                assertEquals(expected.mined(i, j), actual.mined(i, j));
+            }
+        }
+    }
+    
+    @Test
+    public void testJournalRecovers() throws IOException {
+        File directory = journalDirectory();
+        try {
+            Board board = Board.withMineCount(70, 50, 3L, 400);
+            BoardJournal journal = BoardJournal.create(directory, board);
+            board.flag(0, 0);
+            journal.record();
+            board.flag(1, 0);
+            board.deflag(0, 0);
+            journal.record();
+            board.dig(30, 20);
+            journal.record();
+            // An explosion removes the mine and changes its neighbors' counts
+            int mine = 0;
+            while (!board.mined(mine % 70, mine / 70)) {
+                mine++;
+            }
+            assertTrue(board.dig(mine % 70, mine / 70));
+            journal.record();
+            journal.close();
+            
+            BoardJournal recovered = BoardJournal.recover(directory).get();
+            assertSameBoard(board, recovered.board());
+            
+            // Keeps recording the recovered board
+            recovered.board().dig(69, 49);
+            recovered.record();
+            recovered.close();
+            assertSameBoard(recovered.board(), BoardJournal.recover(directory).get().board());
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testJournalEmptyDirectory() throws IOException {
+        File directory = journalDirectory();
+        try {
+            assertFalse(BoardJournal.recover(directory).isPresent());
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testJournalCreateOverExisting() throws IOException {
+        File directory = journalDirectory();
+        try {
+            BoardJournal.create(directory, new Board(5, 5, 1L)).close();
+            BoardJournal.create(directory, new Board(5, 5, 1L));
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testJournalSnapshot() throws IOException {
+        File directory = journalDirectory();
+        try {
+            Board board = Board.withMineCount(40, 40, 5L, 200);
+            BoardJournal journal = BoardJournal.create(directory, board);
+            board.flag(3, 3);
+            journal.record();
+            journal.snapshot();
+            board.dig(20, 20);
+            journal.record();
+            journal.close();
+            
+            // Only the latest generation is kept
+            List<String> files = Arrays.asList(directory.list());
+            Collections.sort(files);
+            assertEquals(Arrays.asList("journal-1.log", "snapshot-1.bin"), files);
+            assertSameBoard(board, BoardJournal.recover(directory).get().board());
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testJournalForgottenChanges() throws IOException {
+        File directory = journalDirectory();
+        try {
+            // One dig changes more squares than the board remembers; a
+            // snapshot records them instead
+            Board board = Board.withMineCount(300, 300, 5L, 0);
+            BoardJournal journal = BoardJournal.create(directory, board);
+            board.dig(0, 0);
+            journal.record();
+            board.flag(1, 1);
+            journal.record();
+            journal.close();
+            assertSameBoard(board, BoardJournal.recover(directory).get().board());
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testJournalTornTail() throws IOException {
+        File directory = journalDirectory();
+        try {
+            Board board = Board.withMineCount(30, 30, 9L, 100);
+            BoardJournal journal = BoardJournal.create(directory, board);
+            board.flag(0, 0);
+            journal.record();
+            board.dig(15, 15);
+            journal.record();
+            journal.close();
+            
+            // A batch cut short, as if the process died while writing it
+            File log = new File(directory, "journal-0.log");
+            byte[] bytes = Files.readAllBytes(log.toPath());
+            byte[] torn = Arrays.copyOf(bytes, bytes.length + 12);
+            torn[bytes.length + 3] = 90;
+            Files.write(log.toPath(), torn);
+            assertSameBoard(board, BoardJournal.recover(directory).get().board());
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testJournalConcurrentRecords() throws IOException {
+        File directory = journalDirectory();
+        try {
+            final Board board = Board.withMineCount(64, 64, 11L, 500);
+            final BoardJournal journal = BoardJournal.create(directory, board);
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int offset = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int k = 0; k < 200; k++) {
+                            final int x = (k * 7 + offset * 13) % 64;
+                            final int y = (k * 11 + offset * 5) % 64;
+                            if (k % 3 == 0) {
+                                board.flag(x, y);
+                            } else if (k % 3 == 1) {
+                                board.deflag(y, x);
+                            } else {
+                                board.dig(x, y);
+                            }
+                            journal.record();
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    throw new AssertionError(ie);
+                }
+            }
+            assertEquals(Collections.emptyList(), failures);
+            journal.close();
+            assertSameBoard(board, BoardJournal.recover(directory).get().board());
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testJournalSnapshotsWhileUpdated() throws IOException {
+        File directory = journalDirectory();
+        try {
+            // Snapshots are saved tile by tile while the board changes under them
+            final Board board = Board.withMineCount(200, 200, 17L, 4000);
+            final BoardJournal journal = BoardJournal.create(directory, board);
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            final Thread updates = new Thread(() -> {
+                try {
+                    for (int k = 0; k < 3000; k++) {
+                        final int x = (k * 37) % 200;
+                        final int y = (k * 53) % 200;
+                        if (k % 3 == 0) {
+                            board.flag(x, y);
+                        } else {
+                            board.dig(y, x);
+                        }
+                        journal.record();
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            updates.start();
+            while (updates.isAlive()) {
+                journal.snapshot();
+            }
+            assertEquals(Collections.emptyList(), failures);
+            journal.close();
+            assertSameBoard(board, BoardJournal.recover(directory).get().board());
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testMappedStorageMatchesHeap() throws IOException {
+        File file = File.createTempFile("squares", ".bin");
+        try {
+            // Not a whole number of tiles, so mapped tiles hold unused cells
+            Board heap = new Board(150, 90, 21L);
+            Board mapped = new Board(150, 90, 21L, BoardStorage.mapped(file));
+            assertSameBoard(heap, mapped);
+            
+            for (int k = 0; k < 300; k++) {
+                final int x = (k * 37) % 150;
+                final int y = (k * 53) % 90;
+                if (k % 5 == 0) {
+                    heap.flag(x, y);
+                    mapped.flag(x, y);
+                } else if (k % 5 == 1) {
+                    heap.deflag(y, x);
+                    mapped.deflag(y, x);
+                } else {
+                    // Explosions update the counts of neighboring cells
+                    assertEquals(heap.dig(x, y), mapped.dig(x, y));
+                }
+            }
+            assertSameBoard(heap, mapped);
+            assertEquals(heap.version(), mapped.version());
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testMappedStorageLoad() throws IOException {
+        File board = File.createTempFile("board", ".bin");
+        File file = File.createTempFile("squares", ".bin");
+        try {
+            Board heap = Board.withMineCount(100, 70, 4L, 1000);
+            heap.flag(1, 1);
+            heap.dig(50, 30);
+            heap.save(board);
+            
+            Board mapped = BoardFiles.load(board, 3, BoardStorage.mapped(file));
+            assertSameBoard(heap, mapped);
+            heap.dig(99, 69);
+            mapped.dig(99, 69);
+            assertSameBoard(heap, mapped);
+        } finally {
+            board.delete();
+            file.delete();
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testMappedStorageStoresOneBoard() throws IOException {
+        File file = File.createTempFile("squares", ".bin");
+        try {
+            BoardStorage storage = BoardStorage.mapped(file);
+            new Board(10, 10, 1L, storage);
+            new Board(10, 10, 1L, storage);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testMappedStorageConcurrentDigs() throws IOException {
+        File file = File.createTempFile("squares", ".bin");
+        try {
+            // Digs of squares without mines reach the same squares in any order
+            final Board heap = new Board(256, 256, 8L);
+            final Board mapped = new Board(256, 256, 8L, BoardStorage.mapped(file));
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int offset = t;
+                threads.add(new Thread(() -> {
+                    for (int k = offset; k < 2000; k += 4) {
+                        final int x = (k * 97) % 256;
+                        final int y = (k * 61) % 256;
+                        if (!mapped.mined(x, y)) {
+                            mapped.dig(x, y);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (int k = 0; k < 2000; k++) {
+                final int x = (k * 97) % 256;
+                final int y = (k * 61) % 256;
+                if (!heap.mined(x, y)) {
+                    heap.dig(x, y);
+                }
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    throw new AssertionError(ie);
+                }
+            }
+            assertSameBoard(heap, mapped);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    /**
+     * Assert that the statistics of a board match a scan of its squares.
+     */
+    private static void assertStatsMatchSquares(Board board) {
+        long mines = 0;
+        long flagged = 0;
+        long untouched = 0;
+        long safe = 0;
+        final String[] rows = board.toString().split("\n");
+        for (int y = 0; y < board.sizeY(); y++) {
+            for (int x = 0; x < board.sizeX(); x++) {
+                final char square = rows[y].charAt(2 * x);
+                if (board.mined(x, y)) {
+                    mines++;
+                } else if (square == '-' || square == 'F') {
+                    safe++;
+                }
+                if (square == 'F') {
+                    flagged++;
+                } else if (square == '-') {
+                    untouched++;
+                }
+            }
+        }
+        assertEquals(mines, board.mines());
+        assertEquals(flagged, board.flagged());
+        assertEquals(untouched, board.untouched());
+        assertEquals(safe, board.safeSquaresLeft());
+    }
+    
+    /**
+     * Assert that the rendered board, which is patched on every change,
+     * matches a fresh render of its squares, with each dug square's count
+     * taken from the mines around it.
+     */
+    private static void assertRenderMatchesSquares(Board board) {
+        final int sizeX = board.sizeX();
+        final int sizeY = board.sizeY();
+        final boolean[][] mined = new boolean[sizeY + 2][sizeX + 2];
+        final char[][] squares = new char[sizeY][sizeX];
+        try {
+            board.forEachSquare((x, y, mine, flagged, dug) -> {
+                mined[y + 1][x + 1] = mine;
+                squares[y][x] = flagged ? 'F' : dug ? '0' : '-';
+            });
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+        final StringBuilder expected = new StringBuilder();
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                char square = squares[y][x];
+                if (square == '0') {
+                    for (int j = y; j <= y + 2; j++) {
+                        for (int i = x; i <= x + 2; i++) {
+                            square += mined[j][i] && (i != x + 1 || j != y + 1) ? 1 : 0;
+                        }
+                    }
+                }
+                expected.append(x == 0 ? "" : " ").append(square == '0' ? ' ' : square);
+            }
+            expected.append(y == sizeY - 1 ? "" : "\n");
+        }
+        assertEquals(expected.toString(), board.toString());
+    }
+    
+    @Test
+    public void testStats() {
+        for (Board board : Arrays.asList(new Board(40, 30, 2L), Board.withMineCount(40, 30, 2L, 150),
+                Board.withDensity(40, 30, 2L, 0.1))) {
+            assertStatsMatchSquares(board);
+            board.flag(0, 0);
+            board.flag(0, 0);
+            board.flag(39, 29);
+            board.deflag(39, 29);
+            board.deflag(39, 29);
+            board.dig(0, 0);
+            assertStatsMatchSquares(board);
+            
+            // Digs that expand, and explosions, which remove mines
+            for (int k = 0; k < 200; k++) {
+                board.dig((k * 17) % 40, (k * 23) % 30);
+            }
+            assertStatsMatchSquares(board);
+        }
+    }
+    
+    @Test
+    public void testStatsWon() {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        Board board = new Board(3, 3, "1 0 0\n0 0 0\n0 0 0\n");
+        assertEquals(1, board.mines());
+        assertEquals(8, board.safeSquaresLeft());
+        board.flag(0, 0);
+        board.dig(2, 2);
+        assertEquals(0, board.safeSquaresLeft());
+        assertEquals(1, board.flagged());
+        assertEquals(0, board.untouched());
+        
+        // An explosion leaves one square less to dig
+        board = new Board(3, 3, "1 0 0\n0 0 0\n0 0 0\n");
+        assertTrue(board.dig(0, 0));
+        assertEquals(0, board.mines());
+        assertEquals(0, board.safeSquaresLeft());
+        assertEquals(0, board.untouched());
+    }
+    
+    @Test
+    public void testStatsOfUngeneratedTiles() {
+        // Every square is mined, on 3 by 2 tiles none of which is generated yet
+        Board board = Board.withDensity(130, 70, 5L, 1);
+        assertEquals(130 * 70, board.mines());
+        assertEquals(0, board.safeSquaresLeft());
+        assertStatsMatchSquares(Board.withDensity(130, 70, 5L, 0.3));
+    }
+    
+    @Test
+    public void testStatsLoadedAndRecovered() throws IOException {
+        File file = File.createTempFile("board", ".bin");
+        File directory = journalDirectory();
+        try {
+            Board board = Board.withMineCount(70, 50, 6L, 500);
+            board.flag(3, 4);
+            board.dig(35, 25);
+            board.save(file);
+            assertStatsMatchSquares(BoardFiles.load(file));
+            
+            BoardJournal journal = BoardJournal.create(directory, board);
+            int mine = 0;
+            while (!board.mined(mine % 70, mine / 70)) {
+                mine++;
+            }
+            board.dig(mine % 70, mine / 70);
+            board.flag(69, 49);
+            board.deflag(3, 4);
+            journal.record();
+            journal.close();
+            assertStatsMatchSquares(BoardJournal.recover(directory).get().board());
+        } finally {
+            file.delete();
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testStatsConcurrent() {
+        final Board board = Board.withMineCount(128, 128, 13L, 2000);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                for (int k = 0; k < 3000; k++) {
+                    final int x = (k * 31 + offset * 7) % 128;
+                    final int y = (k * 47 + offset * 3) % 128;
+                    if (k % 4 == 0) {
+                        board.flag(x, y);
+                    } else if (k % 4 == 1) {
+                        board.deflag(y, x);
+                    } else {
+                        board.dig(x, y);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                throw new AssertionError(ie);
+            }
+        }
+        assertStatsMatchSquares(board);
+    }
+    
+    @Test
+    public void testHugeBoard() {
+        Board board = new Board(100000, 100000, 7);
+        
+        assertEquals(100000, board.sizeX());
+        assertEquals(100000, board.sizeY());
+        
+        board.flag(99999, 99999);
+        board.flag(50000, 3);
+        board.deflag(50000, 3);
+        assertEquals("- -\n"+
+                     "- F", board.toString(99998, 99998, 5, 5));
+        assertEquals("- - -", board.toString(49999, 3, 3, 1));
+        
+        int x = 12345;
+        while (board.mined(x, 67890)) {
+            x++;
+        }
+        assertFalse(board.dig(x, 67890));
+        assertTrue("expected square dug", board.toString(x, 67890, 1, 1).charAt(0) != '-');
+    }
+    
+    @Test
+    public void testSizesNearIntegerMaxValue() {
+        Board board = Board.withMineCount(Integer.MAX_VALUE, 1, 7L, 0);
+        assertEquals(Integer.MAX_VALUE, board.sizeX());
+        board.flag(Integer.MAX_VALUE - 1, 0);
+        assertEquals("- F", board.toString(Integer.MAX_VALUE - 2, 0, 3, 1));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testSizesTooLargeForTiles() {
+        Board.withMineCount(Integer.MAX_VALUE, Integer.MAX_VALUE, 7L, 0);
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public void testHugeBoardTooLargeToRender() {
+        new Board(100000, 100000, 7).toString();
+    }
+    
+    @Test
+    public void testChangesSince() {
+        Board board = new Board(3, 1, "0 0 1\n");
+        
+        assertEquals(0, board.version());
+        assertEquals("0 0", board.changesSince(0));
+        
+        board.dig(0, 0);
+        assertEquals(2, board.version());
+        assertEquals("2 2\n"+
+                     "0 0  \n"+
+                     "1 0 1", board.changesSince(0));
+        assertEquals("2 0", board.changesSince(2));
+        
+        board.flag(2, 0);
+        assertEquals("3 1\n"+
+                     "2 0 F", board.changesSince(2));
+        
+        board.deflag(2, 0);
+        assertEquals("4 1\n"+
+                     "2 0 -", board.changesSince(2));
+        assertEquals("4 3\n"+
+                     "0 0  \n"+
+                     "1 0 1\n"+
+                     "2 0 -", board.changesSince(0));
+        
+        // Deflagging a square that is not flagged changes nothing
+        board.deflag(2, 0);
+        board.deflag(0, 0);
+        assertEquals(4, board.version());
+        assertEquals("4 0", board.changesSince(4));
+        
+        assertEquals("expected no version from the future", null, board.changesSince(5));
+        assertEquals("expected no negative version", null, board.changesSince(-1));
+    }
+    
+    @Test
+    public void testChangesSinceForgottenVersion() {
+        Board board = new Board(2, 1, "0 1\n");
+        
+        for (int i = 0; i < 4; i++) {
+            board.flag(0, 0);
+            board.deflag(0, 0);
+        }
+        
+        assertEquals(8, board.version());
+        assertEquals("expected version 0 forgotten", null, board.changesSince(0));
+        assertEquals("8 1\n"+
+                     "0 0 -", board.changesSince(6));
+    }
+    
+    @Test
+    public void testChangedSquaresConcurrent() throws InterruptedException {
+        // 16 squares, so the change log wraps around every 16 changes, and a
+        // copy kept up to date from changedSquares() must see every change
+        final Board board = new Board(4, 4, "0 0 0 0\n0 0 0 0\n0 0 0 0\n0 0 0 0\n");
+        final boolean[] copy = new boolean[16];
+        long since = 0;
+        for (int round = 0; round < 200; round++) {
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 3; t++) {
+                final Random random = new Random(round * 3 + t);
+                threads.add(new Thread(() -> {
+                    for (int k = 0; k < 2000; k++) {
+                        final int square = random.nextInt(16);
+                        if (random.nextBoolean()) {
+                            board.flag(square % 4, square / 4);
+                        } else {
+                            board.deflag(square % 4, square / 4);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            boolean running = true;
+            while (running) {
+                running = threads.stream().anyMatch(Thread::isAlive);
+                final Board.ChangedSquares changes = board.changedSquares(since);
+                if (changes == null) {
+                    // Too far behind; start over from a copy of every square
+                    since = board.version();
+                    for (int square = 0; square < 16; square++) {
+                        copy[square] = board.toString(square % 4, square / 4, 1, 1).equals("F");
+                    }
+                } else {
+                    for (int k = 0; k < changes.count(); k++) {
+                        copy[changes.x(k) + 4 * changes.y(k)] = changes.flagged(k);
+                    }
+                    since = changes.version();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (int square = 0; square < 16; square++) {
+                assertEquals("square " + square + " of round " + round,
+                        board.toString(square % 4, square / 4, 1, 1).equals("F"), copy[square]);
+            }
+        }
+    }
+    
     /**
      * Run test n times repeatedly
      * 
@@ -867,5 +2059,225 @@ public class BoardTest {
         } catch (InterruptedException ie) {
             throw new AssertionError("Test interrupted");
         }
-    }    
+    }
+    
+    @Test
+    public void testConcurrentDigsInSeparateRegions() {
+        repeat(() -> concurrentDigsInSeparateRegions(), 100);
+    }
+    
+    /**
+     * Make a size by size board with no mines, split into a left and a right
+     * region by a column of flags at x = size / 2.
+     */
+    private static Board walledBoard(int size) {
+        StringBuilder bombs = new StringBuilder();
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                bombs.append(i == size - 1 ? "0\n" : "0 ");
+            }
+        }
+        Board board = new Board(size, size, bombs.toString());
+        for (int j = 0; j < size; j++) {
+            board.flag(size / 2, j);
+        }
+        return board;
+    }
+    
+    private void concurrentDigsInSeparateRegions() {
+        try {
+            final int size = 150; // spans several lock tiles
+            Board board = walledBoard(size);
+            
+            Board left = walledBoard(size);
+            left.dig(0, 0);
+            Board right = walledBoard(size);
+            right.dig(size - 1, size - 1);
+            Board both = walledBoard(size);
+            both.dig(0, 0);
+            both.dig(size - 1, size - 1);
+            List<String> expected = Arrays.asList(board.toString(), left.toString(), right.toString(), both.toString());
+            
+            List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<>());
+            
+            Thread t1 = new Thread(() -> board.dig(0, 0));
+            Thread t2 = new Thread(() -> board.dig(size - 1, size - 1));
+            Thread t3 = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 5; k++) {
+                            assertTrue("T3-Unexpected outcome:\n" + board, expected.contains(board.toString()));
+                        }
+                    } catch (Throwable t) {
+                        exceptions.add(t);
+                    }
+                }
+                
+            });
+
+            t1.start();
+            t2.start();
+            t3.start();
+            t1.join();
+            t2.join();
+            t3.join();
+            
+            assertTrue("Exceptions thrown: " + exceptions, exceptions.isEmpty());
+            assertEquals(both.toString(), board.toString());
+        } catch (InterruptedException ie) {
+            throw new AssertionError("Test interrupted");
+        }
+    }
+    
+    @Test
+    public void testConcurrentLockFreeFlagsAndDigs() {
+        repeat(() -> concurrentLockFreeFlagsAndDigs(), 30);
+    }
+    
+    /**
+     * Make a size by size board with a mine on every square of an even column,
+     * so a dig of an odd column neither explodes nor expands.
+     */
+    private static Board stripedBoard(int size) {
+        StringBuilder bombs = new StringBuilder();
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                bombs.append(i % 2 == 0 ? "1" : "0").append(i == size - 1 ? "\n" : " ");
+            }
+        }
+        return new Board(size, size, bombs.toString());
+    }
+    
+    private void concurrentLockFreeFlagsAndDigs() {
+        try {
+            final int size = 70; // spans two lock tiles each way
+            Board board = stripedBoard(size);
+            List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<>());
+            
+            // Single-square digs and flags of the odd columns, from either end
+            Thread digs = new Thread(() -> {
+                for (int j = 0; j < size; j++) {
+                    for (int i = 1; i < size; i += 2) {
+                        board.dig(i, j);
+                    }
+                }
+            });
+            Thread flags = new Thread(() -> {
+                for (int j = size - 1; j >= 0; j--) {
+                    for (int i = size - 1; i >= 0; i -= 2) {
+                        board.flag(i, j);
+                    }
+                }
+            });
+            // Explosions of the even columns, which lock their tiles and expand
+            Thread explosions = new Thread(() -> {
+                for (int j = 0; j < size; j++) {
+                    for (int i = 0; i < size; i += 2) {
+                        board.dig(i, j);
+                    }
+                }
+            });
+            for (Thread thread : Arrays.asList(digs, flags, explosions)) {
+                thread.setUncaughtExceptionHandler((t, e) -> exceptions.add(e));
+                thread.start();
+            }
+            for (Thread thread : Arrays.asList(digs, flags, explosions)) {
+                thread.join();
+            }
+            
+            assertTrue("Exceptions thrown: " + exceptions, exceptions.isEmpty());
+            // Every square was dug or flagged by someone, and no update was lost
+            final String[] rows = board.toString().split("\n");
+            for (int j = 0; j < size; j++) {
+                for (int i = 0; i < size; i++) {
+                    final char square = rows[j].charAt(2 * i);
+                    assertTrue("Untouched square " + i + "," + j + ":\n" + board, square != '-');
+                    assertTrue("Flagged mine " + i + "," + j + ":\n" + board, square != 'F' || i % 2 == 1);
+                }
+            }
+            assertEquals(0, board.mines());
+            assertStatsMatchSquares(board);
+            assertRenderMatchesSquares(board);
+        } catch (InterruptedException ie) {
+            throw new AssertionError("Test interrupted");
+        }
+    }
+    
+    @Test
+    public void testConcurrentRendersOfMovingFlag() {
+        repeat(() -> concurrentRendersOfMovingFlag(), 3);
+    }
+    
+    private void concurrentRendersOfMovingFlag() {
+        try {
+            final int size = 200; // spans four lock tiles each way
+            Board board = Board.withDensity(size, size, 0L, 0);
+            final int last = size - 1;
+            board.flag(last, last);
+            AtomicBoolean moving = new AtomicBoolean(true);
+            List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<>());
+            
+            /*
+             * Move a flag back and forth between the first and the last
+             * square, flagging one before deflagging the other, so the board
+             * always has one or two flags. A render that copies the first
+             * square before it is flagged and the last once it is deflagged
+             * shows none.
+             */
+            Thread mover = new Thread(() -> {
+                while (moving.get()) {
+                    board.flag(0, 0);
+                    board.deflag(last, last);
+                    board.flag(last, last);
+                    board.deflag(0, 0);
+                }
+            });
+            Runnable renders = () -> {
+                for (int k = 0; k < 1000; k++) {
+                    final String rendered = board.toString();
+                    final long flags = rendered.chars().filter(c -> c == 'F').count();
+                    assertTrue("Torn render with " + flags + " flags", flags == 1 || flags == 2);
+                }
+            };
+            List<Thread> readers = Arrays.asList(new Thread(renders), new Thread(renders));
+            for (Thread thread : Arrays.asList(mover, readers.get(0), readers.get(1))) {
+                thread.setUncaughtExceptionHandler((t, e) -> exceptions.add(e));
+                thread.start();
+            }
+            for (Thread thread : readers) {
+                thread.join();
+            }
+            moving.set(false);
+            mover.join();
+            
+            assertTrue("Exceptions thrown: " + exceptions, exceptions.isEmpty());
+            assertEquals(1, board.flagged());
+        } catch (InterruptedException ie) {
+            throw new AssertionError("Test interrupted");
+        }
+    }
+    
+    @Test
+    public void testRenderMatchesSquaresAfterExplosions() {
+        for (Board board : Arrays.asList(new Board(130, 70, 4L), Board.withMineCount(130, 70, 4L, 2000),
+                Board.withDensity(130, 70, 4L, 0.25))) {
+            Random random = new Random(4L);
+            for (int k = 0; k < 4000; k++) {
+                final int x = random.nextInt(board.sizeX());
+                final int y = random.nextInt(board.sizeY());
+                switch (random.nextInt(5)) {
+                case 0: board.flag(x, y); break;
+                case 1: board.deflag(x, y); break;
+                case 2: board.chord(x, y); break;
+                default: board.dig(x, y); break;
+                }
+                if (k % 500 == 0) {
+                    assertRenderMatchesSquares(board);
+                }
+            }
+            assertRenderMatchesSquares(board);
+        }
+    }
 }
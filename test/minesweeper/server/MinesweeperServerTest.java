@@ -4,23 +4,34 @@
 package minesweeper.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import minesweeper.Board;
+import minesweeper.BoardFiles;
+
 /**
  * TODO
  */
@@ -797,6 +808,158 @@ public class MinesweeperServerTest {
 //        assertEquals("     ", client.readln());
 //    }
     
+    @Test
+    public void testLookWindowMessage() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serverThread.start();
+        
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        
+        assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+        
+        client.write("flag 0 0\n");
+        client.write("dig 2 2\n");
+        for (int i = 0; i < 6; i++) {
+            client.readln();
+        }
+        
+        client.write("look 0 0 2 2\n");
+        assertEquals("F 1", client.readln());
+        assertEquals("1 1", client.readln());
+        
+        client.write("look 1 -1 5 2\n"); // clipped to the board
+        assertEquals("1  ", client.readln());
+        
+        client.write("look 3 3 1 1\n"); // entirely out of bounds
+        assertEquals("", client.readln());
+        
+        client.write("look 0 0 -1 1\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        
+        client.write("look 0 0\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        
+        client.write("bye\n");
+        assertEquals("Expected end of stream", null, client.readln());
+        
+        server.terminate();
+        client.terminate(); 
+    }
+    
+    @Test
+    public void testBinaryBoardFile() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         * saved in binary after "flag 0 0" and "dig 2 2"
+         */
+        Board saved = BoardFiles.load(new File("boards/3x3-(0,0).txt"));
+        saved.flag(0, 0);
+        saved.dig(2, 2);
+        File file = File.createTempFile("board", ".bin");
+        saved.save(file);
+        
+        MinesweeperServer server = new MinesweeperServer(0, true, file);
+        file.delete();
+        Thread serverThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serverThread.start();
+        
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        
+        assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+        
+        client.write("look\n");
+        assertEquals("F 1  ", client.readln());
+        assertEquals("1 1  ", client.readln());
+        assertEquals("     ", client.readln());
+        
+        client.write("bye\n");
+        assertEquals("Expected end of stream", null, client.readln());
+        
+        server.terminate();
+        client.terminate(); 
+    }
+    
+    @Test
+    public void testChangesMessage() throws IOException {
+        /*
+         * 2 2
+         * 0 0
+         * 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/2x2.txt"));
+        Thread serverThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serverThread.start();
+        
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        
+        assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+        
+        client.write("changes 0\n");
+        assertEquals(String.format(MinesweeperServer.CHANGES_MESSAGE_FORMAT, "0 0"), client.readln());
+        
+        client.write("flag 1 0\n");
+        assertEquals("- F", client.readln());
+        assertEquals("- -", client.readln());
+        
+        client.write("changes 0\n");
+        assertEquals(String.format(MinesweeperServer.CHANGES_MESSAGE_FORMAT, "1 1"), client.readln());
+        assertEquals("1 0 F", client.readln());
+        
+        client.write("changes 7\n"); // never reached; expect the whole board
+        assertEquals(String.format(MinesweeperServer.BOARD_MESSAGE_FORMAT, 1), client.readln());
+        assertEquals("- F", client.readln());
+        assertEquals("- -", client.readln());
+        
+        client.write("changes -1\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        
+        client.write("bye\n");
+        assertEquals("Expected end of stream", null, client.readln());
+        
+        server.terminate();
+        client.terminate(); 
+    }
+    
     @Test(expected = RuntimeException.class)
     public void testBoardFileMissingSize() throws IOException {
         new MinesweeperServer(0, true, new File("boards/missing-size.txt"));
@@ -842,6 +1005,716 @@ public class MinesweeperServerTest {
         new MinesweeperServer(0, true, new File("boards/too-little-rows.txt"));
     }
     
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptionsPortOutOfRange() {
+        new MinesweeperServer.Options().port(65536);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptionsSizeOutOfRange() {
+        new MinesweeperServer.Options().size(0, 10);
+    }
+    
+    @Test(expected = RuntimeException.class)
+    public void testTruncatedBinaryBoardFile() throws IOException {
+        File file = File.createTempFile("board", ".bin");
+        try {
+            new Board(3, 3, 7L).save(file);
+            try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+                truncated.setLength(truncated.length() - 1);
+            }
+            new MinesweeperServer(0, true, file);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testJournaledBoardSurvivesRestart() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        File directory = Files.createTempDirectory("journal").toFile();
+        try {
+            Board board = BoardFiles.load(new File("boards/3x3-(0,0).txt"));
+            MinesweeperServer server = new MinesweeperServer(
+                    new MinesweeperServer.Options().port(0).debug(true).board(board).journal(directory));
+            Thread serverThread = start(server);
+            MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+            assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+            
+            client.write("flag 0 0\n");
+            for (int i = 0; i < 3; i++) {
+                client.readln();
+            }
+            client.write("dig 2 2\n");
+            assertEquals("F 1  ", client.readln());
+            assertEquals("1 1  ", client.readln());
+            assertEquals("     ", client.readln());
+            server.terminate();
+            client.terminate();
+            
+            // A new server resumes the board from the journal
+            server = new MinesweeperServer(new MinesweeperServer.Options().port(0).debug(true).journal(directory));
+            serverThread = start(server);
+            client = new MinesweeperClient(serverThread, server.port());
+            assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+            
+            client.write("look\n");
+            assertEquals("F 1  ", client.readln());
+            assertEquals("1 1  ", client.readln());
+            assertEquals("     ", client.readln());
+            server.terminate();
+            client.terminate();
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testStatsMessage() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = start(server);
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+        
+        client.write("stats\n");
+        assertEquals(String.format(MinesweeperServer.STATS_MESSAGE_FORMAT, 1, 0, 9, 8), client.readln());
+        
+        client.write("flag 0 0\n");
+        client.write("dig 1 1\n");
+        for (int i = 0; i < 6; i++) {
+            client.readln();
+        }
+        client.write("stats\n");
+        assertEquals(String.format(MinesweeperServer.STATS_MESSAGE_FORMAT, 1, 1, 7, 7), client.readln());
+        
+        client.write("stats 1\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        
+        server.terminate();
+        client.terminate();
+    }
+    
+    @Test
+    public void testChordMessage() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = start(server);
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+        
+        client.write("dig 1 1\n");
+        for (int i = 0; i < 3; i++) {
+            client.readln();
+        }
+        
+        // No flag around the 1 yet: nothing is dug
+        client.write("chord 1 1\n");
+        assertEquals("- - -", client.readln());
+        assertEquals("- 1 -", client.readln());
+        assertEquals("- - -", client.readln());
+        
+        client.write("flag 0 0\n");
+        for (int i = 0; i < 3; i++) {
+            client.readln();
+        }
+        client.write("chord 1 1\n");
+        assertEquals("F 1  ", client.readln());
+        assertEquals("1 1  ", client.readln());
+        assertEquals("     ", client.readln());
+        
+        client.write("chord 1\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        
+        server.terminate();
+        client.terminate();
+    }
+    
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = start(server);
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+        
+        // Every request of a pipeline is answered, in order
+        client.write("flag 0 0\nstats\nhelp\ndeflag 0 0\n");
+        assertEquals("F - -", client.readln());
+        assertEquals("- - -", client.readln());
+        assertEquals("- - -", client.readln());
+        assertEquals(String.format(MinesweeperServer.STATS_MESSAGE_FORMAT, 1, 1, 8, 8), client.readln());
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        assertEquals("- - -", client.readln());
+        assertEquals("- - -", client.readln());
+        assertEquals("- - -", client.readln());
+        
+        client.write("coalesce on\n");
+        assertEquals("coalesce on", client.readln());
+        
+        // Boards followed by another board already received are left out
+        client.write("flag 0 0\nflag 2 2\ndeflag 2 2\ndig 1 1\nstats\n");
+        List<String> lines = new ArrayList<>();
+        for (String line = client.readln(); !line.startsWith("stats"); line = client.readln()) {
+            lines.add(line);
+        }
+        assertTrue("expected 1 to 4 boards, got " + lines, lines.size() % 3 == 0 && lines.size() >= 3 && lines.size() <= 12);
+        assertEquals(Arrays.asList("F - -", "- 1 -", "- - -"), lines.subList(lines.size() - 3, lines.size()));
+        
+        // A board followed by a request answered otherwise is always sent
+        client.write("flag 2 2\nbatch foo\n");
+        assertEquals("F - -", client.readln());
+        assertEquals("- 1 -", client.readln());
+        assertEquals("- - F", client.readln());
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        
+        client.write("coalesce off\nflag 2 2\nlook\n");
+        assertEquals("coalesce off", client.readln());
+        assertEquals("F - -", client.readln());
+        assertEquals("- 1 -", client.readln());
+        assertEquals("- - F", client.readln());
+        assertEquals("F - -", client.readln());
+        assertEquals("- 1 -", client.readln());
+        assertEquals("- - F", client.readln());
+        
+        server.terminate();
+        client.terminate();
+    }
+    
+    @Test
+    public void testRooms() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = start(server);
+        MinesweeperClient host = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", host.readln().startsWith("Welcome"));
+        MinesweeperClient guest = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", guest.readln().startsWith("Welcome"));
+        
+        host.write("create r1 2 1\n");
+        assertEquals(String.format(MinesweeperServer.JOINED_MESSAGE_FORMAT, "r1", 2, 1, 1), host.readln());
+        host.write("create r1 4 4\n");
+        assertEquals(String.format(MinesweeperServer.ROOM_NOT_CREATED_MESSAGE_FORMAT, "r1"), host.readln());
+        host.write("create r2 0 4\n");
+        assertEquals(String.format(MinesweeperServer.ROOM_NOT_CREATED_MESSAGE_FORMAT, "r2"), host.readln());
+        guest.write("join r2\n");
+        assertEquals(String.format(MinesweeperServer.NO_ROOM_MESSAGE_FORMAT, "r2"), guest.readln());
+        guest.write("join r1\n");
+        assertEquals(String.format(MinesweeperServer.JOINED_MESSAGE_FORMAT, "r1", 2, 1, 2), guest.readln());
+        
+        // The room plays its own board
+        host.write("flag 0 0\n");
+        assertEquals("F -", host.readln());
+        guest.write("look\n");
+        assertEquals("F -", guest.readln());
+        guest.write("leave\n");
+        assertEquals(String.format(MinesweeperServer.JOINED_MESSAGE_FORMAT, MinesweeperServer.DEFAULT_ROOM, 3, 3, 1),
+                guest.readln());
+        guest.write("look\n");
+        assertEquals("- - -", guest.readln());
+        assertEquals("- - -", guest.readln());
+        assertEquals("- - -", guest.readln());
+        
+        // Only rooms without a client are removed, never the default room
+        server.removeIdleRooms(0);
+        assertEquals(2, server.numberOfRooms());
+        host.write("leave\n");
+        assertEquals(String.format(MinesweeperServer.JOINED_MESSAGE_FORMAT, MinesweeperServer.DEFAULT_ROOM, 3, 3, 2),
+                host.readln());
+        server.removeIdleRooms(TimeUnit.HOURS.toNanos(1));
+        assertEquals(2, server.numberOfRooms());
+        server.removeIdleRooms(0);
+        assertEquals(1, server.numberOfRooms());
+        guest.write("join r1\n");
+        assertEquals(String.format(MinesweeperServer.NO_ROOM_MESSAGE_FORMAT, "r1"), guest.readln());
+        guest.write("join " + MinesweeperServer.DEFAULT_ROOM + "\n");
+        assertEquals(String.format(MinesweeperServer.JOINED_MESSAGE_FORMAT, MinesweeperServer.DEFAULT_ROOM, 3, 3, 2),
+                guest.readln());
+        
+        server.terminate();
+        host.terminate();
+        guest.terminate();
+    }
+    
+    @Test
+    public void testNonBlockingServer() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = startNonBlocking(server, 2);
+        List<MinesweeperClient> clients = new ArrayList<>();
+        for (int k = 0; k < 4; k++) {
+            clients.add(new MinesweeperClient(serverThread, server.port()));
+            assertEquals(String.format(MinesweeperServer.HELLO_MESSAGE_FORMAT, 3, 3, k + 1), clients.get(k).readln());
+        }
+        
+        // Requests may be split anywhere, and pipelined
+        MinesweeperClient client = clients.get(3);
+        client.write("fla");
+        client.write("g 0 0\r");
+        client.write("\nlook 0 0 2 1\nstats\n");
+        assertEquals("F - -", client.readln());
+        assertEquals("- - -", client.readln());
+        assertEquals("- - -", client.readln());
+        assertEquals("F -", client.readln());
+        assertEquals(String.format(MinesweeperServer.STATS_MESSAGE_FORMAT, 1, 1, 8, 8), client.readln());
+        clients.get(0).write("look 0 0 1 1\n");
+        assertEquals("F", clients.get(0).readln());
+        
+        client.write("bye\nlook\n");
+        assertEquals("Expected end of stream", null, client.readln());
+        
+        server.terminate();
+        for (MinesweeperClient other : clients) {
+            other.terminate();
+        }
+    }
+    
+    @Test
+    public void testNonBlockingServerRepliesAsBlocking() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        StringBuilder longBatch = new StringBuilder("batch flag 1 1");
+        for (int k = 1; k < MinesweeperServer.MAX_BATCH_MOVES; k++) {
+            longBatch.append(k % 2 == 0 ? "; flag 1 1" : "; deflag 1 1");
+        }
+        String requests = "look\r\nflag 0 0\rhelp\nstats\nbatch flag 2 2; deflag 2 2\ncreate r 2 2\nflag 0 0\n"
+                + "leave\nhelp me\n" + longBatch + "\ncoalesce off\ndeflag 0 0\ndig 0 0\nlook\n";
+        
+        List<List<String>> transcripts = new ArrayList<>();
+        for (boolean nonBlocking : new boolean[] { false, true }) {
+            MinesweeperServer server = new MinesweeperServer(0, false, new File("boards/3x3-(0,0).txt"));
+            Thread serverThread = nonBlocking ? startNonBlocking(server, 1) : start(server);
+            MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+            client.write(requests);
+            List<String> transcript = new ArrayList<>();
+            for (String line = client.readln(); line != null; line = client.readln()) {
+                transcript.add(line);
+            }
+            transcripts.add(transcript);
+            server.terminate();
+            client.terminate();
+        }
+        assertEquals(MinesweeperServer.BOOM_MESSAGE, transcripts.get(0).get(transcripts.get(0).size() - 1));
+        assertEquals(transcripts.get(0), transcripts.get(1));
+    }
+    
+    @Test
+    public void testRepliesBeforeFailedRequest() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        for (boolean nonBlocking : new boolean[] { false, true }) {
+            MinesweeperServer server = new MinesweeperServer(0, false, new File("boards/3x3-(0,0).txt"));
+            Thread serverThread = nonBlocking ? startNonBlocking(server, 1) : start(server);
+            MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+            assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+            
+            // A request out of the range of int disconnects the client, after
+            // the replies to the requests before it, which it does not supersede
+            client.write("coalesce on\nflag 0 0\ndig 0 99999999999\n");
+            assertEquals("coalesce on", client.readln());
+            assertEquals("F - -", client.readln());
+            assertEquals("- - -", client.readln());
+            assertEquals("- - -", client.readln());
+            assertEquals("Expected end of stream", null, client.readln());
+            server.terminate();
+            client.terminate();
+        }
+    }
+    
+    @Test
+    public void testVirtualThreads() throws IOException {
+        boolean supported = true;
+        try {
+            MinesweeperServer.virtualThreadFactory();
+        } catch (UnsupportedOperationException uoe) {
+            supported = false;
+        }
+        assumeTrue("the JDK has no virtual threads", supported);
+        MinesweeperServer server = new MinesweeperServer(0, false, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serveOnVirtualThreads();
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        assertEquals(String.format(MinesweeperServer.HELLO_MESSAGE_FORMAT, 3, 3, 1), client.readln());
+        
+        client.write("flag 1 1\nlook 0 0 2 2\ndig 0 0\n");
+        assertEquals("- - -", client.readln());
+        assertEquals("- F -", client.readln());
+        assertEquals("- - -", client.readln());
+        assertEquals("- -", client.readln());
+        assertEquals("- F", client.readln());
+        assertEquals(MinesweeperServer.BOOM_MESSAGE, client.readln());
+        assertEquals("Expected end of stream", null, client.readln());
+        
+        server.terminate();
+        client.terminate();
+    }
+    
+    @Test
+    public void testBoundedWorkers() throws IOException, InterruptedException {
+        MinesweeperServer server = new MinesweeperServer(0, false, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serve(1, 2);
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        MinesweeperClient handled = new MinesweeperClient(serverThread, server.port());
+        assertEquals(String.format(MinesweeperServer.HELLO_MESSAGE_FORMAT, 3, 3, 1), handled.readln());
+        
+        // Admitted, but waits for the only worker
+        MinesweeperClient queued = new MinesweeperClient(serverThread, server.port());
+        awaitQueued(server, 1);
+        
+        MinesweeperClient rejected = new MinesweeperClient(serverThread, server.port());
+        assertEquals(MinesweeperServer.BUSY_MESSAGE, rejected.readln());
+        assertEquals("Expected end of stream", null, rejected.readln());
+        assertEquals(1, server.rejectedConnections());
+        
+        handled.write("bye\n");
+        assertEquals("Expected end of stream", null, handled.readln());
+        assertEquals(String.format(MinesweeperServer.HELLO_MESSAGE_FORMAT, 3, 3, 1), queued.readln());
+        assertEquals(0, server.queuedConnections());
+        queued.write("look 1 1 1 1\n");
+        assertEquals("-", queued.readln());
+        
+        server.terminate();
+        handled.terminate();
+        queued.terminate();
+        rejected.terminate();
+    }
+    
+    @Test
+    public void testMaxConnectionsNonBlocking() throws IOException {
+        MinesweeperServer server = new MinesweeperServer(new MinesweeperServer.Options().port(0).backlog(1)
+                .board(new Board(3, 3, "1 0 0\n0 0 0\n0 0 0\n")));
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serveNonBlocking(1, 1);
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        MinesweeperClient handled = new MinesweeperClient(serverThread, server.port());
+        assertEquals(String.format(MinesweeperServer.HELLO_MESSAGE_FORMAT, 3, 3, 1), handled.readln());
+        
+        MinesweeperClient rejected = new MinesweeperClient(serverThread, server.port());
+        assertEquals(MinesweeperServer.BUSY_MESSAGE, rejected.readln());
+        assertEquals("Expected end of stream", null, rejected.readln());
+        assertEquals(1, server.rejectedConnections());
+        
+        // A disconnected client makes room for another
+        handled.write("bye\n");
+        assertEquals("Expected end of stream", null, handled.readln());
+        MinesweeperClient admitted = null;
+        for (int attempts = 0; admitted == null; attempts++) {
+            MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+            String line = client.readln();
+            if (line.equals(MinesweeperServer.BUSY_MESSAGE)) {
+                // The event loop has not disconnected the first client yet
+                assertTrue("expected a client admitted", attempts < 100);
+                client.terminate();
+            } else {
+                assertEquals(String.format(MinesweeperServer.HELLO_MESSAGE_FORMAT, 3, 3, 1), line);
+                admitted = client;
+            }
+        }
+        
+        server.terminate();
+        handled.terminate();
+        rejected.terminate();
+        admitted.terminate();
+    }
+    
+    private static void awaitQueued(MinesweeperServer server, int queued) throws InterruptedException {
+        for (int attempts = 0; server.queuedConnections() != queued; attempts++) {
+            assertTrue("expected " + queued + " queued connections", attempts < 300);
+            Thread.sleep(10);
+        }
+    }
+    
+    @Test
+    public void testRequestParser() {
+        Request request = new Request();
+        assertEquals(Request.Kind.LOOK, request.parse("look"));
+        assertEquals(Request.Kind.LOOK_AREA, request.parse("look -2147483648 -0 007 2147483647"));
+        assertEquals(Integer.MIN_VALUE, request.x());
+        assertEquals(0, request.y());
+        assertEquals(7, request.width());
+        assertEquals(Integer.MAX_VALUE, request.height());
+        assertEquals(Request.Kind.CHANGES, request.parse("changes 999999999999999999"));
+        assertEquals(999999999999999999L, request.version());
+        assertEquals(Request.Kind.BATCH, request.parse("batch dig 1 2; flag -3 4; deflag 5 -6"));
+        assertEquals(3, request.count());
+        assertEquals(Board.Move.FLAG, request.moves()[1]);
+        assertEquals(-6, request.ys()[2]);
+        assertEquals(Request.Kind.JOIN, request.parse("join my_room-2"));
+        assertEquals("my_room-2", request.room());
+        assertEquals(Request.Kind.CREATE, request.parse("create r 999999999 007"));
+        assertEquals("r", request.room());
+        assertEquals(999999999, request.width());
+        assertEquals(7, request.height());
+        assertEquals(Request.Kind.LEAVE, request.parse("leave"));
+        assertEquals(Request.Kind.COALESCE, request.parse("coalesce on"));
+        assertTrue(request.coalesce());
+        assertEquals(Request.Kind.COALESCE, request.parse("coalesce off"));
+        assertFalse(request.coalesce());
+        for (String invalid : Arrays.asList("", "look ", "look 1 2 3 -4", "dig 1", "dig 1 2 ", "dig  1 2",
+                "Dig 1 2", "dig +1 2", "dig - 2", "changes 1234567890123456789", "changes -1", "batch ",
+                "batch dig 1 2;", "batch dig 1 2; ", "batch chord 1 2", "batch dig 1 2\u2028", "help ",
+                "join ", "join a b", "join r\u00e9", "join 123456789012345678901234567890123", "create r 1",
+                "create r 1 1234567890", "create r -1 1", "leave r", "coalesce", "coalesce onn", "coalesce On")) {
+            assertEquals(invalid, null, request.parse(invalid));
+        }
+        try {
+            request.parse("dig 2147483648 0");
+            throw new AssertionError("expected NumberFormatException");
+        } catch (NumberFormatException nfe) {
+            // As Integer.parseInt() throws
+        }
+    }
+    
+    @Test
+    public void testRequestParserMatchesRegex() {
+        final String[] words = { "look", "help", "bye", "stats", "dig", "chord", "flag", "deflag", "changes",
+                "batch", "digs", "Look", "", "join", "create", "leave", "coalesce", "on", "off" };
+        final String[] separators = { " ", "; ", "  ", ";", "", "\t", "\u2028" };
+        // The first VALID numbers are in the range of int
+        final int VALID = 8;
+        final String[] numbers = { "0", "1", "-1", "42", "007", "-0", "2147483647", "-2147483648",
+                "2147483648", "-2147483649", "99999999999999999999", "123456789012345678",
+                "1234567890123456789", "-", "+1", "1x", "" };
+        final Random random = new Random(7);
+        final Request request = new Request();
+        for (int n = 0; n < 100000; n++) {
+            final String word = words[random.nextInt(words.length)];
+            final StringBuilder line = new StringBuilder(word);
+            // Mostly well-formed, so that every kind of request is often valid
+            final int moves = word.equals("batch") && random.nextInt(8) != 0 ? 1 + random.nextInt(4) : 0;
+            for (int m = 0; m < Math.max(moves, 1); m++) {
+                if (moves > 0) {
+                    line.append(m == 0 ? " " : "; ").append(words[4 + random.nextInt(4)]);
+                }
+                for (int k = moves > 0 ? 2 : random.nextInt(6); k > 0; k--) {
+                    line.append(random.nextInt(8) == 0 ? separators[random.nextInt(separators.length)] : " ");
+                    line.append(random.nextInt(8) == 0 ? words[random.nextInt(words.length)]
+                            : numbers[random.nextInt(random.nextInt(4) == 0 ? numbers.length : VALID)]);
+                }
+            }
+            final String input = line.toString();
+            String actual;
+            try {
+                final Request.Kind kind = request.parse(input);
+                actual = describe(request, kind);
+            } catch (NumberFormatException nfe) {
+                actual = "NumberFormatException";
+            }
+            assertEquals(input, regexParse(input), actual);
+        }
+    }
+    
+    /**
+     * Parse a request the way handleRequest() and respond() did with regular expressions.
+     */
+    private static String regexParse(String input) {
+        String regex = "(look)|(look -?\\d+ -?\\d+ \\d+ \\d+)|(help)|(bye)|"
+                     + "(dig -?\\d+ -?\\d+)|(chord -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)|"
+                     + "(changes \\d{1,18})|(stats)|(batch .+)|"
+                     + "(join [\\w-]{1,32})|(create [\\w-]{1,32} \\d{1,9} \\d{1,9})|(leave)|(coalesce (on|off))";
+        if ( ! input.matches(regex)) {
+            return "null";
+        }
+        try {
+            String[] tokens = input.split(" ");
+            if (tokens[0].equals("batch")) {
+                String[] moves = input.substring("batch ".length()).split("; ", -1);
+                if (moves.length > MinesweeperServer.MAX_BATCH_MOVES) {
+                    return "null";
+                }
+                StringBuilder description = new StringBuilder("BATCH");
+                for (String move : moves) {
+                    if ( ! move.matches("(dig|flag|deflag) -?\\d+ -?\\d+")) {
+                        return "null";
+                    }
+                    String[] parts = move.split(" ");
+                    description.append(' ').append(parts[0].toUpperCase(Locale.ROOT))
+                            .append(' ').append(Integer.parseInt(parts[1])).append(' ').append(Integer.parseInt(parts[2]));
+                }
+                return description.toString();
+            } else if (tokens[0].equals("changes")) {
+                return "CHANGES " + Long.parseLong(tokens[1]);
+            } else if (tokens[0].equals("join") || tokens[0].equals("coalesce")) {
+                return tokens[0].toUpperCase(Locale.ROOT) + " " + tokens[1];
+            } else if (tokens[0].equals("create")) {
+                return "CREATE " + tokens[1] + " " + Integer.parseInt(tokens[2]) + " " + Integer.parseInt(tokens[3]);
+            } else if (tokens[0].equals("look") && tokens.length == 5) {
+                return "LOOK_AREA " + Integer.parseInt(tokens[1]) + " " + Integer.parseInt(tokens[2])
+                        + " " + Integer.parseInt(tokens[3]) + " " + Integer.parseInt(tokens[4]);
+            } else if (tokens.length == 3) {
+                return tokens[0].toUpperCase(Locale.ROOT) + " " + Integer.parseInt(tokens[1]) + " " + Integer.parseInt(tokens[2]);
+            }
+            return tokens[0].toUpperCase(Locale.ROOT);
+        } catch (NumberFormatException nfe) {
+            return "NumberFormatException";
+        }
+    }
+    
+    /**
+     * Describe a parsed request as regexParse() does.
+     */
+    private static String describe(Request request, Request.Kind kind) {
+        if (kind == null) {
+            return "null";
+        }
+        switch (kind) {
+        case BATCH:
+            StringBuilder description = new StringBuilder("BATCH");
+            for (int k = 0; k < request.count(); k++) {
+                description.append(' ').append(request.moves()[k]).append(' ').append(request.xs()[k])
+                        .append(' ').append(request.ys()[k]);
+            }
+            return description.toString();
+        case CHANGES:
+            return "CHANGES " + request.version();
+        case LOOK_AREA:
+            return "LOOK_AREA " + request.x() + " " + request.y() + " " + request.width() + " " + request.height();
+        case DIG: case CHORD: case FLAG: case DEFLAG:
+            return kind + " " + request.x() + " " + request.y();
+        case JOIN:
+            return "JOIN " + request.room();
+        case CREATE:
+            return "CREATE " + request.room() + " " + request.width() + " " + request.height();
+        case COALESCE:
+            return "COALESCE " + (request.coalesce() ? "on" : "off");
+        default:
+            return kind.toString();
+        }
+    }
+    
+    @Test
+    public void testBatchMessage() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, false, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = start(server);
+        MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", client.readln().startsWith("Welcome"));
+        
+        client.write("batch flag 0 0; flag 2 2; deflag 2 2; dig 1 1\n");
+        assertEquals("F - -", client.readln());
+        assertEquals("- 1 -", client.readln());
+        assertEquals("- - -", client.readln());
+        
+        client.write("batch flag 0 0;flag 1 1\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        client.write("batch\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        client.write("batch flag 0 0; \n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        client.write("batch " + String.join("; ", Collections.nCopies(MinesweeperServer.MAX_BATCH_MOVES + 1, "flag 1 0"))
+                + "\n");
+        assertEquals(MinesweeperServer.HELP_MESSAGE, client.readln());
+        
+        // Not in debug mode, so the explosion disconnects the client
+        client.write("batch deflag 0 0; dig 2 2; dig 0 0; flag 1 0\n");
+        assertEquals(String.format(MinesweeperServer.BATCH_BOOM_MESSAGE_FORMAT, 2), client.readln());
+        assertEquals("Expected end of stream", null, client.readln());
+        
+        server.terminate();
+        client.terminate();
+    }
+    
+    @Test
+    public void testGameOverMessage() throws IOException {
+        /*
+         * 3 3
+         * 1 0 0
+         * 0 0 0
+         * 0 0 0
+         */
+        MinesweeperServer server = new MinesweeperServer(0, true, new File("boards/3x3-(0,0).txt"));
+        Thread serverThread = start(server);
+        MinesweeperClient digger = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", digger.readln().startsWith("Welcome"));
+        MinesweeperClient watcher = new MinesweeperClient(serverThread, server.port());
+        assertTrue("expected HELLO message", watcher.readln().startsWith("Welcome"));
+        
+        // The digger's reply shows the finished board; the others are told
+        // after their next reply
+        digger.write("dig 2 2\n");
+        assertEquals("- 1  ", digger.readln());
+        assertEquals("1 1  ", digger.readln());
+        assertEquals("     ", digger.readln());
+        watcher.write("look 0 0 1 1\n");
+        assertEquals("-", watcher.readln());
+        assertEquals(MinesweeperServer.GAME_OVER_MESSAGE, watcher.readln());
+        
+        // Only once
+        digger.write("dig 0 0\n");
+        assertEquals("BOOM!", digger.readln());
+        digger.write("stats\n");
+        assertEquals(String.format(MinesweeperServer.STATS_MESSAGE_FORMAT, 0, 0, 0, 0), digger.readln());
+        watcher.write("look 0 0 1 1\n");
+        assertEquals(" ", watcher.readln());
+        
+        server.terminate();
+        digger.terminate();
+        watcher.terminate();
+    }
+    
     @Test
     public void testOneByOneBoard() throws IOException {
         /*
@@ -1016,6 +1889,29 @@ public class MinesweeperServerTest {
         client.terminate(); 
     }
     
+    @Test
+    public void testRepliesReadAfterDisconnection() throws IOException, InterruptedException {
+        // Requests left unread as the server disconnects must not reset the
+        // connection before the client reads the replies sent
+        StringBuilder requests = new StringBuilder("dig 0 0\n");
+        for (int k = 0; k < 20000; k++) {
+            requests.append("look\n");
+        }
+        for (boolean nonBlocking : new boolean[] { false, true }) {
+            MinesweeperServer server = new MinesweeperServer(0, false, new File("boards/1x1-(0,0).txt"));
+            Thread serverThread = nonBlocking ? startNonBlocking(server, 1) : start(server);
+            MinesweeperClient client = new MinesweeperClient(serverThread, server.port());
+            client.write(requests.toString());
+            Thread.sleep(200);
+            
+            assertTrue(client.readln().startsWith("Welcome"));
+            assertEquals(MinesweeperServer.BOOM_MESSAGE, client.readln());
+            assertEquals(null, client.readln());
+            server.terminate();
+            client.terminate();
+        }
+    }
+    
     /**
      * Run test n times repeatedly
      * 
@@ -1206,6 +2102,19 @@ public class MinesweeperServerTest {
         return serverThread;
     }
     
+    private static Thread startNonBlocking(MinesweeperServer server, int loops) {
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serveNonBlocking(loops);
+            } catch (IOException e) {
+                //e.printStackTrace();
+            }
+        });
+        
+        serverThread.start();
+        return serverThread;
+    }
+    
     @Test
     public void testConcurrentConnections() {
         repeat(() -> concurrentConnections(), 1000);